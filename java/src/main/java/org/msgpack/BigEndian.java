@@ -0,0 +1,131 @@
+//
+// MessagePack for Java
+//
+// Copyright (C) 2009-2010 FURUHASHI Sadayuki
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.msgpack;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads and writes big-endian values directly in a byte array.
+ * Callers are responsible for checking that enough bytes are available.
+ *
+ * The overloads that take both a byte array and a ByteBuffer read from
+ * the array if it is not null, otherwise from the buffer using absolute
+ * indexes. The buffer must be in big-endian byte order.
+ */
+final class BigEndian {
+	private BigEndian() { }
+
+	static short readShort(byte[] b, int off) {
+		return (short)((b[off] << 8) | (b[off+1] & 0xff));
+	}
+
+	static int readUnsignedShort(byte[] b, int off) {
+		return ((b[off] & 0xff) << 8) | (b[off+1] & 0xff);
+	}
+
+	static int readInt(byte[] b, int off) {
+		return (b[off] << 24) |
+			((b[off+1] & 0xff) << 16) |
+			((b[off+2] & 0xff) <<  8) |
+			(b[off+3] & 0xff);
+	}
+
+	static long readLong(byte[] b, int off) {
+		return ((long)readInt(b, off) << 32) |
+			((long)readInt(b, off+4) & 0xffffffffL);
+	}
+
+	static float readFloat(byte[] b, int off) {
+		return Float.intBitsToFloat(readInt(b, off));
+	}
+
+	static double readDouble(byte[] b, int off) {
+		return Double.longBitsToDouble(readLong(b, off));
+	}
+
+	static void writeShort(byte[] b, int off, short v) {
+		b[off]   = (byte)(v >> 8);
+		b[off+1] = (byte)v;
+	}
+
+	static void writeInt(byte[] b, int off, int v) {
+		b[off]   = (byte)(v >> 24);
+		b[off+1] = (byte)(v >> 16);
+		b[off+2] = (byte)(v >>  8);
+		b[off+3] = (byte)v;
+	}
+
+	static void writeLong(byte[] b, int off, long v) {
+		writeInt(b, off, (int)(v >> 32));
+		writeInt(b, off+4, (int)v);
+	}
+
+	static byte get(byte[] b, ByteBuffer bb, int off) {
+		return b != null ? b[off] : bb.get(off);
+	}
+
+	static short readShort(byte[] b, ByteBuffer bb, int off) {
+		return b != null ? readShort(b, off) : bb.getShort(off);
+	}
+
+	static int readUnsignedShort(byte[] b, ByteBuffer bb, int off) {
+		return b != null ? readUnsignedShort(b, off) : bb.getShort(off) & 0xffff;
+	}
+
+	static int readInt(byte[] b, ByteBuffer bb, int off) {
+		return b != null ? readInt(b, off) : bb.getInt(off);
+	}
+
+	static long readLong(byte[] b, ByteBuffer bb, int off) {
+		return b != null ? readLong(b, off) : bb.getLong(off);
+	}
+
+	static float readFloat(byte[] b, ByteBuffer bb, int off) {
+		return b != null ? readFloat(b, off) : bb.getFloat(off);
+	}
+
+	static double readDouble(byte[] b, ByteBuffer bb, int off) {
+		return b != null ? readDouble(b, off) : bb.getDouble(off);
+	}
+
+	static void copy(byte[] b, ByteBuffer bb, int off, byte[] dst, int dstOff, int len) {
+		if(b != null) {
+			System.arraycopy(b, off, dst, dstOff, len);
+		} else {
+			ByteBuffer dup = bb.duplicate();
+			dup.position(off);
+			dup.get(dst, dstOff, len);
+		}
+	}
+
+	static byte[] copyOfRange(byte[] b, ByteBuffer bb, int from, int to) {
+		byte[] bytes = new byte[to - from];
+		copy(b, bb, from, bytes, 0, bytes.length);
+		return bytes;
+	}
+
+	/**
+	 * Returns the buffer itself if it is big-endian, otherwise a big-endian view.
+	 */
+	static ByteBuffer bigEndian(ByteBuffer bb) {
+		if(bb.order() == java.nio.ByteOrder.BIG_ENDIAN) {
+			return bb;
+		}
+		return bb.duplicate().order(java.nio.ByteOrder.BIG_ENDIAN);
+	}
+}
@@ -0,0 +1,453 @@
+//
+// MessagePack for Java
+//
+// Copyright (C) 2009-2010 FURUHASHI Sadayuki
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.msgpack;
+
+import java.io.OutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * BufferedPacker serializes objects into an internal buffer and writes
+ * the buffer to the OutputStream in large blocks.
+ * Call {@link flush()} to write the buffered bytes.
+ *
+ * <pre>
+ * BufferedPacker pk = new BufferedPacker(socketOutputStream);
+ * pk.pack(obj1);
+ * pk.pack(obj2);
+ * pk.flush();
+ * </pre>
+ *
+ * Without OutputStream, the buffer grows as needed and the serialized
+ * bytes are available with {@link toByteArray()}.
+ *
+ * Arrays and maps whose size is not known in advance can be written with
+ * {@link beginArray()}/{@link endArray()} and {@link beginMap()}/{@link endMap()}:
+ *
+ * <pre>
+ * pk.beginArray();
+ * while(rows.next()) {
+ *     pk.pack(rows.getString(1));
+ * }
+ * pk.endArray();
+ * </pre>
+ *
+ * Elements are counted as they are written. With an OutputStream, the
+ * header is written when the container ends, so the whole outermost open
+ * container is kept in the buffer; memory is bounded only by the size of
+ * that container. With a FileChannel, open containers are written when
+ * the buffer is full with a 5-byte array32/map32 header, which is
+ * rewritten in place when the container ends; memory is bounded by the
+ * buffer size.
+ */
+public class BufferedPacker extends Packer {
+	private static final int DEFAULT_BUFFER_SIZE = 8*1024;
+
+	protected byte[] buffer;
+	protected int position;
+
+	// header positions of the containers started by beginArray/beginMap
+	private int[] openPositions = new int[4];
+	private boolean[] openMaps = new boolean[4];
+	// number of elements, offset counted up to and whether an element is
+	// partially counted for each open container
+	private int[] openCounts = new int[4];
+	private int[] openScanned = new int[4];
+	private boolean[] openPending = new boolean[4];
+	private ValueScanner[] openScanners = new ValueScanner[4];
+	// position of the header in the channel, or -1 if it is in the buffer
+	private long[] openFilePositions = new long[4];
+	private int openCount = 0;
+
+	private FileChannel channel;
+
+	/**
+	 * Constructs a packer without OutputStream.
+	 */
+	public BufferedPacker() {
+		this((OutputStream)null, DEFAULT_BUFFER_SIZE);
+	}
+
+	public BufferedPacker(int bufferSize) {
+		this((OutputStream)null, bufferSize);
+	}
+
+	public BufferedPacker(OutputStream out) {
+		this(out, DEFAULT_BUFFER_SIZE);
+	}
+
+	public BufferedPacker(FileChannel channel) {
+		this(channel, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Constructs a packer that writes to the current position of the
+	 * channel and rewrites headers of containers ended by
+	 * {@link endArray()} and {@link endMap()} at their positions.
+	 */
+	public BufferedPacker(FileChannel channel, int bufferSize) {
+		this(Channels.newOutputStream(channel), bufferSize);
+		this.channel = channel;
+	}
+
+	/**
+	 * @param out output stream, or null to keep the serialized bytes in the buffer
+	 * @param bufferSize size of the internal buffer; the initial size if out is null
+	 */
+	public BufferedPacker(OutputStream out, int bufferSize) {
+		super(out);
+		this.buffer = new byte[bufferSize < 1 ? 1 : bufferSize];
+		this.position = 0;
+	}
+
+	@Override
+	protected void writeByte(int b) throws IOException {
+		if(position >= buffer.length) {
+			reserve(1);
+		}
+		buffer[position++] = (byte)b;
+	}
+
+	@Override
+	protected void writeBytes(byte[] b, int off, int len) throws IOException {
+		if(buffer.length - position < len) {
+			if(out != null && openCount == 0 && len >= buffer.length) {
+				// large body; write it directly
+				flushBuffer();
+				out.write(b, off, len);
+				return;
+			}
+			reserve(len);
+		}
+		System.arraycopy(b, off, buffer, position, len);
+		position += len;
+	}
+
+	@Override
+	protected void writeString(String s, int length) throws IOException {
+		if(buffer.length - position < length) {
+			if(out != null && openCount == 0 && length > buffer.length) {
+				super.writeString(s, length);
+				return;
+			}
+			reserve(length);
+		}
+		position = UTF8.encode(s, buffer, position);
+	}
+
+	@Override
+	protected void writeByteBuffer(ByteBuffer bb) throws IOException {
+		if(bb.hasArray()) {
+			super.writeByteBuffer(bb);
+			return;
+		}
+		ByteBuffer src = bb.duplicate();
+		if(out == null) {
+			reserve(src.remaining());
+		}
+		while(src.hasRemaining()) {
+			if(position >= buffer.length) {
+				reserve(1);
+			}
+			int n = Math.min(src.remaining(), buffer.length - position);
+			src.get(buffer, position, n);
+			position += n;
+		}
+	}
+
+	/**
+	 * Makes at least {@code size} bytes of free space in the buffer.
+	 * Writes the buffered bytes to the stream, or expands the buffer
+	 * if there is no stream.
+	 */
+	protected void reserve(int size) throws IOException {
+		if(buffer.length - position >= size) {
+			return;
+		}
+		if(out != null) {
+			flushBuffer();
+			if(buffer.length - position >= size) {
+				return;
+			}
+		}
+		int nextSize = buffer.length * 2;
+		while(nextSize - position < size) {
+			nextSize *= 2;
+		}
+		buffer = Arrays.copyOf(buffer, nextSize);
+	}
+
+	/**
+	 * Writes the buffered bytes to the stream without flushing the stream.
+	 * Bytes of containers that are not ended yet stay in the buffer.
+	 */
+	public void flushBuffer() throws IOException {
+		if(out == null) {
+			return;
+		}
+		if(openCount == 0) {
+			if(position > 0) {
+				out.write(buffer, 0, position);
+				position = 0;
+			}
+			return;
+		}
+		if(channel != null) {
+			flushOpenContainers();
+			return;
+		}
+		int held = openPositions[0];
+		if(held > 0) {
+			out.write(buffer, 0, held);
+			System.arraycopy(buffer, held, buffer, 0, position - held);
+			position -= held;
+			for(int i=0; i < openCount; i++) {
+				openPositions[i] -= held;
+				openScanned[i] -= held;
+			}
+		}
+	}
+
+	/**
+	 * Writes the bytes of the open containers that are counted already.
+	 * Headers still in the buffer are written as array32/map32 and
+	 * rewritten by {@link endContainer(boolean)}.
+	 */
+	private void flushOpenContainers() throws IOException {
+		int inner = openCount-1;
+		countElements(inner);
+		// a partially counted header stays in the buffer
+		int held = openScanned[inner];
+		if(held <= 0) {
+			return;
+		}
+		long filePosition = channel.position();
+		for(int i=0; i < openCount; i++) {
+			if(openFilePositions[i] < 0) {
+				int header = openPositions[i];
+				buffer[header] = (byte)(openMaps[i] ? 0xdf : 0xdd);
+				buffer[header+1] = 0;
+				buffer[header+2] = 0;
+				buffer[header+3] = 0;
+				buffer[header+4] = 0;
+				openFilePositions[i] = filePosition + header;
+			}
+		}
+		out.write(buffer, 0, held);
+		System.arraycopy(buffer, held, buffer, 0, position - held);
+		position -= held;
+		for(int i=0; i < openCount; i++) {
+			openPositions[i] -= held;
+			openScanned[i] -= held;
+		}
+	}
+
+	/**
+	 * Starts an array whose number of elements is counted
+	 * when {@link endArray()} is called.
+	 */
+	public Packer beginArray() throws IOException {
+		return beginContainer(false);
+	}
+
+	public Packer endArray() throws IOException {
+		return endContainer(false);
+	}
+
+	/**
+	 * Starts a map whose number of entries is counted
+	 * when {@link endMap()} is called.
+	 */
+	public Packer beginMap() throws IOException {
+		return beginContainer(true);
+	}
+
+	public Packer endMap() throws IOException {
+		return endContainer(true);
+	}
+
+	private Packer beginContainer(boolean map) throws IOException {
+		reserve(5);
+		if(openCount > 0) {
+			// the new container is one element of the enclosing one
+			countElements(openCount-1);
+		}
+		if(openCount == openPositions.length) {
+			int nextSize = openCount * 2;
+			openPositions = Arrays.copyOf(openPositions, nextSize);
+			openMaps = Arrays.copyOf(openMaps, nextSize);
+			openCounts = Arrays.copyOf(openCounts, nextSize);
+			openScanned = Arrays.copyOf(openScanned, nextSize);
+			openPending = Arrays.copyOf(openPending, nextSize);
+			openScanners = Arrays.copyOf(openScanners, nextSize);
+			openFilePositions = Arrays.copyOf(openFilePositions, nextSize);
+		}
+		if(openScanners[openCount] == null) {
+			openScanners[openCount] = new ValueScanner();
+		} else {
+			openScanners[openCount].reset();
+		}
+		openPositions[openCount] = position;
+		openMaps[openCount] = map;
+		openCounts[openCount] = 0;
+		openScanned[openCount] = position + 5;
+		openPending[openCount] = false;
+		openFilePositions[openCount] = -1;
+		openCount++;
+		// the header is written when the container ends
+		position += 5;
+		return this;
+	}
+
+	/**
+	 * Counts the elements written to the open container since the last
+	 * call. Every byte is counted by the innermost open container only.
+	 */
+	private void countElements(int i) throws IOException {
+		ValueScanner scanner = openScanners[i];
+		int off = openScanned[i];
+		while(off < position) {
+			int end = scanner.scan(buffer, off, position);
+			if(!scanner.isFinished()) {
+				openPending[i] |= end > off;
+				off = end;
+				break;
+			}
+			openCounts[i]++;
+			openPending[i] = false;
+			scanner.reset();
+			off = end;
+		}
+		openScanned[i] = off;
+	}
+
+	private Packer endContainer(boolean map) throws IOException {
+		if(openCount == 0 || openMaps[openCount-1] != map) {
+			throw new MessageTypeException(map ?
+					"endMap without beginMap" : "endArray without beginArray");
+		}
+		int i = openCount-1;
+		countElements(i);
+		if(openPending[i] || openScanned[i] != position) {
+			throw new MessageTypeException("incomplete value in container");
+		}
+		int header = openPositions[i];
+		int start = header + 5;
+		int n = openCounts[i];
+		if(map) {
+			if(n % 2 != 0) {
+				throw new MessageTypeException("map has a key without value");
+			}
+			n /= 2;
+		}
+		openCount--;
+
+		// rewrite the header in the channel if it is written already;
+		// otherwise write the shortest header and move the elements next to it
+		int headerSize;
+		if(openFilePositions[i] >= 0) {
+			castBytes[0] = (byte)(map ? 0xdf : 0xdd);
+			castBytes[1] = (byte)(n >> 24);
+			castBytes[2] = (byte)(n >> 16);
+			castBytes[3] = (byte)(n >>  8);
+			castBytes[4] = (byte)(n >>  0);
+			ByteBuffer bb = ByteBuffer.wrap(castBytes, 0, 5);
+			long filePosition = openFilePositions[i];
+			while(bb.hasRemaining()) {
+				filePosition += channel.write(bb, filePosition);
+			}
+			headerSize = 5;
+		} else if(n < 16) {
+			buffer[header] = (byte)((map ? 0x80 : 0x90) | n);
+			headerSize = 1;
+		} else if(n < 65536) {
+			buffer[header]   = (byte)(map ? 0xde : 0xdc);
+			buffer[header+1] = (byte)(n >>  8);
+			buffer[header+2] = (byte)(n >>  0);
+			headerSize = 3;
+		} else {
+			buffer[header]   = (byte)(map ? 0xdf : 0xdd);
+			buffer[header+1] = (byte)(n >> 24);
+			buffer[header+2] = (byte)(n >> 16);
+			buffer[header+3] = (byte)(n >>  8);
+			buffer[header+4] = (byte)(n >>  0);
+			headerSize = 5;
+		}
+		if(headerSize < 5) {
+			System.arraycopy(buffer, start, buffer, header + headerSize, position - start);
+			position -= 5 - headerSize;
+		}
+
+		if(openCount > 0) {
+			// count the ended container as one value of the enclosing one
+			int p = openCount-1;
+			ValueScanner scanner = openScanners[p];
+			if(openPending[p]) {
+				scanner.valueSkipped();
+			}
+			if(!openPending[p] || scanner.isFinished()) {
+				openCounts[p]++;
+				openPending[p] = false;
+				scanner.reset();
+			}
+			openScanned[p] = position;
+		}
+		return this;
+	}
+
+	/**
+	 * Writes the buffered bytes and flushes the stream.
+	 */
+	@Override
+	public void flush() throws IOException {
+		if(out != null) {
+			flushBuffer();
+			out.flush();
+		}
+	}
+
+	/**
+	 * Returns the internal buffer. Bytes from 0 to
+	 * {@link getBufferPosition()} are not written to the stream yet.
+	 */
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+	public int getBufferPosition() {
+		return position;
+	}
+
+	/**
+	 * Returns a copy of the buffered bytes.
+	 */
+	public byte[] toByteArray() {
+		return Arrays.copyOf(buffer, position);
+	}
+
+	/**
+	 * Discards the buffered bytes.
+	 */
+	public void reset() {
+		position = 0;
+		openCount = 0;
+	}
+}
@@ -25,8 +25,19 @@ abstract class BufferedUnpackerImpl extends UnpackerImpl {
 	int offset = 0;
 	int filled = 0;
 	byte[] buffer = null;
-	boolean bufferReferenced = false;  // TODO zero-copy buffer
-	private ByteBuffer castBuffer = ByteBuffer.allocate(8);
+	// used instead of buffer if it is not null; always big-endian
+	ByteBuffer byteBuffer = null;
+	boolean bufferReferenced = false;
+	// buffer is the array of a ByteBuffer given to Unpacker.wrap(ByteBuffer)
+	// and must not be written
+	boolean bufferWrapped = false;
+
+	private ValueScanner scanner = null;
+	private ValueScanner skipper = null;
+	// offset where the current scan started, or -1
+	private int scanStart = -1;
+	// offset where the current scan stopped
+	private int scanEnd;
 
 	abstract boolean fill() throws IOException;
 
@@ -38,7 +49,8 @@ abstract class BufferedUnpackerImpl extends UnpackerImpl {
 		}
 
 		do {
-			int noffset = super.execute(buffer, offset, filled);
+			int noffset = executeBuffer();
+			markReferenced();
 			if(noffset <= offset) {
 				if(!fill()) {
 					return false;
@@ -55,6 +67,37 @@ abstract class BufferedUnpackerImpl extends UnpackerImpl {
 		return true;
 	}
 
+	final boolean isValueAvailable() throws UnpackException {
+		if(buffer == null && byteBuffer == null) {
+			return false;
+		}
+		if(scanStart != offset) {
+			scanner = newScanner(scanner);
+			scanStart = offset;
+			scanEnd = offset;
+		}
+		scanEnd = scanner.scan(buffer, byteBuffer, scanEnd, filled);
+		return scanner.isFinished();
+	}
+
+	final void resetScan() {
+		scanStart = -1;
+	}
+
+	final int executeBuffer() throws UnpackException {
+		if(byteBuffer != null) {
+			return super.execute(byteBuffer, offset, filled);
+		}
+		return super.execute(buffer, offset, filled);
+	}
+
+	final void markReferenced() {
+		if(rawReferenced) {
+			bufferReferenced = true;
+			rawReferenced = false;
+		}
+	}
+
 	private final void more(int require) throws IOException, UnpackException {
 		while(filled - offset < require) {
 			if(!fill()) {
@@ -95,7 +138,7 @@ abstract class BufferedUnpackerImpl extends UnpackerImpl {
 
 	final int unpackInt() throws IOException, MessageTypeException {
 		more(1);
-		int b = buffer[offset];
+		int b = BigEndian.get(buffer, byteBuffer, offset);
 		if((b & 0x80) == 0 || (b & 0xe0) == 0xe0) {  // Fixnum
 			advance(1);
 			return (int)b;
@@ -104,19 +147,15 @@ abstract class BufferedUnpackerImpl extends UnpackerImpl {
 		case 0xcc:  // unsigned int  8
 			more(2);
 			advance(2);
-			return (int)((short)(buffer[offset-1]) & 0xff);
+			return (int)((short)(BigEndian.get(buffer, byteBuffer, offset-1)) & 0xff);
 		case 0xcd:  // unsigned int 16
 			more(3);
-			castBuffer.rewind();
-			castBuffer.put(buffer, offset+1, 2);
 			advance(3);
-			return (int)((int)castBuffer.getShort(0) & 0xffff);
+			return BigEndian.readUnsignedShort(buffer, byteBuffer, offset-2);
 		case 0xce:  // unsigned int 32
 			more(5);
-			castBuffer.rewind();
-			castBuffer.put(buffer, offset+1, 4);
 			{
-				int o = castBuffer.getInt(0);
+				int o = BigEndian.readInt(buffer, byteBuffer, offset+1);
 				if(o < 0) {
 					throw new MessageTypeException();
 				}
@@ -125,10 +164,8 @@ abstract class BufferedUnpackerImpl extends UnpackerImpl {
 			}
 		case 0xcf:  // unsigned int 64
 			more(9);
-			castBuffer.rewind();
-			castBuffer.put(buffer, offset+1, 8);
 			{
-				long o = castBuffer.getLong(0);
+				long o = BigEndian.readLong(buffer, byteBuffer, offset+1);
 				if(o < 0 || o > 0x7fffffffL) {
 					throw new MessageTypeException();
 				}
@@ -138,25 +175,19 @@ abstract class BufferedUnpackerImpl extends UnpackerImpl {
 		case 0xd0:  // signed int  8
 			more(2);
 			advance(2);
-			return (int)buffer[offset-1];
+			return (int)BigEndian.get(buffer, byteBuffer, offset-1);
 		case 0xd1:  // signed int 16
 			more(3);
-			castBuffer.rewind();
-			castBuffer.put(buffer, offset+1, 2);
 			advance(3);
-			return (int)castBuffer.getShort(0);
+			return (int)BigEndian.readShort(buffer, byteBuffer, offset-2);
 		case 0xd2:  // signed int 32
-			more(4);
-			castBuffer.rewind();
-			castBuffer.put(buffer, offset+1, 4);
-			advance(4);
-			return (int)castBuffer.getInt(0);
+			more(5);
+			advance(5);
+			return BigEndian.readInt(buffer, byteBuffer, offset-4);
 		case 0xd3:  // signed int 64
 			more(9);
-			castBuffer.rewind();
-			castBuffer.put(buffer, offset+1, 8);
 			{
-				long o = castBuffer.getLong(0);
+				long o = BigEndian.readLong(buffer, byteBuffer, offset+1);
 				if(0x7fffffffL < o || o < -0x80000000L) {
 					throw new MessageTypeException();
 				}
@@ -170,7 +201,7 @@ abstract class BufferedUnpackerImpl extends UnpackerImpl {
 
 	final long unpackLong() throws IOException, MessageTypeException {
 		more(1);
-		int b = buffer[offset];
+		int b = BigEndian.get(buffer, byteBuffer, offset);
 		if((b & 0x80) == 0 || (b & 0xe0) == 0xe0) {  // Fixnum
 			advance(1);
 			return (long)b;
@@ -179,25 +210,19 @@ abstract class BufferedUnpackerImpl extends UnpackerImpl {
 		case 0xcc:  // unsigned int  8
 			more(2);
 			advance(2);
-			return (long)((short)(buffer[offset-1]) & 0xff);
+			return (long)((short)(BigEndian.get(buffer, byteBuffer, offset-1)) & 0xff);
 		case 0xcd:  // unsigned int 16
 			more(3);
-			castBuffer.rewind();
-			castBuffer.put(buffer, offset+1, 2);
 			advance(3);
-			return (long)((int)castBuffer.getShort(0) & 0xffff);
+			return (long)BigEndian.readUnsignedShort(buffer, byteBuffer, offset-2);
 		case 0xce:  // unsigned int 32
 			more(5);
-			castBuffer.rewind();
-			castBuffer.put(buffer, offset+1, 4);
 			advance(5);
-			return ((long)castBuffer.getInt(0) & 0xffffffffL);
+			return ((long)BigEndian.readInt(buffer, byteBuffer, offset-4) & 0xffffffffL);
 		case 0xcf:  // unsigned int 64
 			more(9);
-			castBuffer.rewind();
-			castBuffer.put(buffer, offset+1, 8);
 			{
-				long o = castBuffer.getLong(0);
+				long o = BigEndian.readLong(buffer, byteBuffer, offset+1);
 				if(o < 0) {
 					throw new MessageTypeException();
 				}
@@ -207,45 +232,169 @@ abstract class BufferedUnpackerImpl extends UnpackerImpl {
 		case 0xd0:  // signed int  8
 			more(2);
 			advance(2);
-			return (long)buffer[offset-1];
+			return (long)BigEndian.get(buffer, byteBuffer, offset-1);
 		case 0xd1:  // signed int 16
 			more(3);
-			castBuffer.rewind();
-			castBuffer.put(buffer, offset+1, 2);
 			advance(3);
-			return (long)castBuffer.getShort(0);
+			return (long)BigEndian.readShort(buffer, byteBuffer, offset-2);
 		case 0xd2:  // signed int 32
-			more(4);
-			castBuffer.rewind();
-			castBuffer.put(buffer, offset+1, 4);
-			advance(4);
-			return (long)castBuffer.getInt(0);
+			more(5);
+			advance(5);
+			return (long)BigEndian.readInt(buffer, byteBuffer, offset-4);
 		case 0xd3:  // signed int 64
 			more(9);
-			castBuffer.rewind();
-			castBuffer.put(buffer, offset+1, 8);
 			advance(9);
-			return (long)castBuffer.getLong(0);
+			return BigEndian.readLong(buffer, byteBuffer, offset-8);
 		default:
 			throw new MessageTypeException();
 		}
 	}
 
+	/**
+	 * Unpacks {@code len} elements of an array into {@code to}.
+	 * Elements that are entirely in the buffer are decoded in a loop
+	 * that doesn't check the buffer for each element; the others are
+	 * decoded by {@link unpackInt()}.
+	 */
+	final void unpackIntArray(int[] to, int off, int len) throws IOException, MessageTypeException {
+		int end = off + len;
+		while(off < end) {
+			if(byteBuffer == null) {
+				byte[] b = buffer;
+				int o = offset;
+				int safe = filled - 9;
+				while(off < end && o <= safe) {
+					int h = b[o];
+					if(h >= -32) {  // Fixnum
+						to[off++] = h;
+						o += 1;
+					} else if(h == (byte)0xcc) {
+						to[off++] = b[o+1] & 0xff;
+						o += 2;
+					} else if(h == (byte)0xcd) {
+						to[off++] = BigEndian.readUnsignedShort(b, o+1);
+						o += 3;
+					} else if(h == (byte)0xd0) {
+						to[off++] = b[o+1];
+						o += 2;
+					} else if(h == (byte)0xd1) {
+						to[off++] = BigEndian.readShort(b, o+1);
+						o += 3;
+					} else if(h == (byte)0xd2) {
+						to[off++] = BigEndian.readInt(b, o+1);
+						o += 5;
+					} else {
+						break;
+					}
+				}
+				offset = o;
+				if(off == end) {
+					break;
+				}
+			}
+			to[off++] = unpackInt();
+		}
+	}
+
+	final void unpackLongArray(long[] to, int off, int len) throws IOException, MessageTypeException {
+		int end = off + len;
+		while(off < end) {
+			if(byteBuffer == null) {
+				byte[] b = buffer;
+				int o = offset;
+				int safe = filled - 9;
+				while(off < end && o <= safe) {
+					int h = b[o];
+					if(h >= -32) {  // Fixnum
+						to[off++] = h;
+						o += 1;
+					} else if(h == (byte)0xcc) {
+						to[off++] = b[o+1] & 0xff;
+						o += 2;
+					} else if(h == (byte)0xcd) {
+						to[off++] = BigEndian.readUnsignedShort(b, o+1);
+						o += 3;
+					} else if(h == (byte)0xce) {
+						to[off++] = BigEndian.readInt(b, o+1) & 0xffffffffL;
+						o += 5;
+					} else if(h == (byte)0xd0) {
+						to[off++] = b[o+1];
+						o += 2;
+					} else if(h == (byte)0xd1) {
+						to[off++] = BigEndian.readShort(b, o+1);
+						o += 3;
+					} else if(h == (byte)0xd2) {
+						to[off++] = BigEndian.readInt(b, o+1);
+						o += 5;
+					} else if(h == (byte)0xd3) {
+						to[off++] = BigEndian.readLong(b, o+1);
+						o += 9;
+					} else {
+						break;
+					}
+				}
+				offset = o;
+				if(off == end) {
+					break;
+				}
+			}
+			to[off++] = unpackLong();
+		}
+	}
+
+	final void unpackFloatArray(float[] to, int off, int len) throws IOException, MessageTypeException {
+		int end = off + len;
+		while(off < end) {
+			if(byteBuffer == null) {
+				byte[] b = buffer;
+				int o = offset;
+				int safe = filled - 5;
+				while(off < end && o <= safe && b[o] == (byte)0xca) {
+					to[off++] = BigEndian.readFloat(b, o+1);
+					o += 5;
+				}
+				offset = o;
+				if(off == end) {
+					break;
+				}
+			}
+			to[off++] = unpackFloat();
+		}
+	}
+
+	final void unpackDoubleArray(double[] to, int off, int len) throws IOException, MessageTypeException {
+		int end = off + len;
+		while(off < end) {
+			if(byteBuffer == null) {
+				byte[] b = buffer;
+				int o = offset;
+				int safe = filled - 9;
+				while(off < end && o <= safe && b[o] == (byte)0xcb) {
+					to[off++] = BigEndian.readDouble(b, o+1);
+					o += 9;
+				}
+				offset = o;
+				if(off == end) {
+					break;
+				}
+			}
+			to[off++] = unpackDouble();
+		}
+	}
+
 	final BigInteger unpackBigInteger() throws IOException, MessageTypeException {
 		more(1);
-		int b = buffer[offset];
+		int b = BigEndian.get(buffer, byteBuffer, offset);
 		if((b & 0xff) != 0xcf) {
 			return BigInteger.valueOf(unpackLong());
 		}
 
 		// unsigned int 64
 		more(9);
-		castBuffer.rewind();
-		castBuffer.put(buffer, offset+1, 8);
+		long o = BigEndian.readLong(buffer, byteBuffer, offset+1);
 		advance(9);
-		long o = castBuffer.getLong(0);
 		if(o < 0) {
-			return new BigInteger(1, castBuffer.array());
+			return new BigInteger(1, BigEndian.copyOfRange(buffer, byteBuffer, offset-8, offset));
 		} else {
 			return BigInteger.valueOf(o);
 		}
@@ -253,21 +402,17 @@ abstract class BufferedUnpackerImpl extends UnpackerImpl {
 
 	final float unpackFloat() throws IOException, MessageTypeException {
 		more(1);
-		int b = buffer[offset];
+		int b = BigEndian.get(buffer, byteBuffer, offset);
 		switch(b & 0xff) {
 		case 0xca:  // float
 			more(5);
-			castBuffer.rewind();
-			castBuffer.put(buffer, offset+1, 4);
 			advance(5);
-			return castBuffer.getFloat(0);
+			return BigEndian.readFloat(buffer, byteBuffer, offset-4);
 		case 0xcb:  // double
 			more(9);
-			castBuffer.rewind();
-			castBuffer.put(buffer, offset+1, 8);
 			advance(9);
 			// FIXME overflow check
-			return (float)castBuffer.getDouble(0);
+			return (float)BigEndian.readDouble(buffer, byteBuffer, offset-8);
 		default:
 			throw new MessageTypeException();
 		}
@@ -275,20 +420,16 @@ abstract class BufferedUnpackerImpl extends UnpackerImpl {
 
 	final double unpackDouble() throws IOException, MessageTypeException {
 		more(1);
-		int b = buffer[offset];
+		int b = BigEndian.get(buffer, byteBuffer, offset);
 		switch(b & 0xff) {
 		case 0xca:  // float
 			more(5);
-			castBuffer.rewind();
-			castBuffer.put(buffer, offset+1, 4);
 			advance(5);
-			return (double)castBuffer.getFloat(0);
+			return (double)BigEndian.readFloat(buffer, byteBuffer, offset-4);
 		case 0xcb:  // double
 			more(9);
-			castBuffer.rewind();
-			castBuffer.put(buffer, offset+1, 8);
 			advance(9);
-			return castBuffer.getDouble(0);
+			return BigEndian.readDouble(buffer, byteBuffer, offset-8);
 		default:
 			throw new MessageTypeException();
 		}
@@ -296,7 +437,7 @@ abstract class BufferedUnpackerImpl extends UnpackerImpl {
 
 	final Object unpackNull() throws IOException, MessageTypeException {
 		more(1);
-		int b = buffer[offset] & 0xff;
+		int b = BigEndian.get(buffer, byteBuffer, offset) & 0xff;
 		if(b != 0xc0) {  // nil
 			throw new MessageTypeException();
 		}
@@ -308,7 +449,7 @@ abstract class BufferedUnpackerImpl extends UnpackerImpl {
 		if(!tryMore(1)) {
 			return false;
 		}
-		int b = buffer[offset] & 0xff;
+		int b = BigEndian.get(buffer, byteBuffer, offset) & 0xff;
 		if(b != 0xc0) {  // nil
 			return false;
 		}
@@ -318,7 +459,7 @@ abstract class BufferedUnpackerImpl extends UnpackerImpl {
 
 	final boolean unpackBoolean() throws IOException, MessageTypeException {
 		more(1);
-		int b = buffer[offset] & 0xff;
+		int b = BigEndian.get(buffer, byteBuffer, offset) & 0xff;
 		if(b == 0xc2) {  // false
 			advance(1);
 			return false;
@@ -332,25 +473,20 @@ abstract class BufferedUnpackerImpl extends UnpackerImpl {
 
 	final int unpackArray() throws IOException, MessageTypeException {
 		more(1);
-		int b = buffer[offset];
+		int b = BigEndian.get(buffer, byteBuffer, offset);
 		if((b & 0xf0) == 0x90) {  // FixArray
 			advance(1);
-			return (int)(b & 0x0f);
+			return checkArraySize(b & 0x0f);
 		}
 		switch(b & 0xff) {
 		case 0xdc:  // array 16
 			more(3);
-			castBuffer.rewind();
-			castBuffer.put(buffer, offset+1, 2);
 			advance(3);
-			return (int)castBuffer.getShort(0) & 0xffff;
+			return checkArraySize(BigEndian.readUnsignedShort(buffer, byteBuffer, offset-2));
 		case 0xdd:  // array 32
 			more(5);
-			castBuffer.rewind();
-			castBuffer.put(buffer, offset+1, 4);
 			advance(5);
-			// FIXME overflow check
-			return castBuffer.getInt(0) & 0x7fffffff;
+			return checkArraySize(BigEndian.readInt(buffer, byteBuffer, offset-4) & 0xffffffffL);
 		default:
 			throw new MessageTypeException();
 		}
@@ -358,25 +494,20 @@ abstract class BufferedUnpackerImpl extends UnpackerImpl {
 
 	final int unpackMap() throws IOException, MessageTypeException {
 		more(1);
-		int b = buffer[offset];
+		int b = BigEndian.get(buffer, byteBuffer, offset);
 		if((b & 0xf0) == 0x80) {  // FixMap
 			advance(1);
-			return (int)(b & 0x0f);
+			return checkMapSize(b & 0x0f);
 		}
 		switch(b & 0xff) {
 		case 0xde:  // map 16
 			more(3);
-			castBuffer.rewind();
-			castBuffer.put(buffer, offset+1, 2);
 			advance(3);
-			return (int)castBuffer.getShort(0) & 0xffff;
+			return checkMapSize(BigEndian.readUnsignedShort(buffer, byteBuffer, offset-2));
 		case 0xdf:  // map 32
 			more(5);
-			castBuffer.rewind();
-			castBuffer.put(buffer, offset+1, 4);
 			advance(5);
-			// FIXME overflow check
-			return castBuffer.getInt(0) & 0x7fffffff;
+			return checkMapSize(BigEndian.readInt(buffer, byteBuffer, offset-4) & 0xffffffffL);
 		default:
 			throw new MessageTypeException();
 		}
@@ -384,25 +515,20 @@ abstract class BufferedUnpackerImpl extends UnpackerImpl {
 
 	final int unpackRaw() throws IOException, MessageTypeException {
 		more(1);
-		int b = buffer[offset];
+		int b = BigEndian.get(buffer, byteBuffer, offset);
 		if((b & 0xe0) == 0xa0) {  // FixRaw
 			advance(1);
-			return (int)(b & 0x1f);
+			return checkRawSize(b & 0x1f);
 		}
 		switch(b & 0xff) {
 		case 0xda:  // raw 16
 			more(3);
-			castBuffer.rewind();
-			castBuffer.put(buffer, offset+1, 2);
 			advance(3);
-			return (int)castBuffer.getShort(0) & 0xffff;
+			return checkRawSize(BigEndian.readUnsignedShort(buffer, byteBuffer, offset-2));
 		case 0xdb:  // raw 32
 			more(5);
-			castBuffer.rewind();
-			castBuffer.put(buffer, offset+1, 4);
 			advance(5);
-			// FIXME overflow check
-			return castBuffer.getInt(0) & 0x7fffffff;
+			return checkRawSize(BigEndian.readInt(buffer, byteBuffer, offset-4) & 0xffffffffL);
 		default:
 			throw new MessageTypeException();
 		}
@@ -411,7 +537,7 @@ abstract class BufferedUnpackerImpl extends UnpackerImpl {
 	final byte[] unpackRawBody(int length) throws IOException {
 		more(length);
 		byte[] bytes = new byte[length];
-		System.arraycopy(buffer, offset, bytes, 0, length);
+		BigEndian.copy(buffer, byteBuffer, offset, bytes, 0, length);
 		advance(length);
 		return bytes;
 	}
@@ -423,11 +549,17 @@ abstract class BufferedUnpackerImpl extends UnpackerImpl {
 	}
 
 	final ByteBuffer unpackByteBuffer() throws IOException, MessageTypeException {
-		// TODO zero-copy buffer
 		int length = unpackRaw();
 		more(length);
-		ByteBuffer buf = ByteBuffer.wrap(buffer, offset, length);
-		bufferReferenced = true;  // TODO fix magical code
+		ByteBuffer buf;
+		if(byteBuffer != null) {
+			buf = byteBuffer.duplicate();
+			buf.limit(offset + length);
+			buf.position(offset);
+		} else {
+			buf = ByteBuffer.wrap(buffer, offset, length);
+		}
+		bufferReferenced = true;
 		advance(length);
 		return buf;
 	}
@@ -437,7 +569,11 @@ abstract class BufferedUnpackerImpl extends UnpackerImpl {
 		more(length);
 		String s;
 		try {
-			s = new String(buffer, offset, length, "UTF-8");
+			if(byteBuffer != null) {
+				s = new String(BigEndian.copyOfRange(buffer, byteBuffer, offset, offset+length), "UTF-8");
+			} else {
+				s = new String(buffer, offset, length, "UTF-8");
+			}
 		} catch (Exception e) {
 			throw new MessageTypeException();
 		}
@@ -445,6 +581,28 @@ abstract class BufferedUnpackerImpl extends UnpackerImpl {
 		return s;
 	}
 
+	final void skipValue() throws IOException, UnpackException {
+		skipper = newScanner(skipper);
+		while(true) {
+			offset = skipper.scan(buffer, byteBuffer, offset, filled);
+			if(skipper.isFinished()) {
+				return;
+			}
+			if(!fill()) {
+				throw new UnpackException("insufficient buffer");
+			}
+		}
+	}
+
+	private ValueScanner newScanner(ValueScanner scanner) {
+		if(scanner == null || scanner.getVOHelper() != getVOHelper()) {
+			return new ValueScanner(getVOHelper());
+		}
+		scanner.reset();
+		return scanner;
+	}
+
+
 	final MessagePackObject unpackObject() throws IOException {
 		UnpackResult result = new UnpackResult();
 		if(!next(result)) {
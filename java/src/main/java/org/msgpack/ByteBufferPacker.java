@@ -0,0 +1,188 @@
+//
+// MessagePack for Java
+//
+// Copyright (C) 2009-2010 FURUHASHI Sadayuki
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.msgpack;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ByteBufferPacker serializes objects into ByteBuffers.
+ * When the current buffer is full, a new buffer is allocated and chained.
+ * Use {@link getBuffers()} to get the filled buffers, for example for
+ * gathering writes to a channel.
+ *
+ * <pre>
+ * ByteBufferPacker pk = new ByteBufferPacker(ByteBuffer.allocateDirect(8192));
+ * pk.pack(obj);
+ * socketChannel.write(pk.getBuffers());
+ * </pre>
+ */
+public class ByteBufferPacker extends Packer {
+	private static final int DEFAULT_CHUNK_SIZE = 8*1024;
+
+	private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+	private final ByteBuffer first;
+	private final int firstStart;
+	private final int chunkSize;
+	private final boolean direct;
+	private ByteBuffer current;
+
+	/**
+	 * Constructs a packer that allocates heap buffers.
+	 */
+	public ByteBufferPacker() {
+		this(ByteBuffer.allocate(DEFAULT_CHUNK_SIZE));
+	}
+
+	/**
+	 * Constructs a packer that writes into the specified buffer first.
+	 * Following buffers have the same capacity and are direct if the
+	 * specified buffer is direct.
+	 */
+	public ByteBufferPacker(ByteBuffer buffer) {
+		this(buffer, buffer.capacity());
+	}
+
+	/**
+	 * Constructs a packer that writes into the specified buffer from its
+	 * position. The position of the buffer is advanced as bytes are written.
+	 * @param chunkSize capacity of buffers allocated when the buffer is full
+	 */
+	public ByteBufferPacker(ByteBuffer buffer, int chunkSize) {
+		super(null);
+		this.first = buffer;
+		this.firstStart = buffer.position();
+		this.chunkSize = chunkSize < 16 ? 16 : chunkSize;
+		this.direct = buffer.isDirect();
+		this.current = buffer;
+		chunks.add(buffer);
+	}
+
+	@Override
+	protected void writeByte(int b) throws IOException {
+		if(!current.hasRemaining()) {
+			nextChunk();
+		}
+		current.put((byte)b);
+	}
+
+	@Override
+	protected void writeBytes(byte[] b, int off, int len) throws IOException {
+		while(true) {
+			int n = current.remaining();
+			if(n >= len) {
+				current.put(b, off, len);
+				return;
+			}
+			current.put(b, off, n);
+			off += n;
+			len -= n;
+			nextChunk();
+		}
+	}
+
+	@Override
+	protected void writeString(String s, int length) throws IOException {
+		if(current.hasArray() && current.remaining() >= length) {
+			int off = current.arrayOffset() + current.position();
+			UTF8.encode(s, current.array(), off);
+			current.position(current.position() + length);
+			return;
+		}
+		super.writeString(s, length);
+	}
+
+	@Override
+	protected void writeByteBuffer(ByteBuffer bb) throws IOException {
+		ByteBuffer src = bb.duplicate();
+		int limit = src.limit();
+		while(true) {
+			int n = current.remaining();
+			if(n >= src.remaining()) {
+				current.put(src);
+				return;
+			}
+			src.limit(src.position() + n);
+			current.put(src);
+			src.limit(limit);
+			nextChunk();
+		}
+	}
+
+	private void nextChunk() {
+		current = direct ? ByteBuffer.allocateDirect(chunkSize) : ByteBuffer.allocate(chunkSize);
+		chunks.add(current);
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	/**
+	 * Returns the filled part of the buffers.
+	 * The returned buffers share their contents with the internal buffers.
+	 */
+	public ByteBuffer[] getBuffers() {
+		ByteBuffer[] bufs = new ByteBuffer[chunks.size()];
+		for(int i=0; i < bufs.length; i++) {
+			ByteBuffer dup = chunks.get(i).duplicate();
+			dup.limit(dup.position());
+			dup.position(i == 0 ? firstStart : 0);
+			bufs[i] = dup;
+		}
+		return bufs;
+	}
+
+	/**
+	 * Returns the number of serialized bytes.
+	 */
+	public int getSize() {
+		int size = first.position() - firstStart;
+		for(int i=1; i < chunks.size(); i++) {
+			size += chunks.get(i).position();
+		}
+		return size;
+	}
+
+	/**
+	 * Returns a copy of the serialized bytes.
+	 */
+	public byte[] toByteArray() {
+		byte[] bytes = new byte[getSize()];
+		int off = 0;
+		for(ByteBuffer buf : getBuffers()) {
+			int n = buf.remaining();
+			buf.get(bytes, off, n);
+			off += n;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Discards the serialized bytes and the chained buffers.
+	 * The packer writes into the first buffer again.
+	 */
+	public void reset() {
+		first.position(firstStart);
+		chunks.clear();
+		chunks.add(first);
+		current = first;
+	}
+}
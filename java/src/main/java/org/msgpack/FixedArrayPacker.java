@@ -0,0 +1,89 @@
+//
+// MessagePack for Java
+//
+// Copyright (C) 2009-2010 FURUHASHI Sadayuki
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.msgpack;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Packer that writes into a byte array given by the caller.
+ * Throws BufferOverflowException if the array doesn't have enough space.
+ */
+final class FixedArrayPacker extends Packer {
+	private byte[] buffer;
+	private int position;
+
+	FixedArrayPacker() {
+		super(null);
+	}
+
+	void wrap(byte[] buffer, int offset) {
+		if(offset < 0 || offset > buffer.length) {
+			throw new IndexOutOfBoundsException();
+		}
+		this.buffer = buffer;
+		this.position = offset;
+	}
+
+	void release() {
+		this.buffer = null;
+	}
+
+	int getPosition() {
+		return position;
+	}
+
+	@Override
+	protected void writeByte(int b) throws IOException {
+		if(position >= buffer.length) {
+			throw new BufferOverflowException();
+		}
+		buffer[position++] = (byte)b;
+	}
+
+	@Override
+	protected void writeBytes(byte[] b, int off, int len) throws IOException {
+		if(buffer.length - position < len) {
+			throw new BufferOverflowException();
+		}
+		System.arraycopy(b, off, buffer, position, len);
+		position += len;
+	}
+
+	@Override
+	protected void writeString(String s, int length) throws IOException {
+		if(buffer.length - position < length) {
+			throw new BufferOverflowException();
+		}
+		position = UTF8.encode(s, buffer, position);
+	}
+
+	@Override
+	protected void writeByteBuffer(ByteBuffer bb) throws IOException {
+		int len = bb.remaining();
+		if(buffer.length - position < len) {
+			throw new BufferOverflowException();
+		}
+		bb.duplicate().get(buffer, position, len);
+		position += len;
+	}
+
+	@Override
+	public void flush() { }
+}
@@ -0,0 +1,452 @@
+//
+// MessagePack for Java
+//
+// Copyright (C) 2009-2010 FURUHASHI Sadayuki
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.msgpack;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+
+/**
+ * MappedLogPacker appends records to a memory-mapped file.
+ * A record is one object written by pack methods and completed by
+ * {@link endRecord()}; {@link append(Object)} does both.
+ *
+ * The file is pre-allocated and mapped in windows of the specified
+ * capacity, so appending a record doesn't call the operating system.
+ * Records are forced to the disk by {@link sync()}, or when a record is
+ * completed after {@link setSyncInterval(int, long)} records or
+ * milliseconds. There is no background thread: if the writer goes idle,
+ * the last records are forced only by the next record, {@link sync()}
+ * or {@link close()}.
+ * When an existing file is opened, it is scanned to the last valid record
+ * and the rest is discarded. With framing, every record has its length
+ * and CRC32 so every intact record is recovered; without framing,
+ * records are recovered up to the last sync.
+ *
+ * <pre>
+ * MappedLogPacker log = new MappedLogPacker(new File("events.log"));
+ * log.setSyncInterval(100, 10);
+ * log.append(event);
+ * log.close();
+ *
+ * Iterator&lt;MessagePackObject&gt; it = MappedLogPacker.read(new File("events.log"));
+ * </pre>
+ *
+ * Files are limited to 2GB.
+ */
+public class MappedLogPacker extends Packer {
+	// file:
+	// +-----------+------------+--------+--------+-----+------------------+
+	// | magic (4) | synced (4) | record | record | ... | zero-filled  ... |
+	// +-----------+------------+--------+--------+-----+------------------+
+	// synced is used only without framing
+	//
+	// framed record:
+	// +------------+-----------+--------+
+	// | length (4) | CRC32 (4) | object |
+	// +------------+-----------+--------+
+	static final int MAGIC = 0x4d504c00;
+	static final int FLAG_FRAMED = 0x01;
+	static final int HEADER_SIZE = 8;
+	static final int FRAME_HEADER_SIZE = 8;
+
+	private static final int DEFAULT_CAPACITY = 16*1024*1024;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final boolean framed;
+	private final int capacity;
+	private final CRC32 crc = new CRC32();
+	private final MappedByteBuffer header;
+	// the window being written and the file position of its first byte
+	private MappedByteBuffer window;
+	private int windowStart;
+	// previous window with records that are not forced yet
+	private MappedByteBuffer unforced;
+
+	// end of the last complete record
+	private int end;
+	private int recordStart = -1;
+	private int syncRecords = 128;
+	private long syncMillis = 10;
+	private int unsynced = 0;
+	private long lastSync;
+
+	/**
+	 * Calls {@link MappedLogPacker(file, DEFAULT_CAPACITY, true)}.
+	 */
+	public MappedLogPacker(File file) throws IOException {
+		this(file, DEFAULT_CAPACITY, true);
+	}
+
+	/**
+	 * Opens or creates the log.
+	 * @param capacity size of a mapped window; the file is extended by it
+	 * @param framed whether records of a new file have length and CRC32;
+	 *        an existing file keeps its own setting
+	 */
+	public MappedLogPacker(File file, int capacity, boolean framed) throws IOException {
+		super(null);
+		this.capacity = capacity < 64 ? 64 : capacity;
+		this.file = new RandomAccessFile(file, "rw");
+		this.channel = this.file.getChannel();
+		try {
+			int recovered = HEADER_SIZE;
+			boolean created = true;
+			long size = channel.size();
+			if(size > Integer.MAX_VALUE) {
+				throw new IOException("record log is too large");
+			}
+			if(size > 0) {
+				RecordIterator it = new RecordIterator(
+						channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+				if(!it.empty) {
+					while(it.hasNext()) {
+						it.next();
+					}
+					created = false;
+					framed = it.framed;
+					recovered = it.getPosition();
+				}
+				// discard broken records; extended space is zero-filled
+				channel.truncate(recovered);
+			}
+			this.framed = framed;
+			header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+			if(created) {
+				// make the file a valid log before extending it
+				header.putInt(0, MAGIC | (framed ? FLAG_FRAMED : 0));
+				header.putInt(4, HEADER_SIZE);
+				header.force();
+			}
+			end = recovered;
+			mapWindow(recovered, this.capacity);
+			if(!framed && header.getInt(4) != end) {
+				header.putInt(4, end);
+				header.force();
+			}
+			lastSync = System.currentTimeMillis();
+		} catch (IOException e) {
+			this.file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the records of the log.
+	 * Raw objects reference the mapping of the file.
+	 */
+	public static Iterator<MessagePackObject> read(File file) throws IOException {
+		RandomAccessFile f = new RandomAccessFile(file, "r");
+		try {
+			long size = f.length();
+			if(size > Integer.MAX_VALUE) {
+				throw new IOException("record log is too large");
+			}
+			// the mapping stays valid after the file is closed
+			return new RecordIterator(
+					f.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size));
+		} finally {
+			f.close();
+		}
+	}
+
+	/**
+	 * Forces records once per the specified number of records or
+	 * milliseconds, whichever comes first. Both are checked when a record
+	 * is completed. Zero disables each condition.
+	 * The default is 128 records or 10 milliseconds.
+	 */
+	public void setSyncInterval(int records, long millis) {
+		this.syncRecords = records;
+		this.syncMillis = millis;
+	}
+
+	public boolean isFramed() {
+		return framed;
+	}
+
+	/**
+	 * Returns the size of the file used by complete records.
+	 */
+	public int getSize() {
+		return end;
+	}
+
+	/**
+	 * Serializes the object as one record.
+	 */
+	public MappedLogPacker append(Object o) throws IOException {
+		try {
+			pack(o);
+		} catch (IOException e) {
+			cancelRecord();
+			throw e;
+		} catch (RuntimeException e) {
+			cancelRecord();
+			throw e;
+		}
+		endRecord();
+		return this;
+	}
+
+	/**
+	 * Completes the record written by pack methods.
+	 */
+	public void endRecord() throws IOException {
+		if(recordStart < 0) {
+			return;
+		}
+		int pos = windowStart + window.position();
+		if(framed) {
+			int off = recordStart - windowStart;
+			window.putInt(off + 4, (int)crc.getValue());
+			// the length is written last; zero means an incomplete record
+			window.putInt(off, pos - recordStart - FRAME_HEADER_SIZE);
+		}
+		end = pos;
+		recordStart = -1;
+		unsynced++;
+		if((syncRecords > 0 && unsynced >= syncRecords) ||
+				(syncMillis > 0 && System.currentTimeMillis() - lastSync >= syncMillis)) {
+			sync();
+		}
+	}
+
+	/**
+	 * Discards the record written by pack methods.
+	 */
+	public void cancelRecord() {
+		if(recordStart < 0) {
+			return;
+		}
+		int pos = window.position();
+		for(int i=end - windowStart; i < pos; i++) {
+			window.put(i, (byte)0);
+		}
+		window.position(end - windowStart);
+		recordStart = -1;
+	}
+
+	/**
+	 * Forces complete records to the disk.
+	 */
+	public void sync() throws IOException {
+		if(unforced != null) {
+			unforced.force();
+			unforced = null;
+		}
+		window.force();
+		if(!framed) {
+			// recovery of unframed logs trusts records up to here
+			header.putInt(4, end);
+			header.force();
+		}
+		unsynced = 0;
+		lastSync = System.currentTimeMillis();
+	}
+
+	/**
+	 * Does nothing; written bytes are visible to other processes
+	 * without flushing. Use {@link sync()} to force them to the disk.
+	 */
+	@Override
+	public void flush() {
+	}
+
+	/**
+	 * Discards the incomplete record, forces complete records and
+	 * truncates the pre-allocated space.
+	 */
+	public void close() throws IOException {
+		cancelRecord();
+		sync();
+		channel.truncate(end);
+		file.close();
+	}
+
+	@Override
+	protected void writeByte(int b) throws IOException {
+		ensure(1);
+		window.put((byte)b);
+		if(framed) {
+			crc.update(b);
+		}
+	}
+
+	@Override
+	protected void writeBytes(byte[] b, int off, int len) throws IOException {
+		ensure(len);
+		window.put(b, off, len);
+		if(framed) {
+			crc.update(b, off, len);
+		}
+	}
+
+	private void ensure(int require) throws IOException {
+		if(recordStart < 0) {
+			recordStart = windowStart + window.position();
+			if(framed) {
+				require += FRAME_HEADER_SIZE;
+			}
+			crc.reset();
+		}
+		if(window.remaining() < require) {
+			// map the next window from the start of the record so that
+			// the frame header and the object are in the same window
+			int used = windowStart + window.position() - recordStart;
+			if(end > windowStart) {
+				if(unforced != null) {
+					unforced.force();
+				}
+				unforced = window;
+			}
+			mapWindow(recordStart, Math.max(capacity, (long)used + require));
+			window.position(used);
+		}
+		if(framed && windowStart + window.position() == recordStart) {
+			window.position(window.position() + FRAME_HEADER_SIZE);
+		}
+	}
+
+	private void mapWindow(int start, long size) throws IOException {
+		if(start + size > Integer.MAX_VALUE) {
+			throw new IOException("record log is full");
+		}
+		if(file.length() < start + size) {
+			file.setLength(start + size);
+		}
+		window = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+		windowStart = start;
+	}
+
+	static int crc32(ByteBuffer buf, int off, int len) {
+		CRC32 crc = new CRC32();
+		byte[] b = new byte[Math.min(len, 8*1024)];
+		ByteBuffer src = buf.duplicate();
+		src.limit(off + len);
+		src.position(off);
+		while(src.hasRemaining()) {
+			int n = Math.min(src.remaining(), b.length);
+			src.get(b, 0, n);
+			crc.update(b, 0, n);
+		}
+		return (int)crc.getValue();
+	}
+
+	/**
+	 * Deserializes records with UnpackerImpl until a broken or
+	 * incomplete record.
+	 */
+	static final class RecordIterator implements Iterator<MessagePackObject> {
+		private final ByteBuffer buffer;
+		private final UnpackerImpl impl = new UnpackerImpl();
+		// true if the file has no header yet
+		final boolean empty;
+		final boolean framed;
+		private final int limit;
+		// end of the last valid record
+		private int position = HEADER_SIZE;
+		private MessagePackObject next;
+
+		RecordIterator(ByteBuffer buffer) throws IOException {
+			this.buffer = buffer;
+			if(buffer.capacity() < HEADER_SIZE ||
+					(buffer.getInt(0) == 0 && buffer.getInt(4) == 0)) {
+				// the writer crashed before writing the header
+				this.empty = true;
+				this.framed = false;
+				this.limit = HEADER_SIZE;
+				return;
+			}
+			if((buffer.getInt(0) & ~FLAG_FRAMED) != MAGIC) {
+				throw new IOException("not a record log");
+			}
+			this.empty = false;
+			this.framed = (buffer.getInt(0) & FLAG_FRAMED) != 0;
+			impl.setZeroCopy(true);
+			impl.setDepthLimit(Integer.MAX_VALUE);
+			if(framed) {
+				// intact records after the last sync are valid
+				this.limit = buffer.capacity();
+			} else {
+				int synced = buffer.getInt(4);
+				this.limit = (synced < HEADER_SIZE || synced > buffer.capacity()) ?
+					HEADER_SIZE : synced;
+			}
+		}
+
+		int getPosition() {
+			return position;
+		}
+
+		public boolean hasNext() {
+			if(next != null) {
+				return true;
+			}
+			int start = position;
+			int bodyEnd = limit;
+			if(framed) {
+				if(limit - position < FRAME_HEADER_SIZE) {
+					return false;
+				}
+				int length = buffer.getInt(position);
+				start = position + FRAME_HEADER_SIZE;
+				if(length <= 0 || length > limit - start) {
+					return false;
+				}
+				bodyEnd = start + length;
+				if(buffer.getInt(position + 4) != crc32(buffer, start, length)) {
+					return false;
+				}
+			}
+			impl.reset();
+			int n;
+			try {
+				n = impl.execute(buffer, start, bodyEnd);
+			} catch (UnpackException e) {
+				return false;
+			}
+			if(!impl.isFinished() || (framed && n != bodyEnd)) {
+				return false;
+			}
+			next = impl.getData();
+			position = n;
+			return true;
+		}
+
+		public MessagePackObject next() {
+			if(!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			MessagePackObject obj = next;
+			next = null;
+			return obj;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -19,130 +19,269 @@ package org.msgpack;
 
 import java.io.OutputStream;
 import java.io.InputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.BufferOverflowException;
+import org.msgpack.template.AnyTemplate;
 import org.msgpack.template.TemplateRegistry;
 import org.msgpack.template.TemplateBuilder;
 import org.msgpack.template.FieldList;
 
 public class MessagePack {
+	// buffers larger than this are not kept by the per-thread packers and unpackers
+	private static final int MAX_RETAINED_BUFFER_SIZE = 64*1024;
+
+	private static final byte[] EMPTY_BUFFER = new byte[0];
+
+	// per-thread instances; null while in use by a reentrant call
+	private static final ThreadLocal<BufferedPacker> localPacker = new ThreadLocal<BufferedPacker>();
+	private static final ThreadLocal<FixedArrayPacker> localArrayPacker = new ThreadLocal<FixedArrayPacker>();
+	private static final ThreadLocal<Unpacker> localUnpacker = new ThreadLocal<Unpacker>();
+	private static final ThreadLocal<Unpacker> localStreamUnpacker = new ThreadLocal<Unpacker>();
+
 	public static byte[] pack(Object obj) {
-		ByteArrayOutputStream out = new ByteArrayOutputStream();
-		try {
-			new Packer(out).pack(obj);
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		}
-		return out.toByteArray();
+		return pack(obj, lookupTemplate(obj));
 	}
 
 	public static void pack(OutputStream out, Object obj) throws IOException {
-		new Packer(out).pack(obj);
+		pack(out, obj, lookupTemplate(obj));
 	}
 
 	public static byte[] pack(Object obj, Template tmpl) throws MessageTypeException {
-		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int size = Packer.knownSizeOf(obj, tmpl);
+		if(size != MessageSizer.UNKNOWN) {
+			// allocate the exact size to avoid growing and copying the buffer
+			byte[] buffer = new byte[size];
+			int n;
+			try {
+				n = pack(obj, tmpl, buffer, 0);
+			} catch (BufferOverflowException e) {
+				n = -1;
+			}
+			if(n != size) {
+				throw new MessageTypeException("packed size differs from MessageSizer.packedSize: " + size);
+			}
+			return buffer;
+		}
+		BufferedPacker pk = acquirePacker();
 		try {
-			new Packer(out).pack(obj, tmpl);
+			pk.pack(obj, tmpl);
+			return pk.toByteArray();
 		} catch (IOException e) {
 			throw new RuntimeException(e);
+		} finally {
+			releasePacker(pk);
 		}
-		return out.toByteArray();
 	}
 
 	public static void pack(OutputStream out, Object obj, Template tmpl) throws IOException, MessageTypeException {
-		new Packer(out).pack(obj, tmpl);
+		BufferedPacker pk = acquirePacker();
+		// stream through the pooled buffer instead of growing it to the object size
+		pk.out = out;
+		try {
+			pk.pack(obj, tmpl);
+			pk.flushBuffer();
+		} finally {
+			pk.out = null;
+			releasePacker(pk);
+		}
+	}
+
+	/**
+	 * Serializes the object into the specified array.
+	 * @return the number of bytes written
+	 * @throws java.nio.BufferOverflowException the array doesn't have enough space
+	 */
+	public static int pack(Object obj, byte[] dst, int off) throws MessageTypeException {
+		return pack(obj, lookupTemplate(obj), dst, off);
+	}
+
+	public static int pack(Object obj, Template tmpl, byte[] dst, int off) throws MessageTypeException {
+		FixedArrayPacker pk = localArrayPacker.get();
+		if(pk == null) {
+			pk = new FixedArrayPacker();
+		} else {
+			localArrayPacker.set(null);
+		}
+		try {
+			pk.wrap(dst, off);
+			pk.pack(obj, tmpl);
+			return pk.getPosition() - off;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			pk.release();
+			localArrayPacker.set(pk);
+		}
 	}
 
 
 	public static MessagePackObject unpack(byte[] buffer) throws MessageTypeException {
-		Unpacker pac = new Unpacker();
-		pac.wrap(buffer);
+		Unpacker pac = acquireUnpacker(buffer);
 		try {
 			return pac.unpackObject();
 		} catch (IOException e) {
 			throw new RuntimeException(e);
+		} finally {
+			releaseUnpacker(pac);
 		}
 	}
 
 	public static Object unpack(byte[] buffer, Template tmpl) throws MessageTypeException {
-		Unpacker pac = new Unpacker();
-		pac.wrap(buffer);
+		Unpacker pac = acquireUnpacker(buffer);
 		try {
 			return pac.unpack(tmpl);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
+		} finally {
+			releaseUnpacker(pac);
 		}
 	}
 
 	public static <T> T unpack(byte[] buffer, Template tmpl, T to) throws MessageTypeException {
-		Unpacker pac = new Unpacker();
-		pac.wrap(buffer);
+		Unpacker pac = acquireUnpacker(buffer);
 		try {
 			return pac.unpack(tmpl, to);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
+		} finally {
+			releaseUnpacker(pac);
 		}
 	}
 
 	public static <T> T unpack(byte[] buffer, Class<T> klass) throws MessageTypeException {
-		Unpacker pac = new Unpacker();
-		pac.wrap(buffer);
+		Unpacker pac = acquireUnpacker(buffer);
 		try {
 			return pac.unpack(klass);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
+		} finally {
+			releaseUnpacker(pac);
 		}
 	}
 
 	public static <T> T unpack(byte[] buffer, T to) throws MessageTypeException {
-		Unpacker pac = new Unpacker();
-		pac.wrap(buffer);
+		Unpacker pac = acquireUnpacker(buffer);
 		try {
 			return pac.unpack(to);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
+		} finally {
+			releaseUnpacker(pac);
 		}
 	}
 
 	public static MessagePackObject unpack(InputStream in) throws IOException {
-		Unpacker pac = new Unpacker(in);
-		return pac.unpackObject();
+		Unpacker pac = acquireUnpacker(in);
+		try {
+			return pac.unpackObject();
+		} finally {
+			releaseUnpacker(pac);
+		}
 	}
 
 	public static Object unpack(InputStream in, Template tmpl) throws IOException, MessageTypeException {
-		Unpacker pac = new Unpacker(in);
+		Unpacker pac = acquireUnpacker(in);
 		try {
 			return pac.unpack(tmpl);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
+		} finally {
+			releaseUnpacker(pac);
 		}
 	}
 
 	public static <T> T unpack(InputStream in, Template tmpl, T to) throws IOException, MessageTypeException {
-		Unpacker pac = new Unpacker(in);
+		Unpacker pac = acquireUnpacker(in);
 		try {
 			return pac.unpack(tmpl, to);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
+		} finally {
+			releaseUnpacker(pac);
 		}
 	}
 
 	public static <T> T unpack(InputStream in, Class<T> klass) throws IOException, MessageTypeException {
-		Unpacker pac = new Unpacker(in);
+		Unpacker pac = acquireUnpacker(in);
 		try {
 			return pac.unpack(klass);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
+		} finally {
+			releaseUnpacker(pac);
 		}
 	}
 
 	public static <T> T unpack(InputStream in, T to) throws IOException, MessageTypeException {
-		Unpacker pac = new Unpacker(in);
+		Unpacker pac = acquireUnpacker(in);
 		try {
 			return pac.unpack(to);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
+		} finally {
+			releaseUnpacker(pac);
+		}
+	}
+
+	private static Template lookupTemplate(Object obj) {
+		if(obj == null) {
+			return AnyTemplate.getInstance();
+		}
+		return TemplateRegistry.lookup(obj.getClass());
+	}
+
+	private static BufferedPacker acquirePacker() {
+		BufferedPacker pk = localPacker.get();
+		if(pk == null) {
+			return new BufferedPacker();
+		}
+		localPacker.set(null);
+		return pk;
+	}
+
+	private static void releasePacker(BufferedPacker pk) {
+		if(pk.getBuffer().length <= MAX_RETAINED_BUFFER_SIZE) {
+			pk.reset();
+			localPacker.set(pk);
+		}
+	}
+
+	private static Unpacker acquireUnpacker(byte[] buffer) {
+		Unpacker pac = localUnpacker.get();
+		if(pac == null) {
+			pac = new Unpacker();
+		} else {
+			localUnpacker.set(null);
+		}
+		pac.wrap(buffer);
+		return pac;
+	}
+
+	private static Unpacker acquireUnpacker(InputStream in) {
+		Unpacker pac = localStreamUnpacker.get();
+		if(pac == null) {
+			pac = new Unpacker();
+			pac.setMaxRetainedBufferSize(MAX_RETAINED_BUFFER_SIZE);
+		} else {
+			localStreamUnpacker.set(null);
+		}
+		pac.setStream(in);
+		return pac;
+	}
+
+	private static void releaseUnpacker(Unpacker pac) {
+		pac.reset();
+		if(pac.getStream() == null) {
+			// don't keep the caller's buffer
+			pac.wrap(EMPTY_BUFFER);
+			localUnpacker.set(pac);
+			return;
+		}
+		pac.setStream(null);
+		pac.removeNonparsedBuffer();
+		byte[] buffer = pac.getBuffer();
+		if(buffer == null || buffer.length <= MAX_RETAINED_BUFFER_SIZE) {
+			localStreamUnpacker.set(pac);
 		}
 	}
 
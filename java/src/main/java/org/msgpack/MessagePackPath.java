@@ -0,0 +1,513 @@
+//
+// MessagePack for Java
+//
+// Copyright (C) 2009-2010 FURUHASHI Sadayuki
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.msgpack;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.io.UnsupportedEncodingException;
+import org.msgpack.object.RawType;
+
+/**
+ * MessagePackPath selects a nested value from serialized bytes without
+ * deserializing the whole object.
+ * Siblings of the selected value are skipped by their headers.
+ * <pre>
+ * MessagePackPath path = MessagePackPath.compile("[3].uid");
+ * long uid = path.getLong(bytes, 0, bytes.length);
+ * </pre>
+ *
+ * A path is a sequence of array indexes ({@code [3]}) and map keys
+ * ({@code uid}) separated by dots. Map keys are compared with raw keys
+ * as UTF-8 bytes. The empty path selects the whole value.
+ *
+ * Value objects (0xd7) are skipped with the VOHelper of the Unpacker
+ * passed to {@link find(Unpacker)} or {@link get(Unpacker)}; the other
+ * methods throw UnpackException if they have to skip one.
+ */
+public class MessagePackPath {
+	private final String path;
+	// keys[i] is null if the i-th step is an array index
+	private final byte[][] keys;
+	private final int[] indexes;
+
+	private MessagePackPath(String path, byte[][] keys, int[] indexes) {
+		this.path = path;
+		this.keys = keys;
+		this.indexes = indexes;
+	}
+
+	public static MessagePackPath compile(String path) {
+		List<byte[]> keys = new ArrayList<byte[]>();
+		List<Integer> indexes = new ArrayList<Integer>();
+
+		int i = 0;
+		int n = path.length();
+		while(i < n) {
+			char c = path.charAt(i);
+			if(c == '[') {
+				int close = path.indexOf(']', i);
+				if(close < 0) {
+					throw new IllegalArgumentException("unclosed '[' in path: "+path);
+				}
+				int index;
+				try {
+					index = Integer.parseInt(path.substring(i+1, close));
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("invalid index in path: "+path);
+				}
+				if(index < 0) {
+					throw new IllegalArgumentException("invalid index in path: "+path);
+				}
+				keys.add(null);
+				indexes.add(index);
+				i = close + 1;
+				continue;
+			}
+
+			if(c == '.') {
+				if(i == 0) {
+					throw new IllegalArgumentException("invalid path: "+path);
+				}
+				++i;
+			}
+			int end = i;
+			while(end < n && path.charAt(end) != '.' && path.charAt(end) != '[') {
+				++end;
+			}
+			if(end == i) {
+				throw new IllegalArgumentException("empty key in path: "+path);
+			}
+			try {
+				keys.add(path.substring(i, end).getBytes("UTF-8"));
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalArgumentException(e);
+			}
+			indexes.add(-1);
+			i = end;
+		}
+
+		int[] indexArray = new int[indexes.size()];
+		for(int j=0; j < indexArray.length; j++) {
+			indexArray[j] = indexes.get(j);
+		}
+		return new MessagePackPath(path, keys.toArray(new byte[keys.size()][]), indexArray);
+	}
+
+	/**
+	 * Finds the selected value in {@code src[off, off+len)}.
+	 * @return the offset of the selected value, or -1 if it doesn't exist.
+	 * @throws UnpackException the buffer is truncated or broken.
+	 */
+	public int find(byte[] src, int off, int len) throws UnpackException {
+		return find(src, null, off, off + len);
+	}
+
+	// reads src if it is not null, otherwise bsrc
+	private int find(byte[] src, ByteBuffer bsrc, int off, int limit) throws UnpackException {
+		return find(src, bsrc, off, limit, new ValueScanner());
+	}
+
+	private int find(byte[] src, ByteBuffer bsrc, int off, int limit, ValueScanner scanner) throws UnpackException {
+		int i = off;
+		for(int s=0; s < keys.length; s++) {
+			int kind = scanner.readHeader(src, bsrc, i, limit);
+			if(kind == ValueScanner.NEED_MORE) {
+				throw new UnpackException("insufficient buffer");
+			}
+			long count = scanner.length;
+
+			if(keys[s] == null) {
+				if(kind != ValueScanner.ARRAY) {
+					return -1;
+				}
+				i += scanner.headerSize;
+				if(indexes[s] >= count) {
+					return -1;
+				}
+				for(int k=0; k < indexes[s]; k++) {
+					i = skip(scanner, src, bsrc, i, limit);
+				}
+
+			} else {
+				if(kind != ValueScanner.MAP) {
+					return -1;
+				}
+				i += scanner.headerSize;
+				boolean found = false;
+				for(long k=0; k < count; k++) {
+					int valueOffset = skip(scanner, src, bsrc, i, limit);
+					if(keyEquals(scanner, src, bsrc, i, valueOffset, keys[s])) {
+						i = valueOffset;
+						found = true;
+						break;
+					}
+					i = skip(scanner, src, bsrc, valueOffset, limit);
+				}
+				if(!found) {
+					return -1;
+				}
+			}
+		}
+		return i;
+	}
+
+	/**
+	 * Finds the selected value in the non-parsed part of the buffer
+	 * of the unpacker. The unpacker is not modified.
+	 * @return the offset of the selected value in {@link Unpacker#getBuffer()},
+	 *         or -1 if it doesn't exist.
+	 */
+	public int find(Unpacker pac) throws UnpackException {
+		checkBuffer(pac);
+		return find(pac.impl.buffer, pac.impl.byteBuffer, pac.impl.offset, pac.impl.filled,
+				new ValueScanner(pac.impl.getVOHelper()));
+	}
+
+	public MessagePackObject get(byte[] src) throws UnpackException {
+		return get(src, 0, src.length);
+	}
+
+	/**
+	 * Deserializes the selected value.
+	 * Only the selected value is deserialized.
+	 * @return the value, or null if it doesn't exist.
+	 */
+	public MessagePackObject get(byte[] src, int off, int len) throws UnpackException {
+		Selected v = select(src, off, len);
+		return v == null ? null : v.readObject();
+	}
+
+	/**
+	 * Deserializes the selected value from the remaining bytes of the buffer.
+	 * The position of the buffer is not changed.
+	 */
+	public MessagePackObject get(ByteBuffer buf) throws UnpackException {
+		Selected v = select(buf);
+		return v == null ? null : v.readObject();
+	}
+
+	/**
+	 * Deserializes the selected value from the non-parsed part of the
+	 * buffer of the unpacker. The unpacker is not modified.
+	 */
+	public MessagePackObject get(Unpacker pac) throws UnpackException {
+		Selected v = select(pac);
+		return v == null ? null : v.readObject();
+	}
+
+	/**
+	 * Returns the selected raw value as a slice of {@code src}.
+	 * The bytes are not copied.
+	 * @return the raw value, or null if it doesn't exist.
+	 * @throws MessageTypeException the selected value is not a raw bytes.
+	 */
+	public RawType getRaw(byte[] src, int off, int len) throws UnpackException, MessageTypeException {
+		Selected v = select(src, off, len);
+		return v == null ? null : v.readRaw();
+	}
+
+	/**
+	 * Returns the selected raw value as a slice of the buffer.
+	 * The bytes are not copied, even if the buffer is direct.
+	 */
+	public RawType getRaw(ByteBuffer buf) throws UnpackException, MessageTypeException {
+		Selected v = select(buf);
+		return v == null ? null : v.readRaw();
+	}
+
+	/**
+	 * Returns the selected raw value as a slice of the buffer of the
+	 * unpacker. The slice is valid until the unpacker reads more bytes.
+	 */
+	public RawType getRaw(Unpacker pac) throws UnpackException, MessageTypeException {
+		Selected v = select(pac);
+		return v == null ? null : v.readRaw();
+	}
+
+	/**
+	 * @throws MessageTypeException the selected value doesn't exist or is not a {@code String}.
+	 */
+	public String getString(byte[] src, int off, int len) throws UnpackException, MessageTypeException {
+		return existing(select(src, off, len)).readRaw().asString();
+	}
+
+	public String getString(ByteBuffer buf) throws UnpackException, MessageTypeException {
+		return existing(select(buf)).readRaw().asString();
+	}
+
+	public String getString(Unpacker pac) throws UnpackException, MessageTypeException {
+		return existing(select(pac)).readRaw().asString();
+	}
+
+	/**
+	 * @throws MessageTypeException the selected value doesn't exist or is not a {@code boolean}.
+	 */
+	public boolean getBoolean(byte[] src, int off, int len) throws UnpackException, MessageTypeException {
+		return existing(select(src, off, len)).readBoolean();
+	}
+
+	public boolean getBoolean(ByteBuffer buf) throws UnpackException, MessageTypeException {
+		return existing(select(buf)).readBoolean();
+	}
+
+	public boolean getBoolean(Unpacker pac) throws UnpackException, MessageTypeException {
+		return existing(select(pac)).readBoolean();
+	}
+
+	/**
+	 * @throws MessageTypeException the selected value doesn't exist or is not an {@code int}.
+	 */
+	public int getInt(byte[] src, int off, int len) throws UnpackException, MessageTypeException {
+		return existing(select(src, off, len)).readInt();
+	}
+
+	public int getInt(ByteBuffer buf) throws UnpackException, MessageTypeException {
+		return existing(select(buf)).readInt();
+	}
+
+	public int getInt(Unpacker pac) throws UnpackException, MessageTypeException {
+		return existing(select(pac)).readInt();
+	}
+
+	/**
+	 * @throws MessageTypeException the selected value doesn't exist or is not a {@code long}.
+	 */
+	public long getLong(byte[] src, int off, int len) throws UnpackException, MessageTypeException {
+		return existing(select(src, off, len)).readLong();
+	}
+
+	public long getLong(ByteBuffer buf) throws UnpackException, MessageTypeException {
+		return existing(select(buf)).readLong();
+	}
+
+	public long getLong(Unpacker pac) throws UnpackException, MessageTypeException {
+		return existing(select(pac)).readLong();
+	}
+
+	/**
+	 * @throws MessageTypeException the selected value doesn't exist or is not a {@code double}.
+	 */
+	public double getDouble(byte[] src, int off, int len) throws UnpackException, MessageTypeException {
+		return existing(select(src, off, len)).readDouble();
+	}
+
+	public double getDouble(ByteBuffer buf) throws UnpackException, MessageTypeException {
+		return existing(select(buf)).readDouble();
+	}
+
+	public double getDouble(Unpacker pac) throws UnpackException, MessageTypeException {
+		return existing(select(pac)).readDouble();
+	}
+
+	public String toString() {
+		return path;
+	}
+
+	private Selected select(byte[] src, int off, int len) throws UnpackException {
+		return select(src, null, off, off + len, new ValueScanner());
+	}
+
+	private Selected select(ByteBuffer buf) throws UnpackException {
+		if(buf.hasArray()) {
+			return select(buf.array(), buf.arrayOffset()+buf.position(), buf.remaining());
+		}
+		return select(null, BigEndian.bigEndian(buf), buf.position(), buf.limit(), new ValueScanner());
+	}
+
+	private Selected select(Unpacker pac) throws UnpackException {
+		checkBuffer(pac);
+		return select(pac.impl.buffer, pac.impl.byteBuffer, pac.impl.offset, pac.impl.filled,
+				new ValueScanner(pac.impl.getVOHelper()));
+	}
+
+	private Selected select(byte[] src, ByteBuffer bsrc, int off, int limit, ValueScanner scanner) throws UnpackException {
+		int pos = find(src, bsrc, off, limit, scanner);
+		if(pos < 0) {
+			return null;
+		}
+		int kind = scanner.readHeader(src, bsrc, pos, limit);
+		if(kind == ValueScanner.NEED_MORE) {
+			throw new UnpackException("insufficient buffer");
+		}
+		return new Selected(src, bsrc, pos, limit, kind, scanner);
+	}
+
+	private Selected existing(Selected v) {
+		if(v == null) {
+			throw new MessageTypeException("no such value: "+path);
+		}
+		return v;
+	}
+
+	private static void checkBuffer(Unpacker pac) throws UnpackException {
+		if(pac.impl.buffer == null && pac.impl.byteBuffer == null) {
+			throw new UnpackException("insufficient buffer");
+		}
+	}
+
+	/**
+	 * The selected value in {@code src} if it is not null, otherwise in
+	 * {@code bsrc}. Values are decoded without building objects.
+	 */
+	private static final class Selected {
+		private final byte[] src;
+		private final ByteBuffer bsrc;
+		private final int pos;
+		private final int limit;
+		private final int kind;
+		// the header of the value is read into the scanner
+		private final ValueScanner header;
+
+		Selected(byte[] src, ByteBuffer bsrc, int pos, int limit, int kind, ValueScanner header) {
+			this.src = src;
+			this.bsrc = bsrc;
+			this.pos = pos;
+			this.limit = limit;
+			this.kind = kind;
+			this.header = header;
+		}
+
+		MessagePackObject readObject() throws UnpackException {
+			UnpackerImpl impl = new UnpackerImpl();
+			impl.setVOHelper(header.getVOHelper());
+			if(src != null) {
+				impl.execute(src, pos, limit);
+			} else {
+				impl.execute(bsrc, pos, limit);
+			}
+			if(!impl.isFinished()) {
+				throw new UnpackException("insufficient buffer");
+			}
+			return impl.getData();
+		}
+
+		RawType readRaw() throws UnpackException {
+			if(kind != ValueScanner.RAW) {
+				throw new MessageTypeException();
+			}
+			int start = pos + header.headerSize;
+			if(limit - start < header.length) {
+				throw new UnpackException("insufficient buffer");
+			}
+			int length = (int)header.length;
+			if(src != null) {
+				return RawType.create(src, start, length);
+			}
+			ByteBuffer slice = bsrc.duplicate();
+			slice.limit(start + length);
+			slice.position(start);
+			return RawType.create(slice);
+		}
+
+		boolean readBoolean() {
+			switch(first()) {
+			case 0xc2:
+				return false;
+			case 0xc3:
+				return true;
+			default:
+				throw new MessageTypeException();
+			}
+		}
+
+		int readInt() {
+			long v = readLong();
+			if(v > Integer.MAX_VALUE || v < Integer.MIN_VALUE) {
+				throw new MessageTypeException();
+			}
+			return (int)v;
+		}
+
+		long readLong() {
+			int b = first();
+			if((b & 0x80) == 0 || (b & 0xe0) == 0xe0) {  // Fixnum
+				return (byte)b;
+			}
+			int n = pos + 1;
+			switch(b) {
+			case 0xcc:  // unsigned int  8
+				return BigEndian.get(src, bsrc, n) & 0xff;
+			case 0xcd:  // unsigned int 16
+				return BigEndian.readUnsignedShort(src, bsrc, n);
+			case 0xce:  // unsigned int 32
+				return (long)BigEndian.readInt(src, bsrc, n) & 0xffffffffL;
+			case 0xcf:  // unsigned int 64
+				long v = BigEndian.readLong(src, bsrc, n);
+				if(v < 0) {
+					throw new MessageTypeException();
+				}
+				return v;
+			case 0xd0:  // signed int  8
+				return BigEndian.get(src, bsrc, n);
+			case 0xd1:  // signed int 16
+				return BigEndian.readShort(src, bsrc, n);
+			case 0xd2:  // signed int 32
+				return BigEndian.readInt(src, bsrc, n);
+			case 0xd3:  // signed int 64
+				return BigEndian.readLong(src, bsrc, n);
+			default:
+				throw new MessageTypeException();
+			}
+		}
+
+		double readDouble() {
+			switch(first()) {
+			case 0xca:  // float
+				return BigEndian.readFloat(src, bsrc, pos + 1);
+			case 0xcb:  // double
+				return BigEndian.readDouble(src, bsrc, pos + 1);
+			default:
+				throw new MessageTypeException();
+			}
+		}
+
+		// the type byte of a scalar value
+		private int first() {
+			if(kind != ValueScanner.SCALAR) {
+				throw new MessageTypeException();
+			}
+			return BigEndian.get(src, bsrc, pos) & 0xff;
+		}
+	}
+
+	private static int skip(ValueScanner scanner, byte[] src, ByteBuffer bsrc, int i, int limit) throws UnpackException {
+		scanner.reset();
+		int end = scanner.scan(src, bsrc, i, limit);
+		if(!scanner.isFinished()) {
+			throw new UnpackException("insufficient buffer");
+		}
+		return end;
+	}
+
+	private static boolean keyEquals(ValueScanner scanner, byte[] src, ByteBuffer bsrc, int i, int end, byte[] key) throws UnpackException {
+		if(scanner.readHeader(src, bsrc, i, end) != ValueScanner.RAW) {
+			return false;
+		}
+		int start = i + scanner.headerSize;
+		if(end - start != key.length) {
+			return false;
+		}
+		for(int k=0; k < key.length; k++) {
+			if(BigEndian.get(src, bsrc, start+k) != key[k]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,475 @@
+//
+// MessagePack for Java
+//
+// Copyright (C) 2009-2010 FURUHASHI Sadayuki
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.msgpack;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * MessagePackReader is a pull parser that returns one token at a time
+ * instead of building {@link MessagePackObject} trees.
+ *
+ * Like {@link Unpacker#execute(byte[], int, int)}, the reader is resumable:
+ * it keeps its state between calls and returns {@code null} when the
+ * buffer doesn't contain a complete token yet. Unlike UnpackerImpl, it
+ * resumes at token boundaries: an incomplete header (at most 9 bytes) is
+ * decoded again when more bytes arrive.
+ * Memory usage depends only on the nesting depth and the size of the
+ * largest raw value, not on the size of the document. Raws larger than
+ * {@link setRawStreamThreshold(int)} are returned in chunks, which bounds
+ * the memory by the threshold instead.
+ * <pre>
+ * MessagePackReader reader = new MessagePackReader();
+ * reader.feed(input_bytes);
+ *
+ * MessagePackReader.Token token;
+ * while((token = reader.nextToken()) != null) {
+ *     switch(token) {
+ *     case ARRAY_START:
+ *         int n = reader.getCount();
+ *         // ...
+ *     }
+ * }
+ * // feed more bytes and call nextToken() again
+ * </pre>
+ *
+ * Objects of the PrimeVC value-object extension are not supported;
+ * reading one throws UnpackException.
+ */
+public class MessagePackReader {
+	public static enum Token {
+		NIL,
+		BOOLEAN,
+		INTEGER,
+		FLOAT,
+		DOUBLE,
+		RAW,
+		RAW_START,
+		RAW_CHUNK,
+		ARRAY_START,
+		ARRAY_END,
+		MAP_START,
+		MAP_END,
+	}
+
+	private static final int DEFAULT_BUFFER_SIZE = 8*1024;
+	private static final int INITIAL_STACK_SIZE = 16;
+	private static final byte[] EMPTY_BYTES = new byte[0];
+
+	private final ValueScanner header = new ValueScanner();
+
+	// stack of open containers. stackCount is the number of remaining
+	// elements; keys and values are counted separately for maps.
+	private int top = -1;
+	private int[] stackCount = new int[INITIAL_STACK_SIZE];
+	private boolean[] stackMap = new boolean[INITIAL_STACK_SIZE];
+
+	private Token token;
+	private boolean booleanValue;
+	private long longValue;
+	private boolean unsigned64;
+	private double doubleValue;
+	private byte[] rawBuffer;
+	private int rawOffset;
+	private int rawLength;
+	private int count;
+
+	private int rawStreamThreshold = Integer.MAX_VALUE;
+	// bytes of the streamed raw body that are not returned yet
+	private int rawRemaining;
+
+	private byte[] buffer;
+	private int offset;
+	private int filled;
+
+	public MessagePackReader() {
+	}
+
+
+	/**
+	 * Raws larger than the threshold are returned as a RAW_START token,
+	 * whose {@link getRawLength()} is the length of the whole raw,
+	 * followed by RAW_CHUNK tokens as the body arrives. Smaller raws are
+	 * returned as one RAW token once the whole body is in the buffer.
+	 * The default is Integer.MAX_VALUE, which never streams.
+	 */
+	public void setRawStreamThreshold(int size) {
+		this.rawStreamThreshold = size;
+	}
+
+	public int getRawStreamThreshold() {
+		return rawStreamThreshold;
+	}
+
+	/**
+	 * Appends the specified buffer to the internal buffer.
+	 * Raw tokens returned before this call may be invalidated.
+	 */
+	public void feed(byte[] b) {
+		feed(b, 0, b.length);
+	}
+
+	/**
+	 * Appends the specified buffer to the internal buffer.
+	 * Raw tokens returned before this call may be invalidated.
+	 */
+	public void feed(byte[] b, int off, int len) {
+		if(buffer == null) {
+			buffer = new byte[len > DEFAULT_BUFFER_SIZE ? len : DEFAULT_BUFFER_SIZE];
+		}
+		if(buffer.length - filled < len) {
+			int notParsed = filled - offset;
+			if(buffer.length - notParsed < len) {
+				int nextSize = buffer.length * 2;
+				while(nextSize < notParsed + len) {
+					nextSize *= 2;
+				}
+				byte[] tmp = new byte[nextSize];
+				System.arraycopy(buffer, offset, tmp, 0, notParsed);
+				buffer = tmp;
+			} else {
+				System.arraycopy(buffer, offset, buffer, 0, notParsed);
+			}
+			offset = 0;
+			filled = notParsed;
+		}
+		System.arraycopy(b, off, buffer, filled, len);
+		filled += len;
+	}
+
+	/**
+	 * Reads the next token from the internal buffer.
+	 * @return the token, or null if the buffer doesn't contain a complete token.
+	 */
+	public Token nextToken() throws UnpackException {
+		if(buffer == null) {
+			execute(EMPTY_BYTES, 0, 0);
+		} else {
+			offset = execute(buffer, offset, filled);
+		}
+		return token;
+	}
+
+	/**
+	 * Returns the number of bytes in the internal buffer that are not read yet.
+	 */
+	public int getNonParsedSize() {
+		return filled - offset;
+	}
+
+
+	/**
+	 * Reads one token from the specified buffer.
+	 * This method doesn't use the internal buffer.
+	 * Use {@link #getToken()} to get the token; it is null if more bytes are needed.
+	 * @return offset position that is parsed.
+	 */
+	public int execute(byte[] src, int off, int limit) throws UnpackException {
+		token = null;
+
+		if(rawRemaining > 0) {
+			int n = Math.min(limit - off, rawRemaining);
+			if(n == 0) {
+				return off;
+			}
+			token = Token.RAW_CHUNK;
+			rawBuffer = src;
+			rawOffset = off;
+			rawLength = n;
+			rawRemaining -= n;
+			if(rawRemaining == 0) {
+				elementDone();
+			}
+			return off + n;
+		}
+
+		if(top >= 0 && stackCount[top] == 0) {
+			token = stackMap[top] ? Token.MAP_END : Token.ARRAY_END;
+			--top;
+			elementDone();
+			return off;
+		}
+
+		int kind = header.readHeader(src, null, off, limit);
+		if(kind == ValueScanner.NEED_MORE) {
+			return off;
+		}
+		int i = off + header.headerSize;
+		int b = src[off];
+
+		switch(kind) {
+		case ValueScanner.RAW:
+			if(header.length > Integer.MAX_VALUE) {
+				throw new UnpackException("raw size too large");
+			}
+			int length = (int)header.length;
+			if(length > rawStreamThreshold) {
+				token = Token.RAW_START;
+				rawBuffer = null;
+				rawLength = length;
+				rawRemaining = length;
+				return i;
+			}
+			if(limit - i < length) {
+				// wait for the body
+				return off;
+			}
+			return raw(i + length, src, i, length);
+		case ValueScanner.ARRAY:
+			return push(i, checkCount(header.length), false);
+		case ValueScanner.MAP:
+			return push(i, checkCount(header.length), true);
+		case ValueScanner.VALUE_OBJECT:
+			throw new UnpackException("value objects are not supported");
+		}
+
+		if((b & 0x80) == 0 || (b & 0xe0) == 0xe0) {  // Fixnum
+			return integer(i, b);
+		}
+		int n = off + 1;
+		switch(b & 0xff) {
+		case 0xc0:  // nil
+			token = Token.NIL;
+			elementDone();
+			return i;
+		case 0xc2:  // false
+		case 0xc3:  // true
+			token = Token.BOOLEAN;
+			booleanValue = (b & 0x01) != 0;
+			elementDone();
+			return i;
+		case 0xca:  // float
+			token = Token.FLOAT;
+			doubleValue = BigEndian.readFloat(src, n);
+			return scalar(i);
+		case 0xcb:  // double
+			token = Token.DOUBLE;
+			doubleValue = BigEndian.readDouble(src, n);
+			return scalar(i);
+		case 0xcc:  // unsigned int  8
+			return integer(i, src[n] & 0xff);
+		case 0xcd:  // unsigned int 16
+			return integer(i, BigEndian.readUnsignedShort(src, n));
+		case 0xce:  // unsigned int 32
+			return integer(i, (long)BigEndian.readInt(src, n) & 0xffffffffL);
+		case 0xcf:  // unsigned int 64
+			integer(i, BigEndian.readLong(src, n));
+			unsigned64 = longValue < 0;
+			return i;
+		case 0xd0:  // signed int  8
+			return integer(i, src[n]);
+		case 0xd1:  // signed int 16
+			return integer(i, BigEndian.readShort(src, n));
+		case 0xd2:  // signed int 32
+			return integer(i, BigEndian.readInt(src, n));
+		case 0xd3:  // signed int 64
+			return integer(i, BigEndian.readLong(src, n));
+		default:
+			throw new UnpackException("parse error");
+		}
+	}
+
+	/**
+	 * Resets the internal state of the reader and discards the internal buffer.
+	 */
+	public void reset() {
+		top = -1;
+		token = null;
+		rawRemaining = 0;
+		rawBuffer = null;
+		offset = 0;
+		filled = 0;
+	}
+
+	private int checkCount(long n) throws UnpackException {
+		if(n > Integer.MAX_VALUE) {
+			throw new UnpackException("container size too large");
+		}
+		return (int)n;
+	}
+
+	private int scalar(int i) {
+		elementDone();
+		return i;
+	}
+
+	private int integer(int i, long v) {
+		token = Token.INTEGER;
+		longValue = v;
+		unsigned64 = false;
+		return scalar(i);
+	}
+
+	private int raw(int i, byte[] src, int off, int len) {
+		token = Token.RAW;
+		rawBuffer = src;
+		rawOffset = off;
+		rawLength = len;
+		return scalar(i);
+	}
+
+	private int push(int i, int n, boolean map) throws UnpackException {
+		if(map && n > Integer.MAX_VALUE / 2) {
+			throw new UnpackException("container size too large");
+		}
+		++top;
+		if(top >= stackCount.length) {
+			stackCount = Arrays.copyOf(stackCount, stackCount.length * 2);
+			stackMap = Arrays.copyOf(stackMap, stackMap.length * 2);
+		}
+		stackCount[top] = map ? n*2 : n;
+		stackMap[top] = map;
+		token = map ? Token.MAP_START : Token.ARRAY_START;
+		count = n;
+		return i;
+	}
+
+	private void elementDone() {
+		if(top >= 0) {
+			--stackCount[top];
+		}
+	}
+
+
+	/**
+	 * Returns the token read by the last call of {@link #nextToken()} or {@link #execute(byte[], int, int)}.
+	 */
+	public Token getToken() {
+		return token;
+	}
+
+	/**
+	 * Returns the number of containers that enclose the next token.
+	 */
+	public int getDepth() {
+		return top + 1;
+	}
+
+	/**
+	 * Returns true if the next token is a key of a map.
+	 */
+	public boolean isMapKey() {
+		return top >= 0 && stackMap[top] && (stackCount[top] & 1) == 0 && stackCount[top] != 0;
+	}
+
+	/**
+	 * Returns the number of elements of ARRAY_START or the number of pairs of MAP_START.
+	 */
+	public int getCount() {
+		if(token != Token.ARRAY_START && token != Token.MAP_START) {
+			throw new MessageTypeException();
+		}
+		return count;
+	}
+
+	public boolean getBoolean() {
+		if(token != Token.BOOLEAN) {
+			throw new MessageTypeException();
+		}
+		return booleanValue;
+	}
+
+	public int getInt() {
+		long v = getLong();
+		if(v > Integer.MAX_VALUE || v < Integer.MIN_VALUE) {
+			throw new MessageTypeException();
+		}
+		return (int)v;
+	}
+
+	public long getLong() {
+		if(token != Token.INTEGER || unsigned64) {
+			throw new MessageTypeException();
+		}
+		return longValue;
+	}
+
+	public BigInteger getBigInteger() {
+		if(token != Token.INTEGER) {
+			throw new MessageTypeException();
+		}
+		if(unsigned64) {
+			return BigInteger.valueOf(longValue & 0x7fffffffffffffffL).setBit(63);
+		}
+		return BigInteger.valueOf(longValue);
+	}
+
+	public float getFloat() {
+		return (float)getDouble();
+	}
+
+	public double getDouble() {
+		if(token != Token.FLOAT && token != Token.DOUBLE) {
+			throw new MessageTypeException();
+		}
+		return doubleValue;
+	}
+
+	/**
+	 * Returns the buffer that holds the bytes of the RAW or RAW_CHUNK token.
+	 * The buffer is not copied.
+	 */
+	public byte[] getRawBuffer() {
+		checkRawBytes();
+		return rawBuffer;
+	}
+
+	public int getRawOffset() {
+		checkRawBytes();
+		return rawOffset;
+	}
+
+	/**
+	 * Returns the length of the RAW token or RAW_CHUNK token, or the
+	 * length of the whole raw for RAW_START.
+	 */
+	public int getRawLength() {
+		if(token != Token.RAW_START) {
+			checkRawBytes();
+		}
+		return rawLength;
+	}
+
+	public byte[] getByteArray() {
+		checkRawBytes();
+		byte[] bytes = new byte[rawLength];
+		System.arraycopy(rawBuffer, rawOffset, bytes, 0, rawLength);
+		return bytes;
+	}
+
+	public String getString() {
+		checkRaw();
+		try {
+			return new String(rawBuffer, rawOffset, rawLength, "UTF-8");
+		} catch (Exception e) {
+			throw new MessageTypeException(e);
+		}
+	}
+
+	private void checkRaw() {
+		if(token != Token.RAW) {
+			throw new MessageTypeException();
+		}
+	}
+
+	private void checkRawBytes() {
+		if(token != Token.RAW && token != Token.RAW_CHUNK) {
+			throw new MessageTypeException();
+		}
+	}
+}
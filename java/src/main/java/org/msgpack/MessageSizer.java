@@ -0,0 +1,39 @@
+//
+// MessagePack for Java
+//
+// Copyright (C) 2009-2010 FURUHASHI Sadayuki
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.msgpack;
+
+/**
+ * Computes the exact number of bytes an object is serialized into,
+ * without serializing it.
+ * Sizes are computed for a Packer in the default mode; a Packer with
+ * {@link Packer#setFixedWidthArrays(boolean)} enabled writes int and
+ * long arrays larger.
+ */
+public interface MessageSizer {
+	/**
+	 * Returned by {@link packedSize(Object)} if the size can't be computed
+	 * without serializing the object, for example because an element is
+	 * serialized by a template or MessagePackable that isn't a MessageSizer.
+	 */
+	int UNKNOWN = -1;
+
+	/**
+	 * Returns the number of bytes, or {@link UNKNOWN}.
+	 */
+	int packedSize(Object target);
+}
@@ -0,0 +1,65 @@
+//
+// MessagePack for Java
+//
+// Copyright (C) 2009-2010 FURUHASHI Sadayuki
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.msgpack;
+
+import java.io.IOException;
+
+/**
+ * PackedString holds the serialized form (header and UTF-8 bytes) of a
+ * String so that it is packed with one copy instead of being encoded
+ * every time.
+ * A Packer with a string cache (see {@link Packer#setStringCacheSize(int)})
+ * creates PackedStrings for strings it packs repeatedly.
+ *
+ * <pre>
+ * static final PackedString KEY = new PackedString("user_id");
+ *
+ * pk.packPackedString(KEY);
+ * </pre>
+ */
+public final class PackedString {
+	private final String string;
+	final byte[] packed;
+
+	public PackedString(String string) {
+		this.string = string;
+		BufferedPacker pk = new BufferedPacker(string.length() + 5);
+		try {
+			pk.packRaw(UTF8.length(string));
+			pk.writeString(string, UTF8.length(string));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		this.packed = pk.toByteArray();
+	}
+
+	public String getString() {
+		return string;
+	}
+
+	/**
+	 * Returns the number of bytes of the serialized form.
+	 */
+	public int getPackedSize() {
+		return packed.length;
+	}
+
+	public String toString() {
+		return string;
+	}
+}
@@ -50,17 +50,75 @@ public class Packer {
 	//protected ByteBuffer castBuffer = ByteBuffer.wrap(castBytes);
 	protected OutputStream out;
 
+	private static final int MAX_SCRATCH_BUFFER_SIZE = 8*1024;
+	private byte[] scratchBuffer;
+
+	private boolean fixedWidthArrays = false;
+
+	private static final int MAX_CACHED_STRING_LENGTH = 256;
+	// direct-mapped by identity hash; see setStringCacheSize(int)
+	private PackedString[] stringCache;
+	private String[] stringSeen;
+
 	public Packer(OutputStream out) {
 		this.out = out;
 	}
 
+	/**
+	 * Writes one byte. Subclasses can override this method and
+	 * {@link writeBytes(byte[], int, int)} to change the destination.
+	 */
+	protected void writeByte(int b) throws IOException {
+		out.write(b);
+	}
+
+	protected void writeBytes(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+	}
+
+	/**
+	 * Writes bytes given by the caller of {@link packRawBody(byte[], int, int)}.
+	 * Unlike {@link writeBytes(byte[], int, int)}, the bytes are never a
+	 * temporary buffer of this packer, so subclasses can keep a reference
+	 * to them instead of copying.
+	 */
+	protected void writeRawBody(byte[] b, int off, int len) throws IOException {
+		writeBytes(b, off, len);
+	}
+
+	/**
+	 * Writes the remaining bytes of the buffer without changing its position.
+	 * Buffers without an accessible array are copied in chunks through
+	 * a temporary buffer.
+	 */
+	protected void writeByteBuffer(ByteBuffer bb) throws IOException {
+		if(bb.hasArray()) {
+			writeRawBody(bb.array(), bb.arrayOffset() + bb.position(), bb.remaining());
+			return;
+		}
+		ByteBuffer src = bb.duplicate();
+		byte[] b = getScratchBuffer(Math.min(src.remaining(), MAX_SCRATCH_BUFFER_SIZE));
+		while(src.hasRemaining()) {
+			int n = Math.min(src.remaining(), b.length);
+			src.get(b, 0, n);
+			writeBytes(b, 0, n);
+		}
+	}
+
+	/**
+	 * Flushes the output stream.
+	 */
+	public void flush() throws IOException {
+		out.flush();
+	}
+
 	public Packer packByte(byte d) throws IOException {
 		if(d < -(1<<5)) {
 			castBytes[0] = (byte)0xd0;
 			castBytes[1] = d;
-			out.write(castBytes, 0, 2);
+			writeBytes(castBytes, 0, 2);
 		} else {
-			out.write(d);
+			writeByte((byte)d);
 		}
 		return this;
 	}
@@ -73,29 +131,29 @@ public class Packer {
 //				castBuffer.putShort(1, d);
 				castBytes[1] = (byte)(d >>  8);
 				castBytes[2] = (byte)(d >>  0);
-				out.write(castBytes, 0, 3);
+				writeBytes(castBytes, 0, 3);
 			} else {
 				// signed 8
 				castBytes[0] = (byte)0xd0;
 				castBytes[1] = (byte)d;
-				out.write(castBytes, 0, 2);
+				writeBytes(castBytes, 0, 2);
 			}
 		} else if(d < (1<<7)) {
 			// fixnum
-			out.write((byte)d);
+			writeByte((byte)d);
 		} else {
 			if(d < (1<<8)) {
 				// unsigned 8
 				castBytes[0] = (byte)0xcc;
 				castBytes[1] = (byte)d;
-				out.write(castBytes, 0, 2);
+				writeBytes(castBytes, 0, 2);
 			} else {
 				// unsigned 16
 				castBytes[0] = (byte)0xcd;
 //				castBuffer.putShort(1, d);
 				castBytes[1] = (byte)(d >>  8);
 				castBytes[2] = (byte)(d >>  0);
-				out.write(castBytes, 0, 3);
+				writeBytes(castBytes, 0, 3);
 			}
 		}
 		return this;
@@ -111,36 +169,36 @@ public class Packer {
 				castBytes[2] = (byte)(d >> 16);
 				castBytes[3] = (byte)(d >>  8);
 				castBytes[4] = (byte)(d >>  0);
-				out.write(castBytes, 0, 5);
+				writeBytes(castBytes, 0, 5);
 			} else if(d < -(1<<7)) {
 				// signed 16
 				castBytes[0] = (byte)0xd1;
 //				castBuffer.putShort(1, (short)d);
 				castBytes[1] = (byte)(d >>  8);
 				castBytes[2] = (byte)(d >>  0);
-				out.write(castBytes, 0, 3);
+				writeBytes(castBytes, 0, 3);
 			} else {
 				// signed 8
 				castBytes[0] = (byte)0xd0;
 				castBytes[1] = (byte)d;
-				out.write(castBytes, 0, 2);
+				writeBytes(castBytes, 0, 2);
 			}
 		} else if(d < (1<<7)) {
 			// fixnum
-			out.write((byte)d);
+			writeByte((byte)d);
 		} else {
 			if(d < (1<<8)) {
 				// unsigned 8
 				castBytes[0] = (byte)0xcc;
 				castBytes[1] = (byte)d;
-				out.write(castBytes, 0, 2);
+				writeBytes(castBytes, 0, 2);
 			} else if(d < (1<<16)) {
 				// unsigned 16
 				castBytes[0] = (byte)0xcd;
 //				castBuffer.putShort(1, (short)d);
 				castBytes[1] = (byte)(d >>  8);
 				castBytes[2] = (byte)(d >>  0);
-				out.write(castBytes, 0, 3);
+				writeBytes(castBytes, 0, 3);
 			} else {
 				// unsigned 32
 				castBytes[0] = (byte)0xce;
@@ -149,7 +207,7 @@ public class Packer {
 				castBytes[2] = (byte)(d >> 16);
 				castBytes[3] = (byte)(d >>  8);
 				castBytes[4] = (byte)(d >>  0);
-				out.write(castBytes, 0, 5);
+				writeBytes(castBytes, 0, 5);
 			}
 		}
 		return this;
@@ -170,7 +228,7 @@ public class Packer {
 					castBytes[6] = (byte)(d >> 16);
 					castBytes[7] = (byte)(d >>  8);
 					castBytes[8] = (byte)(d >>  0);
-					out.write(castBytes, 0, 9);
+					writeBytes(castBytes, 0, 9);
 				} else {
 					// signed 32
 					castBytes[0] = (byte)0xd2;
@@ -179,7 +237,7 @@ public class Packer {
 					castBytes[2] = (byte)(d >> 16);
 					castBytes[3] = (byte)(d >>  8);
 					castBytes[4] = (byte)(d >>  0);
-					out.write(castBytes, 0, 5);
+					writeBytes(castBytes, 0, 5);
 				}
 			} else {
 				if(d < -(1<<7)) {
@@ -188,31 +246,31 @@ public class Packer {
 //					castBuffer.putShort(1, (short)d);
 					castBytes[1] = (byte)(d >>  8);
 					castBytes[2] = (byte)(d >>  0);
-					out.write(castBytes, 0, 3);
+					writeBytes(castBytes, 0, 3);
 				} else {
 					// signed 8
 					castBytes[0] = (byte)0xd0;
 					castBytes[1] = (byte)d;
-					out.write(castBytes, 0, 2);
+					writeBytes(castBytes, 0, 2);
 				}
 			}
 		} else if(d < (1<<7)) {
 			// fixnum
-			out.write((byte)d);
+			writeByte((byte)d);
 		} else {
 			if(d < (1L<<16)) {
 				if(d < (1<<8)) {
 					// unsigned 8
 					castBytes[0] = (byte)0xcc;
 					castBytes[1] = (byte)d;
-					out.write(castBytes, 0, 2);
+					writeBytes(castBytes, 0, 2);
 				} else {
 					// unsigned 16
 					castBytes[0] = (byte)0xcd;
 //					castBuffer.putShort(1, (short)d);
 					castBytes[1] = (byte)((d & 0x0000ff00) >>  8);
 					castBytes[2] = (byte)((d & 0x000000ff) >>  0);
-					out.write(castBytes, 0, 3);
+					writeBytes(castBytes, 0, 3);
 					//System.out.println("pack uint 16 "+(short)d);
 				}
 			} else {
@@ -224,7 +282,7 @@ public class Packer {
 					castBytes[2] = (byte)((d & 0x00ff0000) >> 16);
 					castBytes[3] = (byte)((d & 0x0000ff00) >>  8);
 					castBytes[4] = (byte)((d & 0x000000ff) >>  0);
-					out.write(castBytes, 0, 5);
+					writeBytes(castBytes, 0, 5);
 				} else {
 					// unsigned 64
 					castBytes[0] = (byte)0xcf;
@@ -237,7 +295,7 @@ public class Packer {
 					castBytes[6] = (byte)(d >> 16);
 					castBytes[7] = (byte)(d >>  8);
 					castBytes[8] = (byte)(d >>  0);
-					out.write(castBytes, 0, 9);
+					writeBytes(castBytes, 0, 9);
 				}
 			}
 		}
@@ -258,7 +316,7 @@ public class Packer {
 			castBytes[6] = barray[barray.length-3];
 			castBytes[7] = barray[barray.length-2];
 			castBytes[8] = barray[barray.length-1];
-			out.write(castBytes, 0, 9);
+			writeBytes(castBytes, 0, 9);
 			return this;
 		} else {
 			throw new MessageTypeException("can't pack BigInteger larger than 0xffffffffffffffff");
@@ -273,7 +331,7 @@ public class Packer {
 		castBytes[2] = (byte)(f >> 16);
 		castBytes[3] = (byte)(f >>  8);
 		castBytes[4] = (byte)(f >>  0);
-		out.write(castBytes, 0, 5);
+		writeBytes(castBytes, 0, 5);
 		return this;
 	}
 
@@ -289,22 +347,22 @@ public class Packer {
 		castBytes[6] = (byte)(f >> 16);
 		castBytes[7] = (byte)(f >>  8);
 		castBytes[8] = (byte)(f >>  0);
-		out.write(castBytes, 0, 9);
+		writeBytes(castBytes, 0, 9);
 		return this;
 	}
 
 	public Packer packNil() throws IOException {
-		out.write((byte)0xc0);
+		writeByte((byte)0xc0);
 		return this;
 	}
 
 	public Packer packTrue() throws IOException {
-		out.write((byte)0xc3);
+		writeByte((byte)0xc3);
 		return this;
 	}
 
 	public Packer packFalse() throws IOException {
-		out.write((byte)0xc2);
+		writeByte((byte)0xc2);
 		return this;
 	}
 
@@ -315,13 +373,13 @@ public class Packer {
 	public Packer packArray(int n) throws IOException {
 		if(n < 16) {
 			final int d = 0x90 | n;
-			out.write((byte)d);
+			writeByte((byte)d);
 		} else if(n < 65536) {
 			castBytes[0] = (byte)0xdc;
 //			castBuffer.putShort(1, (short)n);
 			castBytes[1] = (byte)(n >>  8);
 			castBytes[2] = (byte)(n >>  0);
-			out.write(castBytes, 0, 3);
+			writeBytes(castBytes, 0, 3);
 		} else {
 			castBytes[0] = (byte)0xdd;
 //			castBuffer.putInt(1, n);
@@ -329,7 +387,7 @@ public class Packer {
 			castBytes[2] = (byte)(n >> 16);
 			castBytes[3] = (byte)(n >>  8);
 			castBytes[4] = (byte)(n >>  0);
-			out.write(castBytes, 0, 5);
+			writeBytes(castBytes, 0, 5);
 		}
 		return this;
 	}
@@ -337,13 +395,13 @@ public class Packer {
 	public Packer packMap(int n) throws IOException {
 		if(n < 16) {
 			final int d = 0x80 | n;
-			out.write((byte)d);
+			writeByte((byte)d);
 		} else if(n < 65536) {
 			castBytes[0] = (byte)0xde;
 //			castBuffer.putShort(1, (short)n);
 			castBytes[1] = (byte)(n >>  8);
 			castBytes[2] = (byte)(n >>  0);
-			out.write(castBytes, 0, 3);
+			writeBytes(castBytes, 0, 3);
 		} else {
 			castBytes[0] = (byte)0xdf;
 //			castBuffer.putInt(1, n);
@@ -351,7 +409,7 @@ public class Packer {
 			castBytes[2] = (byte)(n >> 16);
 			castBytes[3] = (byte)(n >>  8);
 			castBytes[4] = (byte)(n >>  0);
-			out.write(castBytes, 0, 5);
+			writeBytes(castBytes, 0, 5);
 		}
 		return this;
 	}
@@ -359,13 +417,13 @@ public class Packer {
 	public Packer packRaw(int n) throws IOException {
 		if(n < 32) {
 			final int d = 0xa0 | n;
-			out.write((byte)d);
+			writeByte((byte)d);
 		} else if(n < 65536) {
 			castBytes[0] = (byte)0xda;
 //			castBuffer.putShort(1, (short)n);
 			castBytes[1] = (byte)(n >>  8);
 			castBytes[2] = (byte)(n >>  0);
-			out.write(castBytes, 0, 3);
+			writeBytes(castBytes, 0, 3);
 		} else {
 			castBytes[0] = (byte)0xdb;
 //			castBuffer.putInt(1, n);
@@ -373,18 +431,18 @@ public class Packer {
 			castBytes[2] = (byte)(n >> 16);
 			castBytes[3] = (byte)(n >>  8);
 			castBytes[4] = (byte)(n >>  0);
-			out.write(castBytes, 0, 5);
+			writeBytes(castBytes, 0, 5);
 		}
 		return this;
 	}
 
 	public Packer packRawBody(byte[] b) throws IOException {
-		out.write(b);
+		writeRawBody(b, 0, b.length);
 		return this;
 	}
 
 	public Packer packRawBody(byte[] b, int off, int length) throws IOException {
-		out.write(b, off, length);
+		writeRawBody(b, off, length);
 		return this;
 	}
 
@@ -399,15 +457,289 @@ public class Packer {
 		return packRawBody(b, off, length);
 	}
 
+	/**
+	 * Writes the remaining bytes of the buffer as a raw.
+	 * Direct, mapped and read-only buffers are supported.
+	 * The position of the buffer is not changed.
+	 */
 	public Packer packByteBuffer(ByteBuffer buf) throws IOException {
 		packRaw(buf.remaining());
-		return packRawBody(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+		writeByteBuffer(buf);
+		return this;
 	}
 
 	public Packer packString(String s) throws IOException {
-		byte[] b = ((String)s).getBytes("UTF-8");
-		packRaw(b.length);
-		return packRawBody(b);
+		if(stringCache != null) {
+			PackedString ps = lookupString(s);
+			if(ps != null) {
+				return packPackedString(ps);
+			}
+		}
+		int length = UTF8.length(s);
+		packRaw(length);
+		writeString(s, length);
+		return this;
+	}
+
+	/**
+	 * Enables a cache of the serialized form of strings packed by
+	 * {@link packString(String)}, including strings packed by templates.
+	 * Strings are cached by identity: a string is cached when the same
+	 * instance (a literal, a constant or an enum name) is packed twice,
+	 * and evicts the cached string with the same slot. Strings longer
+	 * than 256 characters are not cached.
+	 * @param size maximum number of cached strings, rounded up to a power
+	 *        of 2; 0 disables the cache, which is the default
+	 */
+	public void setStringCacheSize(int size) {
+		if(size <= 0) {
+			stringCache = null;
+			stringSeen = null;
+			return;
+		}
+		int n = 1;
+		while(n < size) {
+			n <<= 1;
+		}
+		stringCache = new PackedString[n];
+		stringSeen = new String[n];
+	}
+
+	public int getStringCacheSize() {
+		return stringCache == null ? 0 : stringCache.length;
+	}
+
+	/**
+	 * Puts a pre-encoded string into the cache enabled by
+	 * {@link setStringCacheSize(int)}, so that the first
+	 * {@link packString(String)} of the same instance already uses it.
+	 */
+	public void cacheString(PackedString ps) {
+		if(stringCache == null) {
+			throw new IllegalStateException("string cache is disabled");
+		}
+		String s = ps.getString();
+		stringCache[System.identityHashCode(s) & (stringCache.length - 1)] = ps;
+	}
+
+	private PackedString lookupString(String s) {
+		int i = System.identityHashCode(s) & (stringCache.length - 1);
+		PackedString ps = stringCache[i];
+		if(ps != null && ps.getString() == s) {
+			return ps;
+		}
+		if(stringSeen[i] != s) {
+			// strings packed once are not worth encoding twice
+			stringSeen[i] = s;
+			return null;
+		}
+		if(s.length() > MAX_CACHED_STRING_LENGTH) {
+			return null;
+		}
+		ps = new PackedString(s);
+		stringCache[i] = ps;
+		return ps;
+	}
+
+	public Packer packPackedString(PackedString s) throws IOException {
+		writeBytes(s.packed, 0, s.packed.length);
+		return this;
+	}
+
+	/**
+	 * Writes the UTF-8 representation of the string.
+	 * @param length the number of bytes of the UTF-8 representation
+	 */
+	protected void writeString(String s, int length) throws IOException {
+		byte[] b = getScratchBuffer(length);
+		UTF8.encode(s, b, 0);
+		writeBytes(b, 0, length);
+	}
+
+	/**
+	 * Returns a temporary buffer of at least {@code size} bytes.
+	 */
+	private byte[] getScratchBuffer(int size) {
+		if(size > MAX_SCRATCH_BUFFER_SIZE) {
+			return new byte[size];
+		}
+		if(scratchBuffer == null || scratchBuffer.length < size) {
+			scratchBuffer = new byte[size < 64 ? 64 : size];
+		}
+		return scratchBuffer;
+	}
+
+	/**
+	 * If true, {@link packIntArray(int[], int, int)} and
+	 * {@link packLongArray(long[], int, int)} write every element in
+	 * the fixed-width signed 32/64 bit format instead of the shortest one.
+	 * The default is false.
+	 * The sizes returned by {@link sizeOf(Object)} and {@link MessageSizer}
+	 * assume the default; use {@link sizeOfIntArray(int[], boolean)} and
+	 * {@link sizeOfLongArray(long[], boolean)} to size arrays for this mode.
+	 */
+	public void setFixedWidthArrays(boolean fixedWidthArrays) {
+		this.fixedWidthArrays = fixedWidthArrays;
+	}
+
+	public boolean isFixedWidthArrays() {
+		return fixedWidthArrays;
+	}
+
+	public Packer packIntArray(int[] a) throws IOException {
+		return packIntArray(a, 0, a.length);
+	}
+
+	/**
+	 * Writes an array of {@code len} elements. The elements are encoded
+	 * into a temporary buffer and written in batches.
+	 */
+	public Packer packIntArray(int[] a, int off, int len) throws IOException {
+		packArray(len);
+		byte[] b = getScratchBuffer(Math.min(len * 5, MAX_SCRATCH_BUFFER_SIZE));
+		int limit = b.length - 5;
+		int p = 0;
+		for(int i=off, end=off+len; i < end; i++) {
+			if(p > limit) {
+				writeBytes(b, 0, p);
+				p = 0;
+			}
+			if(fixedWidthArrays) {
+				b[p] = (byte)0xd2;
+				BigEndian.writeInt(b, p+1, a[i]);
+				p += 5;
+			} else {
+				p = encodeInt(b, p, a[i]);
+			}
+		}
+		writeBytes(b, 0, p);
+		return this;
+	}
+
+	public Packer packLongArray(long[] a) throws IOException {
+		return packLongArray(a, 0, a.length);
+	}
+
+	public Packer packLongArray(long[] a, int off, int len) throws IOException {
+		packArray(len);
+		byte[] b = getScratchBuffer(Math.min(len * 9, MAX_SCRATCH_BUFFER_SIZE));
+		int limit = b.length - 9;
+		int p = 0;
+		for(int i=off, end=off+len; i < end; i++) {
+			if(p > limit) {
+				writeBytes(b, 0, p);
+				p = 0;
+			}
+			if(fixedWidthArrays) {
+				b[p] = (byte)0xd3;
+				BigEndian.writeLong(b, p+1, a[i]);
+				p += 9;
+			} else {
+				p = encodeLong(b, p, a[i]);
+			}
+		}
+		writeBytes(b, 0, p);
+		return this;
+	}
+
+	public Packer packFloatArray(float[] a) throws IOException {
+		return packFloatArray(a, 0, a.length);
+	}
+
+	public Packer packFloatArray(float[] a, int off, int len) throws IOException {
+		packArray(len);
+		byte[] b = getScratchBuffer(Math.min(len * 5, MAX_SCRATCH_BUFFER_SIZE));
+		int limit = b.length - 5;
+		int p = 0;
+		for(int i=off, end=off+len; i < end; i++) {
+			if(p > limit) {
+				writeBytes(b, 0, p);
+				p = 0;
+			}
+			b[p] = (byte)0xca;
+			BigEndian.writeInt(b, p+1, Float.floatToRawIntBits(a[i]));
+			p += 5;
+		}
+		writeBytes(b, 0, p);
+		return this;
+	}
+
+	public Packer packDoubleArray(double[] a) throws IOException {
+		return packDoubleArray(a, 0, a.length);
+	}
+
+	public Packer packDoubleArray(double[] a, int off, int len) throws IOException {
+		packArray(len);
+		byte[] b = getScratchBuffer(Math.min(len * 9, MAX_SCRATCH_BUFFER_SIZE));
+		int limit = b.length - 9;
+		int p = 0;
+		for(int i=off, end=off+len; i < end; i++) {
+			if(p > limit) {
+				writeBytes(b, 0, p);
+				p = 0;
+			}
+			b[p] = (byte)0xcb;
+			BigEndian.writeLong(b, p+1, Double.doubleToRawLongBits(a[i]));
+			p += 9;
+		}
+		writeBytes(b, 0, p);
+		return this;
+	}
+
+	/**
+	 * Encodes an int in the same format as {@link packInt(int)}.
+	 * @return the offset next to the encoded bytes
+	 */
+	private static int encodeInt(byte[] b, int p, int d) {
+		if(d < -(1<<5)) {
+			if(d < -(1<<15)) {
+				b[p] = (byte)0xd2;
+				BigEndian.writeInt(b, p+1, d);
+				return p+5;
+			} else if(d < -(1<<7)) {
+				b[p] = (byte)0xd1;
+				BigEndian.writeShort(b, p+1, (short)d);
+				return p+3;
+			}
+			b[p] = (byte)0xd0;
+			b[p+1] = (byte)d;
+			return p+2;
+		} else if(d < (1<<7)) {
+			b[p] = (byte)d;
+			return p+1;
+		} else if(d < (1<<8)) {
+			b[p] = (byte)0xcc;
+			b[p+1] = (byte)d;
+			return p+2;
+		} else if(d < (1<<16)) {
+			b[p] = (byte)0xcd;
+			BigEndian.writeShort(b, p+1, (short)d);
+			return p+3;
+		}
+		b[p] = (byte)0xce;
+		BigEndian.writeInt(b, p+1, d);
+		return p+5;
+	}
+
+	/**
+	 * Encodes a long in the same format as {@link packLong(long)}.
+	 * @return the offset next to the encoded bytes
+	 */
+	private static int encodeLong(byte[] b, int p, long d) {
+		if(-(1L<<31) <= d && d < (1L<<32)) {
+			if(d < (1L<<31)) {
+				return encodeInt(b, p, (int)d);
+			}
+			b[p] = (byte)0xce;
+			BigEndian.writeInt(b, p+1, (int)d);
+			return p+5;
+		} else if(d < 0) {
+			b[p] = (byte)0xd3;
+		} else {
+			b[p] = (byte)0xcf;
+		}
+		BigEndian.writeLong(b, p+1, d);
+		return p+9;
 	}
 
 
@@ -500,8 +832,7 @@ public class Packer {
 
 	public Packer pack(ByteBuffer o) throws IOException {
 		if (o == null) { return packNil(); }
-		packRaw(o.remaining());
-		return packRawBody(o.array(), o.arrayOffset() + o.position(), o.remaining());
+		return packByteBuffer(o);
 	}
 
 	public Packer pack(List o) throws IOException {
@@ -537,5 +868,224 @@ public class Packer {
 		tmpl.pack(this, o);
 		return this;
 	}
+
+	public static int sizeOfByte(byte d) {
+		return sizeOfInt(d);
+	}
+
+	public static int sizeOfShort(short d) {
+		return sizeOfInt(d);
+	}
+
+	public static int sizeOfInt(int d) {
+		if(d < -(1<<5)) {
+			if(d < -(1<<15)) {
+				return 5;
+			} else if(d < -(1<<7)) {
+				return 3;
+			}
+			return 2;
+		} else if(d < (1<<7)) {
+			return 1;
+		} else if(d < (1<<8)) {
+			return 2;
+		} else if(d < (1<<16)) {
+			return 3;
+		}
+		return 5;
+	}
+
+	public static int sizeOfLong(long d) {
+		if(d < -(1L<<5)) {
+			if(d < -(1L<<31)) {
+				return 9;
+			} else if(d < -(1L<<15)) {
+				return 5;
+			} else if(d < -(1L<<7)) {
+				return 3;
+			}
+			return 2;
+		} else if(d < (1L<<7)) {
+			return 1;
+		} else if(d < (1L<<8)) {
+			return 2;
+		} else if(d < (1L<<16)) {
+			return 3;
+		} else if(d < (1L<<32)) {
+			return 5;
+		}
+		return 9;
+	}
+
+	/**
+	 * Returns the number of bytes that {@link packIntArray(int[])} writes
+	 * with the specified {@link setFixedWidthArrays(boolean)} mode.
+	 */
+	public static int sizeOfIntArray(int[] a, boolean fixedWidth) {
+		int size = sizeOfArrayHeader(a.length);
+		if(fixedWidth) {
+			return size + a.length * 5;
+		}
+		for(int d : a) {
+			size += sizeOfInt(d);
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the number of bytes that {@link packLongArray(long[])} writes
+	 * with the specified {@link setFixedWidthArrays(boolean)} mode.
+	 */
+	public static int sizeOfLongArray(long[] a, boolean fixedWidth) {
+		int size = sizeOfArrayHeader(a.length);
+		if(fixedWidth) {
+			return size + a.length * 9;
+		}
+		for(long d : a) {
+			size += sizeOfLong(d);
+		}
+		return size;
+	}
+
+	public static int sizeOfBigInteger(BigInteger d) {
+		if(d.bitLength() <= 63) {
+			return sizeOfLong(d.longValue());
+		} else if(d.bitLength() <= 64 && d.signum() >= 0) {
+			return 9;
+		}
+		throw new MessageTypeException("can't pack BigInteger larger than 0xffffffffffffffff");
+	}
+
+	public static int sizeOfFloat(float d) {
+		return 5;
+	}
+
+	public static int sizeOfDouble(double d) {
+		return 9;
+	}
+
+	public static int sizeOfBoolean(boolean d) {
+		return 1;
+	}
+
+	public static int sizeOfNil() {
+		return 1;
+	}
+
+	public static int sizeOfArrayHeader(int n) {
+		if(n < 16) {
+			return 1;
+		} else if(n < 65536) {
+			return 3;
+		}
+		return 5;
+	}
+
+	public static int sizeOfMapHeader(int n) {
+		return sizeOfArrayHeader(n);
+	}
+
+	public static int sizeOfRawHeader(int n) {
+		if(n < 32) {
+			return 1;
+		} else if(n < 65536) {
+			return 3;
+		}
+		return 5;
+	}
+
+	public static int sizeOfRaw(int n) {
+		return sizeOfRawHeader(n) + n;
+	}
+
+	public static int sizeOfString(String s) {
+		return sizeOfRaw(UTF8.length(s));
+	}
+
+	/**
+	 * Returns the exact number of bytes that {@link pack(Object)} writes.
+	 * Like all sizers, this assumes a Packer in the default mode
+	 * (see {@link setFixedWidthArrays(boolean)}).
+	 */
+	public static int sizeOf(Object o) {
+		if(o == null) {
+			return sizeOfNil();
+		}
+		return sizeOf(o, TemplateRegistry.lookup(o.getClass()));
+	}
+
+	/**
+	 * Returns the exact number of bytes that {@link pack(Object, Template)} writes.
+	 * If the template can't compute the size (see {@link knownSizeOf(Object, Template)}),
+	 * the object is measured by packing it into a counter.
+	 */
+	public static int sizeOf(Object o, Template tmpl) {
+		int size = knownSizeOf(o, tmpl);
+		if(size != MessageSizer.UNKNOWN) {
+			return size;
+		}
+		SizeCounter counter = new SizeCounter();
+		try {
+			tmpl.pack(counter, o);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return counter.size;
+	}
+
+	/**
+	 * Returns the number of bytes that {@link pack(Object, Template)} writes
+	 * if the template computes it without serializing the object, or
+	 * {@link MessageSizer#UNKNOWN}. Container templates use this method for
+	 * their elements so that an object is never serialized to be measured.
+	 */
+	public static int knownSizeOf(Object o, Template tmpl) {
+		if(tmpl instanceof MessageSizer) {
+			return ((MessageSizer)tmpl).packedSize(o);
+		}
+		return MessageSizer.UNKNOWN;
+	}
+
+	/**
+	 * Returns the exact number of bytes that {@link pack(MessagePackable)} writes.
+	 */
+	public static int sizeOf(MessagePackable o) {
+		if(o == null) {
+			return sizeOfNil();
+		}
+		SizeCounter counter = new SizeCounter();
+		try {
+			o.messagePack(counter);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return counter.size;
+	}
+
+	private static class SizeCounter extends Packer {
+		int size = 0;
+
+		SizeCounter() {
+			super(null);
+		}
+
+		@Override
+		protected void writeByte(int b) {
+			size++;
+		}
+
+		@Override
+		protected void writeBytes(byte[] b, int off, int len) {
+			size += len;
+		}
+
+		@Override
+		protected void writeString(String s, int length) {
+			size += length;
+		}
+
+		@Override
+		public void flush() { }
+	}
 }
 
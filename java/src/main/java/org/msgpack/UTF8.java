@@ -0,0 +1,97 @@
+//
+// MessagePack for Java
+//
+// Copyright (C) 2009-2010 FURUHASHI Sadayuki
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.msgpack;
+
+/**
+ * Encodes Strings into UTF-8 without temporary arrays.
+ * Unpaired surrogates are encoded as '?' as String.getBytes("UTF-8") does.
+ */
+final class UTF8 {
+	private UTF8() { }
+
+	/**
+	 * Returns the number of bytes of the UTF-8 representation of the string.
+	 */
+	static int length(String s) {
+		int n = s.length();
+		int len = n;
+		for(int i=0; i < n; i++) {
+			char c = s.charAt(i);
+			if(c < 0x80) {
+				continue;
+			}
+			if(c < 0x800) {
+				len += 1;
+			} else if(Character.isHighSurrogate(c) && i+1 < n && Character.isLowSurrogate(s.charAt(i+1))) {
+				// 4 bytes for 2 chars
+				len += 2;
+				i++;
+			} else if(!isSurrogate(c)) {
+				len += 2;
+			}
+		}
+		return len;
+	}
+
+	/**
+	 * Encodes the string into {@code dst} from {@code off}.
+	 * There must be at least {@link length(String)} bytes of space.
+	 * @return the offset after the last written byte.
+	 */
+	static int encode(String s, byte[] dst, int off) {
+		int n = s.length();
+		int i = 0;
+
+		// ASCII fast path
+		for(; i < n; i++) {
+			char c = s.charAt(i);
+			if(c >= 0x80) {
+				break;
+			}
+			dst[off++] = (byte)c;
+		}
+
+		for(; i < n; i++) {
+			char c = s.charAt(i);
+			if(c < 0x80) {
+				dst[off++] = (byte)c;
+			} else if(c < 0x800) {
+				dst[off++] = (byte)(0xc0 | (c >> 6));
+				dst[off++] = (byte)(0x80 | (c & 0x3f));
+			} else if(!isSurrogate(c)) {
+				dst[off++] = (byte)(0xe0 | (c >> 12));
+				dst[off++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+				dst[off++] = (byte)(0x80 | (c & 0x3f));
+			} else if(Character.isHighSurrogate(c) && i+1 < n && Character.isLowSurrogate(s.charAt(i+1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				dst[off++] = (byte)(0xf0 | (cp >> 18));
+				dst[off++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+				dst[off++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+				dst[off++] = (byte)(0x80 | (cp & 0x3f));
+			} else {
+				// unpaired surrogate
+				dst[off++] = (byte)'?';
+			}
+		}
+		return off;
+	}
+
+	private static boolean isSurrogate(char c) {
+		return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+	}
+}
@@ -22,6 +22,7 @@ import java.io.InputStream;
 import java.io.IOException;
 import java.util.Iterator;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.math.BigInteger;
 import org.msgpack.template.TemplateRegistry;
 
@@ -115,12 +116,24 @@ public class Unpacker implements Iterable<MessagePackObject> {
 
 	private static final int DEFAULT_BUFFER_SIZE = 32*1024;
 
+	private static final int DEFAULT_MAP_WINDOW_SIZE = 64*1024*1024;
+
 	protected int parsed;
 	protected int bufferReserveSize;
 	protected InputStream stream;
+	private int maxRetainedBufferSize = Integer.MAX_VALUE;
+
+	// used instead of stream if it is not null
+	private FileChannel channel;
+	// file position of the first byte of the mapped window
+	private long channelPosition;
+	private int mapWindowSize;
 
 	final class BufferedUnpackerMixin extends BufferedUnpackerImpl {
 		boolean fill() throws IOException {
+			if(channel != null) {
+				return remap();
+			}
 			if(stream == null) {
 				return false;
 			}
@@ -197,6 +210,52 @@ public class Unpacker implements Iterable<MessagePackObject> {
     }
 
 
+	/**
+	 * Enables or disables zero-copy mode.
+	 * In zero-copy mode, raw objects returned by {@link next()} and
+	 * {@link execute()} reference the buffer of the unpacker instead of
+	 * copying their bytes. The unpacker doesn't rewrite referenced parts
+	 * of the buffer; it allocates a new buffer when it needs more space.
+	 */
+	public void setZeroCopy(boolean zeroCopy) {
+		impl.setZeroCopy(zeroCopy);
+	}
+
+	public boolean isZeroCopy() {
+		return impl.isZeroCopy();
+	}
+
+	/**
+	 * Sets the maximum length of raw bytes.
+	 * Longer raw bytes cause UnpackException before the body is buffered.
+	 */
+	public void setRawSizeLimit(int limit) {
+		impl.setRawSizeLimit(limit);
+	}
+
+	/**
+	 * Sets the maximum number of elements of an array.
+	 */
+	public void setArraySizeLimit(int limit) {
+		impl.setArraySizeLimit(limit);
+	}
+
+	/**
+	 * Sets the maximum number of key-value pairs of a map.
+	 */
+	public void setMapSizeLimit(int limit) {
+		impl.setMapSizeLimit(limit);
+	}
+
+	/**
+	 * Sets the maximum nesting depth of objects returned by {@link next()}.
+	 * The default is 32.
+	 */
+	public void setDepthLimit(int limit) {
+		impl.setDepthLimit(limit);
+	}
+
+
 	/**
 	 * Fills the buffer with the specified buffer.
 	 */
@@ -209,18 +268,20 @@ public class Unpacker implements Iterable<MessagePackObject> {
 	 */
 	public void feed(byte[] buffer, int offset, int length) {
 		reserveBuffer(length);
-		System.arraycopy(buffer, offset, impl.buffer, impl.offset, length);
+		System.arraycopy(buffer, offset, impl.buffer, impl.filled, length);
 		bufferConsumed(length);
 	}
 
 	/**
 	 * Fills the buffer with the specified buffer.
+	 * The bytes are copied; use {@link wrap(ByteBuffer)} to deserialize
+	 * a ByteBuffer without copying.
 	 */
 	public void feed(ByteBuffer buffer) {
 		int length = buffer.remaining();
 		if (length == 0) return;
 		reserveBuffer(length);
-		buffer.get(impl.buffer, impl.offset, length);
+		buffer.get(impl.buffer, impl.filled, length);
 		bufferConsumed(length);
 	}
 
@@ -237,14 +298,112 @@ public class Unpacker implements Iterable<MessagePackObject> {
 	 * This method doesn't copy the buffer and the its contents will be rewritten by {@link fill()} or {@link feed(byte[])} method.
 	 */
 	public void wrap(byte[] buffer, int offset, int length) {
+		channel = null;
 		impl.buffer = buffer;
+		impl.byteBuffer = null;
+		impl.bufferWrapped = false;
 		impl.offset = offset;
 		impl.filled = length;
-		impl.bufferReferenced = false;  // TODO zero-copy buffer
+		impl.bufferReferenced = false;
+		impl.resetScan();
+	}
+
+	/**
+	 * Swaps the internal buffer with the remaining bytes of the specified buffer.
+	 * Direct and read-only buffers are deserialized directly without
+	 * copying them into a heap buffer. The position of the buffer is not
+	 * changed; use {@link getNonParsedSize()} to know how many bytes are left.
+	 * {@link fill()} or {@link feed(byte[])} copies the non-parsed bytes
+	 * into a new internal buffer; the specified buffer is never rewritten.
+	 */
+	public void wrap(ByteBuffer buffer) {
+		channel = null;
+		if(buffer.hasArray()) {
+			impl.buffer = buffer.array();
+			impl.byteBuffer = null;
+			impl.offset = buffer.arrayOffset() + buffer.position();
+			impl.filled = buffer.arrayOffset() + buffer.limit();
+			// the array belongs to the caller; don't write after the limit
+			impl.bufferWrapped = true;
+			impl.bufferReferenced = true;
+		} else {
+			impl.buffer = null;
+			impl.byteBuffer = BigEndian.bigEndian(buffer);
+			impl.bufferWrapped = false;
+			impl.offset = buffer.position();
+			impl.filled = buffer.limit();
+			impl.bufferReferenced = false;
+		}
+		impl.resetScan();
+	}
+
+	/**
+	 * Calls {@link map(channel, channel.position(), DEFAULT_MAP_WINDOW_SIZE)}.
+	 */
+	public void map(FileChannel channel) throws IOException {
+		map(channel, channel.position(), DEFAULT_MAP_WINDOW_SIZE);
 	}
 
 	/**
-	 * Fills the internal using the input stream.
+	 * Deserializes the file from the specified position through a read-only
+	 * memory-mapped window instead of the input stream.
+	 * When the window is exhausted, {@link fill()} maps the next window
+	 * starting at the first non-parsed byte; a window is enlarged if an
+	 * object doesn't fit in it. In zero-copy mode, raw objects reference
+	 * the mapping, which stays valid as long as they are reachable.
+	 * The position of the channel is not changed.
+	 * @param windowSize size of a mapped window in bytes
+	 */
+	public void map(FileChannel channel, long position, int windowSize) throws IOException {
+		this.channel = channel;
+		this.mapWindowSize = windowSize;
+		long length = channel.size() - position;
+		if(length > windowSize) {
+			length = windowSize;
+		}
+		mapWindow(position, (int)length);
+	}
+
+	private boolean remap() throws IOException {
+		long size = channel.size();
+		long start = channelPosition + impl.offset;
+		long end = channelPosition + impl.filled;
+		if(end >= size) {
+			return false;
+		}
+		int notParsed = impl.filled - impl.offset;
+		long length = mapWindowSize;
+		if(length < notParsed * 2L) {
+			length = notParsed * 2L;
+		}
+		if(length > size - start) {
+			length = size - start;
+		}
+		if(length > Integer.MAX_VALUE) {
+			length = Integer.MAX_VALUE;
+		}
+		if(start + length <= end) {
+			return false;
+		}
+		mapWindow(start, (int)length);
+		return true;
+	}
+
+	private void mapWindow(long position, int length) throws IOException {
+		// MappedByteBuffer is big-endian by default
+		impl.byteBuffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+		impl.buffer = null;
+		impl.bufferWrapped = false;
+		impl.offset = 0;
+		impl.filled = length;
+		impl.bufferReferenced = false;
+		impl.resetScan();
+		channelPosition = position;
+	}
+
+	/**
+	 * Fills the internal using the input stream or maps the next window
+	 * of the channel given by {@link map(FileChannel)}.
 	 * @return false if the stream is null or stream.read returns <= 0.
 	 */
 	public boolean fill() throws IOException {
@@ -265,7 +424,7 @@ public class Unpacker implements Iterable<MessagePackObject> {
 	 */
 	public UnpackResult next() throws IOException, UnpackException {
 		UnpackResult result = new UnpackResult();
-		impl.next(result);
+		next(result);
 		return result;
 	}
 
@@ -274,26 +433,87 @@ public class Unpacker implements Iterable<MessagePackObject> {
 	 * @return false if the buffer is insufficient to deserialize one object.
 	 */
 	public boolean next(UnpackResult result) throws IOException, UnpackException {
-		return impl.next(result);
+		boolean ret = impl.next(result);
+		releaseLargeBuffer();
+		return ret;
 	}
 
 
+	/**
+	 * Checks whether the buffer contains at least one complete object
+	 * without consuming it.
+	 * If this method returns true, typed unpack methods and templates
+	 * can deserialize the object without running out of the buffer.
+	 * This method doesn't call {@link fill()}; the scan is resumed from
+	 * where it stopped on the next call after {@link feed(byte[])}.
+	 * Don't mix this method with {@link next()} or {@link execute()} while
+	 * they have a partially deserialized object.
+	 * Value objects (0xd7) are scanned with the VOHelper set by
+	 * {@link setVOHelper}; without one they throw UnpackException.
+	 * <pre>
+	 * pac.feed(receivedBytes);
+	 * while(pac.isValueAvailable()) {
+	 *     MyClass obj = pac.unpack(MyClass.class);
+	 *     // ...
+	 * }
+	 * </pre>
+	 */
+	public boolean isValueAvailable() throws UnpackException {
+		return impl.isValueAvailable();
+	}
+
 	/**
 	 * Reserve free space of the internal buffer at least specified size and expands {@link getBufferCapacity()}.
+	 * If objects deserialized in zero-copy mode reference the internal buffer,
+	 * the buffer is never rewritten; a new buffer is allocated instead (copy-on-write).
 	 */
 	public void reserveBuffer(int require) {
+		if(impl.byteBuffer != null || impl.bufferWrapped) {
+			// the wrapped ByteBuffer is not writable; move the non-parsed
+			// bytes to a new heap buffer
+			int notParsed = impl.filled - impl.offset;
+			int nextSize = bufferReserveSize;
+			if(nextSize < require + notParsed) {
+				nextSize = require + notParsed;
+			}
+			byte[] tmp = new byte[nextSize];
+			BigEndian.copy(impl.buffer, impl.byteBuffer, impl.offset, tmp, 0, notParsed);
+			impl.buffer = tmp;
+			impl.byteBuffer = null;
+			impl.bufferWrapped = false;
+			impl.filled = notParsed;
+			impl.offset = 0;
+			impl.bufferReferenced = false;
+			impl.resetScan();
+			return;
+		}
+
 		if(impl.buffer == null) {
 			int nextSize = (bufferReserveSize < require) ? require : bufferReserveSize;
 			impl.buffer = new byte[nextSize];
-			impl.bufferReferenced = false;  // TODO zero-copy buffer
+			impl.bufferReferenced = false;
 			return;
 		}
 
-		if(!impl.bufferReferenced) {  // TODO zero-copy buffer
-			if(impl.filled <= impl.offset) {
+		int notParsed = impl.filled - impl.offset;
+
+		if(impl.buffer.length > maxRetainedBufferSize && notParsed + require <= maxRetainedBufferSize) {
+			// shrink the buffer after a large object is consumed
+			int nextSize = (bufferReserveSize < notParsed + require) ? notParsed + require : bufferReserveSize;
+			if(nextSize > maxRetainedBufferSize) {
+				nextSize = maxRetainedBufferSize;
+			}
+			moveBuffer(new byte[nextSize]);
+			return;
+		}
+
+		if(!impl.bufferReferenced) {
+			if(notParsed <= 0) {
 				// rewind the buffer
 				impl.filled = 0;
 				impl.offset = 0;
+				impl.resetScan();
+				notParsed = 0;
 			}
 		}
 
@@ -301,19 +521,72 @@ public class Unpacker implements Iterable<MessagePackObject> {
 			return;
 		}
 
-		int nextSize = impl.buffer.length * 2;
-		int notParsed = impl.filled - impl.offset;
+		if(!impl.bufferReferenced && notParsed + require <= impl.buffer.length &&
+				notParsed <= impl.buffer.length / 2) {
+			// compact the buffer in place
+			System.arraycopy(impl.buffer, impl.offset, impl.buffer, 0, notParsed);
+			impl.filled = notParsed;
+			impl.offset = 0;
+			impl.resetScan();
+			return;
+		}
+
+		int nextSize;
+		if(impl.bufferReferenced) {
+			// copy-on-write: the old buffer is still referenced
+			nextSize = impl.buffer.length;
+		} else {
+			nextSize = impl.buffer.length * 2;
+		}
 		while(nextSize < require + notParsed) {
 			nextSize *= 2;
 		}
 
-		byte[] tmp = new byte[nextSize];
-		System.arraycopy(impl.buffer, impl.offset, tmp, 0, impl.filled - impl.offset);
+		moveBuffer(new byte[nextSize]);
+	}
+
+	private void moveBuffer(byte[] tmp) {
+		int notParsed = impl.filled - impl.offset;
+		System.arraycopy(impl.buffer, impl.offset, tmp, 0, notParsed);
 
 		impl.buffer = tmp;
+		impl.bufferWrapped = false;
 		impl.filled = notParsed;
 		impl.offset = 0;
-		impl.bufferReferenced = false;  // TODO zero-copy buffer
+		impl.bufferReferenced = false;
+		impl.resetScan();
+	}
+
+	/**
+	 * Releases the internal buffer if it is larger than
+	 * {@link getMaxRetainedBufferSize()} and all bytes in it are parsed.
+	 * A new buffer is allocated by {@link reserveBuffer(int)}.
+	 */
+	private void releaseLargeBuffer() {
+		if(impl.buffer != null && impl.buffer.length > maxRetainedBufferSize &&
+				impl.filled <= impl.offset) {
+			impl.buffer = null;
+			impl.bufferWrapped = false;
+			impl.filled = 0;
+			impl.offset = 0;
+			impl.bufferReferenced = false;
+			impl.resetScan();
+		}
+	}
+
+	/**
+	 * Sets the maximum size of the internal buffer kept between objects.
+	 * The buffer grows as large as needed to deserialize a large object;
+	 * once the object is consumed, a buffer larger than this size is
+	 * released or replaced with a smaller one.
+	 * The default is unlimited.
+	 */
+	public void setMaxRetainedBufferSize(int size) {
+		this.maxRetainedBufferSize = size;
+	}
+
+	public int getMaxRetainedBufferSize() {
+		return maxRetainedBufferSize;
 	}
 
 	/**
@@ -325,8 +598,13 @@ public class Unpacker implements Iterable<MessagePackObject> {
 
 	/**
 	 * Returns the size of free space of the internal buffer.
+	 * Returns 0 while a ByteBuffer given to {@link wrap(ByteBuffer)} is
+	 * used; call {@link reserveBuffer(int)} first to get a writable buffer.
 	 */
 	public int getBufferCapacity() {
+		if(impl.buffer == null || impl.bufferWrapped) {
+			return 0;
+		}
 		return impl.buffer.length - impl.filled;
 	}
 
@@ -351,13 +629,18 @@ public class Unpacker implements Iterable<MessagePackObject> {
 	 * @return true if one object is deserialized. Use {@link getData()} to get the deserialized object.
 	 */
 	public boolean execute() throws UnpackException {
-		int noffset = impl.execute(impl.buffer, impl.offset, impl.filled);
+		int noffset = impl.executeBuffer();
+		impl.markReferenced();
 		if(noffset <= impl.offset) {
 			return false;
 		}
 		parsed += noffset - impl.offset;
 		impl.offset = noffset;
-		return impl.isFinished();
+		if(impl.isFinished()) {
+			releaseLargeBuffer();
+			return true;
+		}
+		return false;
 	}
 
 
@@ -381,6 +664,7 @@ public class Unpacker implements Iterable<MessagePackObject> {
 	 */
 	public int execute(byte[] buffer, int offset, int length) throws UnpackException {
 		int noffset = impl.execute(buffer, offset, length);
+		impl.rawReferenced = false;
 		if(impl.isFinished()) {
 			impl.resetState();
 		}
@@ -426,6 +710,7 @@ public class Unpacker implements Iterable<MessagePackObject> {
 
 	public void removeNonparsedBuffer() {
 		impl.filled = impl.offset;
+		impl.resetScan();
 	}
 
 
@@ -520,6 +805,86 @@ public class Unpacker implements Iterable<MessagePackObject> {
 		return impl.unpackArray();
 	}
 
+	/**
+	 * Gets one array of {@code int} values from the buffer.
+	 * This method calls {@link fill()} method if needed.
+	 * @param to array to store the values in if its length equals to the
+	 *        length of the serialized array; can be null.
+	 * @throws MessageTypeException the first value of the buffer is not a array of {@code int}.
+	 */
+	public int[] unpackIntArray(int[] to) throws IOException, MessageTypeException {
+		int length = impl.unpackArray();
+		if(to == null || to.length != length) {
+			to = new int[length];
+		}
+		impl.unpackIntArray(to, 0, length);
+		return to;
+	}
+
+	public int[] unpackIntArray() throws IOException, MessageTypeException {
+		return unpackIntArray(null);
+	}
+
+	/**
+	 * Gets one array of {@code long} values from the buffer.
+	 * This method calls {@link fill()} method if needed.
+	 * @param to array to store the values in if its length equals to the
+	 *        length of the serialized array; can be null.
+	 * @throws MessageTypeException the first value of the buffer is not a array of {@code long}.
+	 */
+	public long[] unpackLongArray(long[] to) throws IOException, MessageTypeException {
+		int length = impl.unpackArray();
+		if(to == null || to.length != length) {
+			to = new long[length];
+		}
+		impl.unpackLongArray(to, 0, length);
+		return to;
+	}
+
+	public long[] unpackLongArray() throws IOException, MessageTypeException {
+		return unpackLongArray(null);
+	}
+
+	/**
+	 * Gets one array of {@code float} values from the buffer.
+	 * This method calls {@link fill()} method if needed.
+	 * @param to array to store the values in if its length equals to the
+	 *        length of the serialized array; can be null.
+	 * @throws MessageTypeException the first value of the buffer is not a array of {@code float}.
+	 */
+	public float[] unpackFloatArray(float[] to) throws IOException, MessageTypeException {
+		int length = impl.unpackArray();
+		if(to == null || to.length != length) {
+			to = new float[length];
+		}
+		impl.unpackFloatArray(to, 0, length);
+		return to;
+	}
+
+	public float[] unpackFloatArray() throws IOException, MessageTypeException {
+		return unpackFloatArray(null);
+	}
+
+	/**
+	 * Gets one array of {@code double} values from the buffer.
+	 * This method calls {@link fill()} method if needed.
+	 * @param to array to store the values in if its length equals to the
+	 *        length of the serialized array; can be null.
+	 * @throws MessageTypeException the first value of the buffer is not a array of {@code double}.
+	 */
+	public double[] unpackDoubleArray(double[] to) throws IOException, MessageTypeException {
+		int length = impl.unpackArray();
+		if(to == null || to.length != length) {
+			to = new double[length];
+		}
+		impl.unpackDoubleArray(to, 0, length);
+		return to;
+	}
+
+	public double[] unpackDoubleArray() throws IOException, MessageTypeException {
+		return unpackDoubleArray(null);
+	}
+
 	/**
 	 * Gets one map header from the buffer.
 	 * This method calls {@link fill()} method if needed.
@@ -582,6 +947,15 @@ public class Unpacker implements Iterable<MessagePackObject> {
 		return impl.unpackObject();
 	}
 
+	/**
+	 * Skips one value (including nested arrays and maps) in the buffer
+	 * without deserializing it.
+	 * This method calls {@link fill()} method if needed.
+	 */
+	final public void skipValue() throws IOException {
+		impl.skipValue();
+	}
+
 	final public boolean tryUnpackNull() throws IOException {
 		return impl.tryUnpackNull();
 	}
@@ -18,6 +18,7 @@
 package org.msgpack;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.math.BigInteger;
 import org.msgpack.object.*;
 
@@ -48,19 +49,31 @@ public class UnpackerImpl {
     static final int CT_VO_VALUES   = 0x03;
 
 	static final int MAX_STACK_SIZE = 32;
+	static final int INITIAL_STACK_SIZE = 8;
+	static final int INITIAL_CONTAINER_SIZE = 16;
+
+	private static final byte[] EMPTY_BYTES = new byte[0];
+	private static final MessagePackObject[] EMPTY_OBJECTS = new MessagePackObject[0];
 
 	private int cs;
 	private int trail;
 	private int top;
-	private int[]    stack_ct       = new int[MAX_STACK_SIZE];
-	private int[]    stack_count    = new int[MAX_STACK_SIZE];
-	private Object[] stack_obj      = new Object[MAX_STACK_SIZE];
+	private int[]    stack_ct       = new int[INITIAL_STACK_SIZE];
+	private int[]    stack_count    = new int[INITIAL_STACK_SIZE];
+	private int[]    stack_size     = new int[INITIAL_STACK_SIZE];
+	private Object[] stack_obj      = new Object[INITIAL_STACK_SIZE];
 	private int top_ct;
 	private int top_count;
+	private int top_size;
 	private Object top_obj;
-	private ByteBuffer castBuffer   = ByteBuffer.allocate(8);
 	private boolean finished = false;
 	private MessagePackObject data = null;
+	private boolean zeroCopy = false;
+	int rawSizeLimit = Integer.MAX_VALUE;
+	int arraySizeLimit = Integer.MAX_VALUE;
+	int mapSizeLimit = Integer.MAX_VALUE;
+	int depthLimit = MAX_STACK_SIZE;
+	boolean rawReferenced = false;
     private VOHelper voHelper = null;
 
     public interface VOHelper {
@@ -104,6 +117,11 @@ public class UnpackerImpl {
         this.voHelper = voHelper;
     }
 
+    final VOHelper getVOHelper()
+    {
+        return voHelper;
+    }
+
 	public final MessagePackObject getData()
 	{
 		return data;
@@ -114,11 +132,82 @@ public class UnpackerImpl {
 		return finished;
 	}
 
+	/**
+	 * If zero-copy is enabled, deserialized raw objects reference the
+	 * source buffer passed to {@link execute(byte[], int, int)} instead
+	 * of copying it.
+	 */
+	public final void setZeroCopy(boolean zeroCopy)
+	{
+		this.zeroCopy = zeroCopy;
+	}
+
+	public final boolean isZeroCopy()
+	{
+		return zeroCopy;
+	}
+
+	/**
+	 * Sets the maximum length of raw bytes. Longer raw bytes cause UnpackException.
+	 */
+	public final void setRawSizeLimit(int limit)
+	{
+		this.rawSizeLimit = limit;
+	}
+
+	/**
+	 * Sets the maximum number of elements of an array.
+	 * Larger arrays cause UnpackException.
+	 */
+	public final void setArraySizeLimit(int limit)
+	{
+		this.arraySizeLimit = limit;
+	}
+
+	/**
+	 * Sets the maximum number of key-value pairs of a map.
+	 * Larger maps cause UnpackException.
+	 */
+	public final void setMapSizeLimit(int limit)
+	{
+		this.mapSizeLimit = limit;
+	}
+
+	/**
+	 * Sets the maximum nesting depth of arrays, maps and value objects.
+	 * Deeper objects cause UnpackException.
+	 */
+	public final void setDepthLimit(int limit)
+	{
+		this.depthLimit = limit;
+	}
+
+	public final int getRawSizeLimit()
+	{
+		return rawSizeLimit;
+	}
+
+	public final int getArraySizeLimit()
+	{
+		return arraySizeLimit;
+	}
+
+	public final int getMapSizeLimit()
+	{
+		return mapSizeLimit;
+	}
+
+	public final int getDepthLimit()
+	{
+		return depthLimit;
+	}
+
 	public final void resetState() {
 		cs = CS_HEADER;
 		top = -1;
 		top_ct = 0;
 		top_count = 0;
+		top_size = 0;
 		top_obj = null;
 	}
 
@@ -129,8 +218,29 @@ public class UnpackerImpl {
 		data = null;
 	}
 
-	@SuppressWarnings("unchecked")
 	public final int execute(byte[] src, int off, int length) throws UnpackException
+	{
+		return execute(src, null, off, length);
+	}
+
+	/**
+	 * Deserializes from the buffer using absolute indexes.
+	 * The position and limit of the buffer are not used nor changed.
+	 * In zero-copy mode, raw objects reference the buffer; direct buffers
+	 * are referenced through a slice of it.
+	 */
+	public final int execute(ByteBuffer src, int off, int length) throws UnpackException
+	{
+		if(src.hasArray()) {
+			int base = src.arrayOffset();
+			return execute(src.array(), null, base + off, base + length) - base;
+		}
+		return execute(null, BigEndian.bigEndian(src), off, length);
+	}
+
+	// either src or bsrc is null
+	@SuppressWarnings("unchecked")
+	private final int execute(byte[] src, ByteBuffer bsrc, int off, int length) throws UnpackException
 	{
 		if(off >= length) { return off; }
 
@@ -144,7 +254,7 @@ public class UnpackerImpl {
 		_header_again_without_cs_reset: { _header_again: {
 			//System.out.println("while i:"+i+" limit:"+limit);
 
-			int b = src[i];
+			int b = BigEndian.get(src, bsrc, i);
 
 			_push: {
 				_fixed_trail_again:
@@ -163,9 +273,9 @@ public class UnpackerImpl {
 					}
 	
 					if((b & 0xe0) == 0xa0) {  // FixRaw
-						trail = b & 0x1f;
+						trail = checkRawSize(b & 0x1f);
 						if(trail == 0) {
-							obj = RawType.create(new byte[0]);
+							obj = RawType.create(EMPTY_BYTES);
 							break _push;
 						}
 						cs = ACS_RAW_VALUE;
@@ -173,44 +283,44 @@ public class UnpackerImpl {
 					}
 	
 					if((b & 0xf0) == 0x90) {  // FixArray
-						if(top >= MAX_STACK_SIZE) {
-							throw new UnpackException("parse error");
-						}
-						count = b & 0x0f;
+						count = checkArraySize(b & 0x0f);
 						//System.out.println("fixarray count:"+count);
-						obj = new MessagePackObject[count];
 						if(count == 0) {
-							obj = ArrayType.create((MessagePackObject[])obj);
+							obj = ArrayType.create(EMPTY_OBJECTS);
 							break _push;
 						}
+						ensureStack();
+						obj = new MessagePackObject[initialSize(count)];
 						++top;
 						stack_obj[top]    = top_obj;
 						stack_ct[top]     = top_ct;
 						stack_count[top]  = top_count;
+						stack_size[top]   = top_size;
 						top_obj    = obj;
 						top_ct     = CT_ARRAY_ITEM;
 						top_count  = count;
+						top_size   = count;
 						break _header_again;
 					}
 	
 					if((b & 0xf0) == 0x80) {  // FixMap
-						if(top >= MAX_STACK_SIZE) {
-							throw new UnpackException("parse error");
-						}
-						count = b & 0x0f;
-						obj = new MessagePackObject[count*2];
+						count = checkMapSize(b & 0x0f);
 						if(count == 0) {
-							obj = MapType.create((MessagePackObject[])obj);
+							obj = MapType.create(EMPTY_OBJECTS);
 							break _push;
 						}
+						ensureStack();
+						obj = new MessagePackObject[initialSize(count*2)];
 						//System.out.println("fixmap count:"+count);
 						++top;
 						stack_obj[top]    = top_obj;
 						stack_ct[top]     = top_ct;
 						stack_count[top]  = top_count;
+						stack_size[top]   = top_size;
 						top_obj    = obj;
 						top_ct     = CT_MAP_KEY;
 						top_count  = count;
+						top_size   = count;
 						break _header_again;
 					}
 	
@@ -250,10 +360,12 @@ public class UnpackerImpl {
 						break _fixed_trail_again;
                     case 0xd7:  // ValueObject
                         //System.out.println(top + " valueobject:start     | (push top)");
+                        ensureStack();
                         ++top;
                         stack_obj[top]    = top_obj;
                         stack_ct[top]     = top_ct;
                         stack_count[top]  = top_count;
+                        stack_size[top]   = top_size;
                         top_obj    = voHelper.newObject();
                         top_ct     = -1;
                         top_count  = -1;
@@ -277,15 +389,11 @@ public class UnpackerImpl {
 
 					switch(cs) {
 					case CS_FLOAT:
-						castBuffer.rewind();
-						castBuffer.put(src, n, 4);
-						obj = FloatType.create( castBuffer.getFloat(0) );
+						obj = FloatType.create( BigEndian.readFloat(src, bsrc, n) );
 						//System.out.println("float "+obj);
 						break _push;
 					case CS_DOUBLE:
-						castBuffer.rewind();
-						castBuffer.put(src, n, 8);
-						obj = FloatType.create( castBuffer.getDouble(0) );
+						obj = FloatType.create( BigEndian.readDouble(src, bsrc, n) );
 						//System.out.println("double "+obj);
 						break _push;
 					case CS_UINT_8:
@@ -293,169 +401,149 @@ public class UnpackerImpl {
 						//System.out.println(src[n]);
 						//System.out.println(src[n+1]);
 						//System.out.println(src[n-1]);
-						obj = IntegerType.create( (short)((src[n]) & 0xff) );
+						obj = IntegerType.create( (short)(BigEndian.get(src, bsrc, n) & 0xff) );
 						//System.out.println("uint8 "+obj);
 						break _push;
 					case CS_UINT_16:
 						//System.out.println(src[n]);
 						//System.out.println(src[n+1]);
-						castBuffer.rewind();
-						castBuffer.put(src, n, 2);
-						obj = IntegerType.create( ((int)castBuffer.getShort(0)) & 0xffff );
+						obj = IntegerType.create( BigEndian.readUnsignedShort(src, bsrc, n) );
 						//System.out.println("uint 16 "+obj);
 						break _push;
 					case CS_UINT_32:
-						castBuffer.rewind();
-						castBuffer.put(src, n, 4);
-						obj = IntegerType.create( ((long)castBuffer.getInt(0)) & 0xffffffffL );
+						obj = IntegerType.create( ((long)BigEndian.readInt(src, bsrc, n)) & 0xffffffffL );
 						//System.out.println("uint 32 "+obj);
 						break _push;
 					case CS_UINT_64:
-						castBuffer.rewind();
-						castBuffer.put(src, n, 8);
 						{
-							long o = castBuffer.getLong(0);
+							long o = BigEndian.readLong(src, bsrc, n);
 							if(o < 0) {
-								obj = IntegerType.create(new BigInteger(1, castBuffer.array()));
+								obj = IntegerType.create(new BigInteger(1, BigEndian.copyOfRange(src, bsrc, n, n+8)));
 							} else {
 								obj = IntegerType.create(o);
 							}
 						}
 						break _push;
 					case CS_INT_8:
-						obj = IntegerType.create( src[n] );
+						obj = IntegerType.create( BigEndian.get(src, bsrc, n) );
 						break _push;
 					case CS_INT_16:
-						castBuffer.rewind();
-						castBuffer.put(src, n, 2);
-						obj = IntegerType.create( castBuffer.getShort(0) );
+						obj = IntegerType.create( BigEndian.readShort(src, bsrc, n) );
 						break _push;
 					case CS_INT_32:
-						castBuffer.rewind();
-						castBuffer.put(src, n, 4);
-						obj = IntegerType.create( castBuffer.getInt(0) );
+						obj = IntegerType.create( BigEndian.readInt(src, bsrc, n) );
 						break _push;
 					case CS_INT_64:
-						castBuffer.rewind();
-						castBuffer.put(src, n, 8);
-						obj = IntegerType.create( castBuffer.getLong(0) );
+						obj = IntegerType.create( BigEndian.readLong(src, bsrc, n) );
 						break _push;
 					case CS_RAW_16:
-						castBuffer.rewind();
-						castBuffer.put(src, n, 2);
-						trail = ((int)castBuffer.getShort(0)) & 0xffff;
+						trail = checkRawSize(BigEndian.readUnsignedShort(src, bsrc, n));
 						if(trail == 0) {
-							obj = RawType.create(new byte[0]);
+							obj = RawType.create(EMPTY_BYTES);
 							break _push;
 						}
 						cs = ACS_RAW_VALUE;
 						break _fixed_trail_again;
 					case CS_RAW_32:
-						castBuffer.rewind();
-						castBuffer.put(src, n, 4);
-						// FIXME overflow check
-						trail = castBuffer.getInt(0) & 0x7fffffff;
+						trail = checkRawSize(BigEndian.readInt(src, bsrc, n) & 0xffffffffL);
 						if(trail == 0) {
-							obj = RawType.create(new byte[0]);
+							obj = RawType.create(EMPTY_BYTES);
 							break _push;
 						}
 						cs = ACS_RAW_VALUE;
 						break _fixed_trail_again;
-					case ACS_RAW_VALUE: {
-							// TODO zero-copy buffer
-							byte[] raw = new byte[trail];
-							System.arraycopy(src, n, raw, 0, trail);
+					case ACS_RAW_VALUE:
+						if(zeroCopy && src != null) {
+							obj = RawType.create(src, n, trail);
+							rawReferenced = true;
+						} else if(zeroCopy) {
+							ByteBuffer raw = bsrc.duplicate();
+							raw.limit(n+trail);
+							raw.position(n);
 							obj = RawType.create(raw);
+							rawReferenced = true;
+						} else {
+							obj = RawType.create(BigEndian.copyOfRange(src, bsrc, n, n+trail));
 						}
 						break _push;
 					case CS_ARRAY_16:
-						if(top >= MAX_STACK_SIZE) {
-							throw new UnpackException("parse error");
-						}
-						castBuffer.rewind();
-						castBuffer.put(src, n, 2);
-						count = ((int)castBuffer.getShort(0)) & 0xffff;
-						obj = new MessagePackObject[count];
+						count = checkArraySize(BigEndian.readUnsignedShort(src, bsrc, n));
 						if(count == 0) {
-							obj = ArrayType.create((MessagePackObject[])obj);
+							obj = ArrayType.create(EMPTY_OBJECTS);
 							break _push;
 						}
+						ensureStack();
+						obj = new MessagePackObject[initialSize(count)];
 						++top;
 						stack_obj[top]    = top_obj;
 						stack_ct[top]     = top_ct;
 						stack_count[top]  = top_count;
+						stack_size[top]   = top_size;
 						top_obj    = obj;
 						top_ct     = CT_ARRAY_ITEM;
 						top_count  = count;
+						top_size   = count;
 						break _header_again;
 					case CS_ARRAY_32:
-						if(top >= MAX_STACK_SIZE) {
-							throw new UnpackException("parse error");
-						}
-						castBuffer.rewind();
-						castBuffer.put(src, n, 4);
-						// FIXME overflow check
-						count = castBuffer.getInt(0) & 0x7fffffff;
-						obj = new MessagePackObject[count];
+						count = checkArraySize(BigEndian.readInt(src, bsrc, n) & 0xffffffffL);
 						if(count == 0) {
-							obj = ArrayType.create((MessagePackObject[])obj);
+							obj = ArrayType.create(EMPTY_OBJECTS);
 							break _push;
 						}
+						ensureStack();
+						obj = new MessagePackObject[initialSize(count)];
 						++top;
 						stack_obj[top]    = top_obj;
 						stack_ct[top]     = top_ct;
 						stack_count[top]  = top_count;
+						stack_size[top]   = top_size;
 						top_obj    = obj;
 						top_ct     = CT_ARRAY_ITEM;
 						top_count  = count;
+						top_size   = count;
 						break _header_again;
 					case CS_MAP_16:
-						if(top >= MAX_STACK_SIZE) {
-							throw new UnpackException("parse error");
-						}
-						castBuffer.rewind();
-						castBuffer.put(src, n, 2);
-						count = ((int)castBuffer.getShort(0)) & 0xffff;
-						obj = new MessagePackObject[count*2];
+						count = checkMapSize(BigEndian.readUnsignedShort(src, bsrc, n));
 						if(count == 0) {
-							obj = MapType.create((MessagePackObject[])obj);
+							obj = MapType.create(EMPTY_OBJECTS);
 							break _push;
 						}
+						ensureStack();
+						obj = new MessagePackObject[initialSize(count*2)];
 						//System.out.println("fixmap count:"+count);
 						++top;
 						stack_obj[top]    = top_obj;
 						stack_ct[top]     = top_ct;
 						stack_count[top]  = top_count;
+						stack_size[top]   = top_size;
 						top_obj    = obj;
 						top_ct     = CT_MAP_KEY;
 						top_count  = count;
+						top_size   = count;
 						break _header_again;
 					case CS_MAP_32:
-						if(top >= MAX_STACK_SIZE) {
-							throw new UnpackException("parse error");
-						}
-						castBuffer.rewind();
-						castBuffer.put(src, n, 4);
-						// FIXME overflow check
-						count = castBuffer.getInt(0) & 0x7fffffff;
-						obj = new MessagePackObject[count*2];
+						count = checkMapSize(BigEndian.readInt(src, bsrc, n) & 0xffffffffL);
 						if(count == 0) {
-							obj = MapType.create((MessagePackObject[])obj);
+							obj = MapType.create(EMPTY_OBJECTS);
 							break _push;
 						}
+						ensureStack();
+						obj = new MessagePackObject[initialSize(count*2)];
 						//System.out.println("fixmap count:"+count);
 						++top;
 						stack_obj[top]    = top_obj;
 						stack_ct[top]     = top_ct;
 						stack_count[top]  = top_count;
+						stack_size[top]   = top_size;
 						top_obj    = obj;
 						top_ct     = CT_MAP_KEY;
 						top_count  = count;
+						top_size   = count;
 						break _header_again;
 
                     case CS_VO_HEADER: {
                         VOInstance vo = (VOInstance) top_obj;
-                        int header = src[n];
+                        int header = BigEndian.get(src, bsrc, n);
 
                         if (header >= 0) // first (sign) bit not set
                         {
@@ -467,11 +555,16 @@ public class UnpackerImpl {
                                 break _out; // try again later when sufficient data is available
                             }
                             i = n + count;
-                            vo.putValue(src, n);
+                            if(src != null) {
+                                vo.putValue(src, n);
+                            } else {
+                                vo.putValue(BigEndian.copyOfRange(src, bsrc, n, n+count+1), 0);
+                            }
                             //System.out.println(top + "   \\_ -> pop stack     | custom value done");
                             top_obj    = stack_obj[top];
                             top_ct     = stack_ct[top];
                             top_count  = stack_count[top];
+                            top_size   = stack_size[top];
                             stack_obj[top] = null;
                             --top;
                             obj = vo.getData();
@@ -483,11 +576,9 @@ public class UnpackerImpl {
                         int typeID;
                         if (0 == (header & 0x40)) { // single byte typeID
                             --i; // go back one, as trail was guessed as 3
-                            typeID = ((src[n+1]) & 0xff);
+                            typeID = (BigEndian.get(src, bsrc, n+1) & 0xff);
                         } else {
-                            castBuffer.rewind();
-                            castBuffer.put(src, n+1, 2);
-                            typeID = ((int)castBuffer.getShort(0)) & 0xffff;
+                            typeID = BigEndian.readUnsignedShort(src, bsrc, n+1);
                         }
                         /*System.out.println(top + " valueobject:header    | firstbyte = "+ header +
                           ", mixins = "+ mixinCount +
@@ -515,6 +606,7 @@ public class UnpackerImpl {
                         top_obj    = stack_obj[top];
                         top_ct     = stack_ct[top];
                         top_count  = stack_count[top];
+                        top_size   = stack_size[top];
                         stack_obj[top] = null;
                         --top;
                         obj = vo.getData();
@@ -524,8 +616,9 @@ public class UnpackerImpl {
                         //System.out.println(top + " valueobject:fields");
                         // read 1 byte (field-group of max 8 values)
                         VOInstance vo = (VOInstance) top_obj;
-                        vo.prepareForNext8Fields(src[i]);
-                        if (src[i] != 0) {// && vo.fieldgroupRequiresMoreValues()) {
+                        byte flags = BigEndian.get(src, bsrc, i);
+                        vo.prepareForNext8Fields(flags);
+                        if (flags != 0) {// && vo.fieldgroupRequiresMoreValues()) {
                             top_ct = CT_VO_VALUES;
                             break _header_again;
                         }
@@ -538,6 +631,7 @@ public class UnpackerImpl {
                                 top_obj    = stack_obj[top];
                                 top_ct     = stack_ct[top];
                                 top_count  = stack_count[top];
+                                top_size   = stack_size[top];
                                 stack_obj[top] = null;
                                 --top;
                                 obj = vo.getData();
@@ -574,11 +668,17 @@ public class UnpackerImpl {
 				case CT_ARRAY_ITEM: {
 						//System.out.println("array item "+obj);
 						Object[] ar = (Object[])top_obj;
-						ar[ar.length - top_count] = obj;
+						int index = top_size - top_count;
+						if(index >= ar.length) {
+							ar = grow(ar, top_size);
+							top_obj = ar;
+						}
+						ar[index] = obj;
 						if(--top_count == 0) {
 							top_obj    = stack_obj[top];
 							top_ct     = stack_ct[top];
 							top_count  = stack_count[top];
+							top_size   = stack_size[top];
 							obj = ArrayType.create((MessagePackObject[])ar);
 							stack_obj[top] = null;
 							--top;
@@ -589,18 +689,24 @@ public class UnpackerImpl {
 				case CT_MAP_KEY: {
 						//System.out.println("map key:"+top+" "+obj);
 						Object[] mp = (Object[])top_obj;
-						mp[mp.length - top_count*2] = obj;
+						int index = (top_size - top_count)*2;
+						if(index >= mp.length) {
+							mp = grow(mp, top_size*2);
+							top_obj = mp;
+						}
+						mp[index] = obj;
 						top_ct = CT_MAP_VALUE;
 						break _header_again;
 					}
 				case CT_MAP_VALUE: {
 						//System.out.println("map value:"+top+" "+obj);
 						Object[] mp = (Object[])top_obj;
-						mp[mp.length - top_count*2 + 1] = obj;
+						mp[(top_size - top_count)*2 + 1] = obj;
 						if(--top_count == 0) {
 							top_obj    = stack_obj[top];
 							top_ct     = stack_ct[top];
 							top_count  = stack_count[top];
+							top_size   = stack_size[top];
 							obj = MapType.create((MessagePackObject[])mp);
 							stack_obj[top] = null;
 							--top;
@@ -633,6 +739,7 @@ public class UnpackerImpl {
                             top_obj    = stack_obj[top];
                             top_ct     = stack_ct[top];
                             top_count  = stack_count[top];
+                            top_size   = stack_size[top];
                             stack_obj[top] = null;
                             --top;
                             obj = vo.getData();
@@ -658,5 +765,58 @@ public class UnpackerImpl {
 
 		return i;
 	}
-}
 
+	final int checkRawSize(long size) throws UnpackException
+	{
+		if(size > rawSizeLimit) {
+			throw new UnpackException("raw size too large");
+		}
+		return (int)size;
+	}
+
+	final int checkArraySize(long size) throws UnpackException
+	{
+		if(size > arraySizeLimit) {
+			throw new UnpackException("array size too large");
+		}
+		return (int)size;
+	}
+
+	final int checkMapSize(long size) throws UnpackException
+	{
+		if(size > mapSizeLimit || size > Integer.MAX_VALUE / 2) {
+			throw new UnpackException("map size too large");
+		}
+		return (int)size;
+	}
+
+	private final void ensureStack() throws UnpackException
+	{
+		if(top + 1 >= depthLimit) {
+			throw new UnpackException("nesting too deep");
+		}
+		if(top + 1 >= stack_ct.length) {
+			int nextSize = stack_ct.length * 2;
+			stack_ct    = Arrays.copyOf(stack_ct, nextSize);
+			stack_count = Arrays.copyOf(stack_count, nextSize);
+			stack_size  = Arrays.copyOf(stack_size, nextSize);
+			stack_obj   = Arrays.copyOf(stack_obj, nextSize);
+		}
+	}
+
+	// Elements are allocated as they arrive so that a large declared
+	// size doesn't allocate memory before the data is received.
+	private static int initialSize(int size)
+	{
+		return size < INITIAL_CONTAINER_SIZE ? size : INITIAL_CONTAINER_SIZE;
+	}
+
+	private static Object[] grow(Object[] array, int size)
+	{
+		int nextSize = array.length * 2;
+		if(nextSize > size || nextSize < 0) {
+			nextSize = size;
+		}
+		return Arrays.copyOf(array, nextSize);
+	}
+}
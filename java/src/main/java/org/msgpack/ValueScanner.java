@@ -0,0 +1,255 @@
+//
+// MessagePack for Java
+//
+// Copyright (C) 2009-2010 FURUHASHI Sadayuki
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.msgpack;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Finds the end of serialized values by reading only their headers.
+ * Nested arrays and maps are counted, not decoded, and raw bodies
+ * are skipped by length.
+ *
+ * The scanner is resumable: {@link #scan(byte[], int, int)} stops before
+ * an incomplete header and continues from there on the next call.
+ *
+ * Value objects (0xd7) have a layout defined by
+ * {@link UnpackerImpl.VOHelper}; they are parsed with UnpackerImpl if
+ * the scanner has a VOHelper, otherwise they cause UnpackException.
+ *
+ * {@link readHeader(byte[], ByteBuffer, int, int)} is the header decoder
+ * shared by the scanner, {@link Unpacker#skipValue()},
+ * {@link MessagePackReader} and {@link MessagePackPath}.
+ */
+final class ValueScanner {
+	// kinds of values returned by readHeader
+	static final int NEED_MORE    = -1;
+	static final int SCALAR       = 0;
+	static final int RAW          = 1;
+	static final int ARRAY        = 2;
+	static final int MAP          = 3;
+	static final int VALUE_OBJECT = 4;
+
+	private final UnpackerImpl.VOHelper voHelper;
+	// number of values left to skip
+	private long remain;
+	// number of raw body bytes left to skip
+	private long trail;
+	// parser of the value object being skipped, or null
+	private UnpackerImpl voParser;
+
+	// set by readHeader: size of the header including the body of
+	// scalars, and the length of raw bytes or the number of elements
+	// of arrays and key-value pairs of maps
+	int headerSize;
+	long length;
+
+	ValueScanner() {
+		this(null);
+	}
+
+	ValueScanner(UnpackerImpl.VOHelper voHelper) {
+		this.voHelper = voHelper;
+		reset();
+	}
+
+	UnpackerImpl.VOHelper getVOHelper() {
+		return voHelper;
+	}
+
+	void reset() {
+		remain = 1;
+		trail = 0;
+		voParser = null;
+	}
+
+	boolean isFinished() {
+		return remain == 0 && trail == 0;
+	}
+
+	/**
+	 * Counts one complete value that was skipped without scanning it.
+	 */
+	void valueSkipped() {
+		--remain;
+	}
+
+	/**
+	 * Skips one value starting at {@code off}.
+	 * @return the end offset of the value, or -1 if the value is not complete.
+	 */
+	static int skip(byte[] src, int off, int limit) throws UnpackException {
+		return skip(src, null, off, limit);
+	}
+
+	static int skip(byte[] src, ByteBuffer bsrc, int off, int limit) throws UnpackException {
+		ValueScanner scanner = new ValueScanner();
+		int end = scanner.scan(src, bsrc, off, limit);
+		return scanner.isFinished() ? end : -1;
+	}
+
+	/**
+	 * Decodes the header at {@code i} of {@code src} if it is not null,
+	 * otherwise of {@code bsrc}, and sets {@link headerSize} and
+	 * {@link length}.
+	 * @return the kind of the value, or NEED_MORE if the header is not complete.
+	 */
+	int readHeader(byte[] src, ByteBuffer bsrc, int i, int limit) throws UnpackException {
+		if(i >= limit) {
+			return NEED_MORE;
+		}
+		int b = BigEndian.get(src, bsrc, i);
+		if((b & 0x80) == 0 || (b & 0xe0) == 0xe0) {  // Fixnum
+			return header(1, 0, SCALAR);
+		}
+		if((b & 0xe0) == 0xa0) {  // FixRaw
+			return header(1, b & 0x1f, RAW);
+		}
+		if((b & 0xf0) == 0x90) {  // FixArray
+			return header(1, b & 0x0f, ARRAY);
+		}
+		if((b & 0xf0) == 0x80) {  // FixMap
+			return header(1, b & 0x0f, MAP);
+		}
+
+		switch(b & 0xff) {
+		case 0xc0:  // nil
+		case 0xc2:  // false
+		case 0xc3:  // true
+			return header(1, 0, SCALAR);
+		case 0xca:  // float
+		case 0xcb:  // double
+		case 0xcc:  // unsigned int  8
+		case 0xcd:  // unsigned int 16
+		case 0xce:  // unsigned int 32
+		case 0xcf:  // unsigned int 64
+		case 0xd0:  // signed int  8
+		case 0xd1:  // signed int 16
+		case 0xd2:  // signed int 32
+		case 0xd3:  // signed int 64
+			{
+				int n = 1 + (1 << (b & 0x03));
+				if(limit - i < n) {
+					return NEED_MORE;
+				}
+				return header(n, 0, SCALAR);
+			}
+		case 0xda:  // raw 16
+		case 0xdc:  // array 16
+		case 0xde:  // map 16
+			if(limit - i < 3) {
+				return NEED_MORE;
+			}
+			return header(3, BigEndian.readUnsignedShort(src, bsrc, i+1), kindOf(b));
+		case 0xdb:  // raw 32
+		case 0xdd:  // array 32
+		case 0xdf:  // map 32
+			if(limit - i < 5) {
+				return NEED_MORE;
+			}
+			return header(5, BigEndian.readInt(src, bsrc, i+1) & 0xffffffffL, kindOf(b));
+		case 0xd7:  // ValueObject
+			return header(1, 0, VALUE_OBJECT);
+		default:
+			throw new UnpackException("parse error");
+		}
+	}
+
+	private int header(int size, long length, int kind) {
+		this.headerSize = size;
+		this.length = length;
+		return kind;
+	}
+
+	private static int kindOf(int b) {
+		switch(b & 0xff) {
+		case 0xda:
+		case 0xdb:
+			return RAW;
+		case 0xdc:
+		case 0xdd:
+			return ARRAY;
+		default:
+			return MAP;
+		}
+	}
+
+	/**
+	 * Scans the buffer until the value is finished or the buffer runs out.
+	 * @return offset position that is parsed.
+	 */
+	int scan(byte[] src, int off, int limit) throws UnpackException {
+		return scan(src, null, off, limit);
+	}
+
+	/**
+	 * Scans {@code src} if it is not null, otherwise {@code bsrc}
+	 * using absolute indexes.
+	 * @return offset position that is parsed.
+	 */
+	int scan(byte[] src, ByteBuffer bsrc, int off, int limit) throws UnpackException {
+		int i = off;
+		while(true) {
+			if(voParser != null) {
+				i = (src != null) ? voParser.execute(src, i, limit) : voParser.execute(bsrc, i, limit);
+				if(!voParser.isFinished()) {
+					return i;
+				}
+				voParser = null;
+				--remain;
+			}
+			if(trail > 0) {
+				if(limit - i < trail) {
+					trail -= limit - i;
+					return limit;
+				}
+				i += (int)trail;
+				trail = 0;
+			}
+			if(remain == 0 || i >= limit) {
+				return i;
+			}
+
+			switch(readHeader(src, bsrc, i, limit)) {
+			case NEED_MORE:
+				return i;
+			case SCALAR:
+				--remain;
+				break;
+			case RAW:
+				--remain;
+				trail = length;
+				break;
+			case ARRAY:
+				remain += length - 1;
+				break;
+			case MAP:
+				remain += length * 2 - 1;
+				break;
+			case VALUE_OBJECT:
+				if(voHelper == null) {
+					throw new UnpackException("value object can't be skipped without VOHelper");
+				}
+				// the layout depends on VOHelper; let the state machine parse it
+				voParser = new UnpackerImpl();
+				voParser.setVOHelper(voHelper);
+				continue;
+			}
+			i += headerSize;
+		}
+	}
+}
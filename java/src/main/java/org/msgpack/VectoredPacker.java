@@ -0,0 +1,85 @@
+//
+// MessagePack for Java
+//
+// Copyright (C) 2009-2010 FURUHASHI Sadayuki
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.msgpack;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.msgpack.buffer.UnsynchronizedVectoredByteBuffer;
+
+/**
+ * VectoredPacker serializes objects into a VectoredByteBuffer or an
+ * UnsynchronizedVectoredByteBuffer.
+ * Raw bodies larger than the reference threshold of the buffer are
+ * referenced instead of copied, and the result can be written to a
+ * channel with {@link UnsynchronizedVectoredByteBuffer#read(java.nio.channels.GatheringByteChannel)}.
+ *
+ * <pre>
+ * VectoredPacker pk = new VectoredPacker();
+ * pk.packArray(2);
+ * pk.pack("image");
+ * pk.pack(largeBytes);  // not copied
+ * pk.getVectoredByteBuffer().read(socketChannel);
+ * </pre>
+ *
+ * Byte arrays passed to {@link packRawBody(byte[], int, int)} must not be
+ * modified until they are read out of the buffer.
+ */
+public class VectoredPacker extends Packer {
+	private final UnsynchronizedVectoredByteBuffer vbb;
+	private final byte[] oneByte = new byte[1];
+
+	/**
+	 * Constructs a packer with a new buffer owned by one thread.
+	 */
+	public VectoredPacker() {
+		this(new UnsynchronizedVectoredByteBuffer());
+	}
+
+	public VectoredPacker(UnsynchronizedVectoredByteBuffer vbb) {
+		super(null);
+		this.vbb = vbb;
+	}
+
+	@Override
+	protected void writeByte(int b) throws IOException {
+		oneByte[0] = (byte)b;
+		vbb.writeCopy(oneByte, 0, 1);
+	}
+
+	@Override
+	protected void writeBytes(byte[] b, int off, int len) throws IOException {
+		vbb.writeCopy(b, off, len);
+	}
+
+	@Override
+	protected void writeRawBody(byte[] b, int off, int len) throws IOException {
+		vbb.write(b, off, len);
+	}
+
+	@Override
+	protected void writeByteBuffer(ByteBuffer bb) throws IOException {
+		vbb.write(bb.duplicate());
+	}
+
+	@Override
+	public void flush() { }
+
+	public UnsynchronizedVectoredByteBuffer getVectoredByteBuffer() {
+		return vbb;
+	}
+}
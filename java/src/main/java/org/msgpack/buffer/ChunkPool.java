@@ -0,0 +1,115 @@
+//
+// MessagePack for Java
+//
+// Copyright (C) 2009-2010 FURUHASHI Sadayuki
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.msgpack.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ChunkPool recycles fixed-size buffers used as chunks by
+ * {@link VectoredByteBuffer}. The pool is thread-safe and lock-free,
+ * and keeps at most {@code maxPooled} free chunks.
+ *
+ * <pre>
+ * ChunkPool pool = new ChunkPool(8*1024, 1024, false);
+ * VectoredByteBuffer vbb = new VectoredByteBuffer(8*1024, 32, pool);
+ * </pre>
+ */
+public class ChunkPool {
+	private final int chunkSize;
+	private final int maxPooled;
+	private final boolean direct;
+	private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger pooled = new AtomicInteger();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param chunkSize capacity of the chunks
+	 * @param maxPooled maximum number of free chunks kept in the pool
+	 * @param direct if true, chunks are allocated in direct memory
+	 */
+	public ChunkPool(int chunkSize, int maxPooled, boolean direct) {
+		this.chunkSize = chunkSize;
+		this.maxPooled = maxPooled;
+		this.direct = direct;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public boolean isDirect() {
+		return direct;
+	}
+
+	/**
+	 * Returns a cleared chunk, reusing a free one if available.
+	 */
+	public ByteBuffer allocate() {
+		ByteBuffer chunk = free.poll();
+		if(chunk != null) {
+			pooled.decrementAndGet();
+			hits.incrementAndGet();
+			chunk.clear();
+			return chunk;
+		}
+		misses.incrementAndGet();
+		return direct ? ByteBuffer.allocateDirect(chunkSize) : ByteBuffer.allocate(chunkSize);
+	}
+
+	/**
+	 * Returns a chunk to the pool. Chunks of other sizes or kinds, and
+	 * chunks exceeding the limit of the pool, are left to the GC.
+	 * The chunk must not be used after it is released.
+	 */
+	public void release(ByteBuffer chunk) {
+		if(chunk.capacity() != chunkSize || chunk.isDirect() != direct) {
+			return;
+		}
+		if(pooled.incrementAndGet() > maxPooled) {
+			pooled.decrementAndGet();
+			return;
+		}
+		free.offer(chunk);
+	}
+
+	/**
+	 * Returns the number of allocations served from the pool.
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns the number of allocations that created a new chunk.
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * Returns the number of free chunks in the pool.
+	 */
+	public int getPooledCount() {
+		return pooled.get();
+	}
+}
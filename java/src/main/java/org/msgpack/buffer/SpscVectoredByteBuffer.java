@@ -0,0 +1,346 @@
+//
+// MessagePack for Java
+//
+// Copyright (C) 2009-2010 FURUHASHI Sadayuki
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.msgpack.buffer;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free buffer that hands bytes from one producer thread to one
+ * consumer thread.
+ *
+ * The producer copies small writes into chunks and references large ones
+ * like {@link VectoredByteBuffer}. Copied bytes become visible to the
+ * consumer when {@link flush()} is called or when a chunk is full.
+ * If the queue of published buffers is full, the producer waits until
+ * the consumer reads; a parked producer is woken by the read. A write that can't
+ * publish within the write timeout throws BufferOverflowException.
+ * Chunks are allocated from a {@link ChunkPool} if one is given, and
+ * returned to it by the consumer once read.
+ *
+ * <pre>
+ * // worker thread
+ * spsc.write(encoded);
+ * spsc.flush();
+ *
+ * // I/O thread
+ * spsc.read(socketChannel);
+ * </pre>
+ */
+public class SpscVectoredByteBuffer {
+	// published buffers; ring[head..tail) are readable
+	private final ByteBuffer[] ring;
+	private final int mask;
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+	// chunk that each element of ring is a view of, or null for references
+	private final ByteBuffer[] owners;
+	// producer parked in waitForSpace, or null
+	private volatile Thread waiter;
+
+	private static final int SPIN_COUNT = 100;
+	private static final long MAX_PARK_NANOS = 1000*1000;
+
+	// producer state
+	private final int chunkSize;
+	private final int referenceThreshold;
+	private final ChunkPool pool;
+	private boolean direct = true;
+	private long writeTimeoutNanos = -1;
+	private ByteBuffer chunk;
+	private int pendingStart;
+
+	// consumer state: chunk of the last view read
+	private ByteBuffer readChunk;
+
+	public SpscVectoredByteBuffer() {
+		this(32*1024, 32, 1024);
+	}
+
+	/**
+	 * @param capacity maximum number of buffers published and not read
+	 *        yet; rounded up to a power of 2
+	 */
+	public SpscVectoredByteBuffer(int chunkSize, int referenceThreshold, int capacity) {
+		this(chunkSize, referenceThreshold, capacity, null);
+	}
+
+	/**
+	 * @param capacity maximum number of buffers published and not read
+	 *        yet; rounded up to a power of 2
+	 * @param pool pool to allocate chunks from and return read chunks to;
+	 *        can be null. If given, chunks are direct if the pool's are.
+	 */
+	public SpscVectoredByteBuffer(int chunkSize, int referenceThreshold, int capacity, ChunkPool pool) {
+		int size = 1;
+		while(size < capacity) {
+			size <<= 1;
+		}
+		this.ring = new ByteBuffer[size];
+		this.owners = new ByteBuffer[size];
+		this.mask = size - 1;
+		this.chunkSize = chunkSize;
+		this.referenceThreshold = referenceThreshold;
+		this.pool = pool;
+		if(pool != null) {
+			this.direct = pool.isDirect();
+		}
+		// the first chunk is allocated on the first copy
+		this.chunk = ByteBuffer.allocate(0);
+		this.pendingStart = 0;
+	}
+
+
+	/**
+	 * Sets whether chunks are allocated in direct memory. Channels write
+	 * direct chunks without copying them into a temporary direct buffer.
+	 * The setting applies to chunks allocated afterwards. The default is true,
+	 * or the kind of the pool's chunks if a pool is given. Called by the producer.
+	 */
+	public void setDirect(boolean direct) {
+		this.direct = direct;
+	}
+
+	public boolean isDirect() {
+		return direct;
+	}
+
+	/**
+	 * Sets how long the producer waits for the consumer when the queue of
+	 * published buffers is full. A negative value waits indefinitely, which
+	 * is the default. Called by the producer.
+	 */
+	public void setWriteTimeout(long millis) {
+		this.writeTimeoutNanos = millis < 0 ? -1 : millis * 1000*1000;
+	}
+
+	public long getWriteTimeout() {
+		return writeTimeoutNanos < 0 ? -1 : writeTimeoutNanos / (1000*1000);
+	}
+
+
+	// producer methods
+
+	public void write(byte[] b) {
+		write(b, 0, b.length);
+	}
+
+	public void write(byte[] b, int off, int len) {
+		if(off < 0 || len < 0 || b.length < off+len) {
+			throw new IndexOutOfBoundsException();
+		}
+		if(referenceThreshold >= 0 && len > referenceThreshold) {
+			writeReference(b, off, len);
+		} else {
+			writeCopy(b, off, len);
+		}
+	}
+
+	public int write(ByteBuffer src) {
+		int slen = src.remaining();
+		if(referenceThreshold >= 0 && slen > referenceThreshold) {
+			flush();
+			publish(src.slice(), null);
+			src.position(src.limit());
+		} else {
+			reserve(slen);
+			chunk.put(src);
+		}
+		return slen;
+	}
+
+	public void writeCopy(byte[] b, int off, int len) {
+		reserve(len);
+		chunk.put(b, off, len);
+	}
+
+	/**
+	 * The bytes must not be modified until the consumer reads them.
+	 */
+	public void writeReference(byte[] b, int off, int len) {
+		flush();
+		publish(ByteBuffer.wrap(b, off, len).slice(), null);
+	}
+
+	/**
+	 * Makes the copied bytes visible to the consumer.
+	 * @throws BufferOverflowException if the write timeout expires
+	 */
+	public void flush() {
+		int pos = chunk.position();
+		if(pos > pendingStart) {
+			ByteBuffer dup = chunk.duplicate();
+			dup.position(pendingStart);
+			dup.limit(pos);
+			publish(dup.slice(), chunk);
+			pendingStart = pos;
+		}
+	}
+
+	private void reserve(int len) {
+		if(chunk.remaining() < len) {
+			flush();
+			// published views keep the old chunk alive until they are read
+			chunk = allocateChunk(chunkSize > len ? chunkSize : len);
+			pendingStart = 0;
+		}
+	}
+
+	private ByteBuffer allocateChunk(int size) {
+		if(pool != null && pool.isDirect() == direct && size <= pool.getChunkSize()) {
+			return pool.allocate();
+		}
+		return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+	}
+
+	private void publish(ByteBuffer buf, ByteBuffer owner) {
+		long t = tail.get();
+		if(t - head.get() >= ring.length) {
+			waitForSpace(t);
+		}
+		ring[(int)t & mask] = buf;
+		owners[(int)t & mask] = owner;
+		// ordered store: the slot is written before the new tail is visible
+		tail.lazySet(t + 1);
+	}
+
+	private void waitForSpace(long t) {
+		long start = System.nanoTime();
+		for(int spins=0; spins < SPIN_COUNT; spins++) {
+			Thread.yield();
+			if(t - head.get() < ring.length) {
+				return;
+			}
+		}
+		Thread current = Thread.currentThread();
+		waiter = current;
+		try {
+			// head is read after waiter is set, so a read that frees a slot
+			// after this check sees the waiter and unparks it
+			while(t - head.get() >= ring.length) {
+				if(writeTimeoutNanos >= 0 && System.nanoTime() - start > writeTimeoutNanos) {
+					throw new BufferOverflowException();
+				}
+				if(current.isInterrupted()) {
+					// park returns immediately; don't spin until the timeout
+					throw new BufferOverflowException();
+				}
+				LockSupport.parkNanos(this, MAX_PARK_NANOS);
+			}
+		} finally {
+			waiter = null;
+		}
+	}
+
+	private void advanceHead(long h) {
+		// volatile store, ordered before the read of waiter
+		head.set(h);
+		Thread w = waiter;
+		if(w != null) {
+			LockSupport.unpark(w);
+		}
+	}
+
+
+	// consumer methods
+
+	/**
+	 * Returns the number of published bytes that are not read yet.
+	 */
+	public int available() {
+		long h = head.get();
+		long t = tail.get();
+		int total = 0;
+		for(long i=h; i < t; i++) {
+			total += ring[(int)i & mask].remaining();
+		}
+		return total;
+	}
+
+	public int read(byte[] b, int off, int len) {
+		if(off < 0 || len < 0 || b.length < off+len) {
+			throw new IndexOutOfBoundsException();
+		}
+		long h = head.get();
+		long t = tail.get();
+		int start = len;
+		while(h < t && len > 0) {
+			ByteBuffer r = ring[(int)h & mask];
+			int n = Math.min(r.remaining(), len);
+			r.get(b, off, n);
+			off += n;
+			len -= n;
+			if(r.hasRemaining()) {
+				break;
+			}
+			consumed((int)h & mask);
+			h++;
+		}
+		advanceHead(h);
+		return start - len;
+	}
+
+	/**
+	 * Writes the published bytes to the channel with gathering writes.
+	 * @return the number of bytes written
+	 */
+	public long read(GatheringByteChannel to) throws IOException {
+		long h = head.get();
+		long t = tail.get();
+		long total = 0;
+		while(h < t) {
+			// the published part of the ring may wrap around
+			int index = (int)h & mask;
+			int length = (int)Math.min(t - h, ring.length - index);
+			long n = to.write(ring, index, length);
+			total += n;
+			int consumed = 0;
+			while(consumed < length && !ring[index + consumed].hasRemaining()) {
+				consumed(index + consumed);
+				consumed++;
+			}
+			h += consumed;
+			advanceHead(h);
+			if(consumed < length) {
+				break;
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Clears a slot that is read to the end. The producer never copies into
+	 * a chunk again once it publishes a view of the next chunk, so the
+	 * previous chunk is released when a view of another chunk is read.
+	 */
+	private void consumed(int index) {
+		ByteBuffer owner = owners[index];
+		ring[index] = null;
+		owners[index] = null;
+		if(owner != null && owner != readChunk) {
+			if(readChunk != null && pool != null) {
+				pool.release(readChunk);
+			}
+			readChunk = owner;
+		}
+	}
+}
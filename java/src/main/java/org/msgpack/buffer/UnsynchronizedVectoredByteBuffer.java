@@ -0,0 +1,582 @@
+//
+// MessagePack for Java
+//
+// Copyright (C) 2010 FURUHASHI Sadayuki
+//
+//    Licensed under the Apache License, Version 2.0 (the "License");
+//    you may not use this file except in compliance with the License.
+//    You may obtain a copy of the License at
+//
+//        http://www.apache.org/licenses/LICENSE-2.0
+//
+//    Unless required by applicable law or agreed to in writing, software
+//    distributed under the License is distributed on an "AS IS" BASIS,
+//    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//    See the License for the specific language governing permissions and
+//    limitations under the License.
+//
+package org.msgpack.buffer;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+
+/**
+ * Sequence of ByteBuffers that copies small writes into chunks and keeps
+ * references to large ones. This class is not thread-safe; use
+ * {@link VectoredByteBuffer} to share a buffer between threads.
+ */
+public class UnsynchronizedVectoredByteBuffer implements GatheringByteChannel, ScatteringByteChannel {
+	private List<ByteBuffer> vec = new ArrayList<ByteBuffer>();
+	// chunk that each element of vec is a view of, or null for references
+	private List<ByteBuffer> owners = new ArrayList<ByteBuffer>();
+	private ByteBuffer internalBuffer;
+	private ByteBuffer lastInternalBuffer;
+	private int chunkSize;
+	private int referenceThreshold;
+	private ChunkPool pool;
+	private boolean direct = true;
+
+	public UnsynchronizedVectoredByteBuffer() {
+		this(32*1024);
+	}
+
+	public UnsynchronizedVectoredByteBuffer(int chunkSize) {
+		this(chunkSize, 32);
+	}
+
+	public UnsynchronizedVectoredByteBuffer(int chunkSize, int referenceThreshold) {
+		this(chunkSize, referenceThreshold, null);
+	}
+
+	/**
+	 * @param pool pool to allocate chunks from and return consumed chunks to;
+	 *        can be null. If given, chunks are direct if the pool's are.
+	 */
+	public UnsynchronizedVectoredByteBuffer(int chunkSize, int referenceThreshold, ChunkPool pool) {
+		this.chunkSize = chunkSize;
+		this.referenceThreshold = referenceThreshold;
+		this.pool = pool;
+		if(pool != null) {
+			this.direct = pool.isDirect();
+		}
+		// the first chunk is allocated on the first copy
+		internalBuffer = ByteBuffer.allocate(0);
+	}
+
+
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	public int getChunkSize(int chunkSize) {
+		return this.chunkSize;
+	}
+
+	public void setReferenceThreshold(int referenceThreshold) {
+		this.referenceThreshold = referenceThreshold;
+	}
+
+	public int getReferenceThreshold(int referenceThreshold) {
+		return this.referenceThreshold;
+	}
+
+	/**
+	 * Sets whether chunks are allocated in direct memory. Channels write
+	 * direct chunks without copying them into a temporary direct buffer.
+	 * The setting applies to chunks allocated afterwards. The default is true,
+	 * or the kind of the pool's chunks if a pool is given. Chunks of the
+	 * other kind are not taken from the pool.
+	 */
+	public void setDirect(boolean direct) {
+		this.direct = direct;
+	}
+
+	public boolean isDirect() {
+		return direct;
+	}
+
+
+	@Override
+	public void close() {
+		release();
+	}
+
+	@Override
+	public boolean isOpen() {
+		return true;  // FIXME?
+	}
+
+
+	public void reset() {
+		while(!vec.isEmpty()) {
+			removeFirst();
+		}
+		internalBuffer.clear();
+		lastInternalBuffer = null;
+	}
+
+	/**
+	 * Discards the buffered bytes and releases all chunks, returning them
+	 * to the pool if any. A new chunk is allocated when bytes are written again.
+	 */
+	public void release() {
+		reset();
+		releaseChunk(internalBuffer);
+		internalBuffer = ByteBuffer.allocate(0);
+	}
+
+	private ByteBuffer allocateChunk(int size) {
+		if(pool != null && pool.isDirect() == direct && size <= pool.getChunkSize()) {
+			return pool.allocate();
+		}
+		return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+	}
+
+	private void releaseChunk(ByteBuffer chunk) {
+		if(pool != null) {
+			pool.release(chunk);
+		}
+	}
+
+	/**
+	 * Replaces the chunk that new bytes are copied into. The old chunk
+	 * is released if none of its bytes are left to read.
+	 */
+	private void nextChunk(int size) {
+		ByteBuffer old = internalBuffer;
+		internalBuffer = allocateChunk(size);
+		// views of the old chunk are followed only by references
+		for(int i=owners.size()-1; i >= 0; i--) {
+			ByteBuffer owner = owners.get(i);
+			if(owner == old) {
+				return;
+			} else if(owner != null) {
+				break;
+			}
+		}
+		releaseChunk(old);
+	}
+
+	/**
+	 * Removes the first element of vec. The chunk it is a view of is
+	 * released if it was the last view of the chunk.
+	 */
+	private void removeFirst() {
+		vec.remove(0);
+		ByteBuffer owner = owners.remove(0);
+		if(vec.isEmpty()) {
+			// all bytes are read; the current chunk is reused from the beginning
+			internalBuffer.clear();
+			lastInternalBuffer = null;
+		}
+		if(owner == null || owner == internalBuffer) {
+			return;
+		}
+		// views of an old chunk precede views of newer chunks
+		for(ByteBuffer o : owners) {
+			if(o == owner) {
+				return;
+			} else if(o != null) {
+				break;
+			}
+		}
+		releaseChunk(owner);
+	}
+
+
+	public void write(byte[] b) {
+		write(b, 0, b.length);
+	}
+
+	public void write(byte[] b, int off, int len) {
+		if(off < 0 || len < 0 || b.length < off+len) {
+			throw new IndexOutOfBoundsException();
+		}
+		if(referenceThreshold >= 0 && len > referenceThreshold) {
+			writeReference(b, off, len);
+		} else {
+			writeCopy(b, off, len);
+		}
+	}
+
+	public void write(int b) {
+		byte[] ba = new byte[1];
+		ba[0] = (byte)b;
+		write(ba);
+	}
+
+	@Override
+	public int write(ByteBuffer src) {
+		int slen = src.remaining();
+		if(referenceThreshold >= 0 && slen > referenceThreshold) {
+			writeReference(src);
+		} else {
+			writeCopy(src);
+		}
+		return slen;
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs) {
+		return write(srcs, 0, srcs.length);
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) {
+		if(offset < 0 || length < 0 || srcs.length < offset+length) {
+			throw new IndexOutOfBoundsException();
+		}
+		long total = 0;
+		for(int i=offset; i < offset+length; i++) {
+			ByteBuffer src = srcs[i];
+			total += write(src);
+		}
+		return total;
+	}
+
+	/**
+	 * Copies the bytes into the internal chunks regardless of the
+	 * reference threshold.
+	 */
+	public void writeCopy(byte[] b, int off, int len) {
+		int ipos = internalBuffer.position();
+		if(internalBuffer.capacity() - ipos < len) {
+			// allocate new buffer
+			nextChunk(chunkSize > len ? chunkSize : len);
+			ipos = 0;
+		} else if(internalBuffer == lastInternalBuffer) {
+			// optimization: concatenates to the last buffer instead
+			//               of adding new reference
+			ByteBuffer dup = vec.get(vec.size()-1);
+			internalBuffer.put(b, off, len);
+			dup.limit(ipos + len);
+			return;
+		}
+		internalBuffer.put(b, off, len);
+		ByteBuffer dup = internalBuffer.duplicate();
+		dup.position(ipos);
+		dup.mark();
+		dup.limit(ipos + len);
+		vec.add(dup);
+		owners.add(internalBuffer);
+		lastInternalBuffer = internalBuffer;
+	}
+
+	private void writeCopy(ByteBuffer src) {
+		int slen = src.remaining();
+		int ipos = internalBuffer.position();
+		if(internalBuffer.capacity() - ipos < slen) {
+			// allocate new buffer
+			nextChunk(chunkSize > slen ? chunkSize : slen);
+			ipos = 0;
+		} else if(internalBuffer == lastInternalBuffer) {
+			// optimization: concatenates to the last buffer instead
+			//               of adding new reference
+			ByteBuffer dup = vec.get(vec.size()-1);
+			int dpos = dup.position();
+			internalBuffer.put(src);
+			ByteBuffer dup2 = internalBuffer.duplicate();
+			dup2.position(dpos);
+			dup2.limit(ipos + slen);
+			vec.set(vec.size()-1, dup2);
+			return;
+		}
+		internalBuffer.put(src);
+		ByteBuffer dup = internalBuffer.duplicate();
+		dup.position(ipos);
+		dup.mark();
+		dup.limit(ipos + slen);
+		vec.add(dup);
+		owners.add(internalBuffer);
+		lastInternalBuffer = internalBuffer;
+	}
+
+	/**
+	 * Adds a reference to the bytes without copying them regardless of
+	 * the reference threshold. The bytes must not be modified until
+	 * they are read out of this buffer.
+	 */
+	public void writeReference(byte[] b, int off, int len) {
+		ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+		vec.add(buf);
+		owners.add(null);
+		lastInternalBuffer = null;
+	}
+
+	private void writeReference(ByteBuffer src) {
+		ByteBuffer buf = src.duplicate();
+		vec.add(buf);
+		owners.add(null);
+		lastInternalBuffer = null;
+		src.position(src.limit());
+	}
+
+
+	public void writeTo(java.io.OutputStream out) throws IOException {
+		byte[] tmpbuf = null;
+		for(int i=0; i < vec.size(); i++) {
+			ByteBuffer r = vec.get(i);
+			int rpos = r.position();
+			int rlen = r.limit() - rpos;
+			if(r.hasArray()) {
+				byte[] array = r.array();
+				out.write(array, r.arrayOffset() + rpos, rlen);
+			} else {
+				if(tmpbuf == null) {
+					int max = rlen;
+					for(int j=i+1; j < vec.size(); j++) {
+						ByteBuffer c = vec.get(j);
+						int clen = c.remaining();
+						if(max < clen) {
+							max = clen;
+						}
+					}
+					tmpbuf = new byte[max];
+				}
+				r.get(tmpbuf, 0, rlen);
+				r.position(rpos);
+				out.write(tmpbuf, 0, rlen);
+			}
+		}
+	}
+
+	public byte[] toByteArray() {
+		byte[] out = new byte[available()];
+		int off = 0;
+		for(ByteBuffer r: vec) {
+			int rpos = r.position();
+			int rlen = r.limit() - rpos;
+			r.get(out, off, rlen);
+			r.position(rpos);
+			off += rlen;
+		}
+		return out;
+	}
+
+
+	public int available() {
+		int total = 0;
+		for(ByteBuffer r : vec) {
+			total += r.remaining();
+		}
+		return total;
+	}
+
+	public int read(byte[] b) {
+		return read(b, 0, b.length);
+	}
+
+	public int read(byte[] b, int off, int len) {
+		if(off < 0 || len < 0 || b.length < off+len) {
+			throw new IndexOutOfBoundsException();
+		}
+		int start = len;
+		while(!vec.isEmpty()) {
+			ByteBuffer r = vec.get(0);
+			int rlen = r.remaining();
+			if(rlen <= len) {
+				r.get(b, off, rlen);
+				removeFirst();
+				off += rlen;
+				len -= rlen;
+			} else {
+				r.get(b, off, len);
+				return start;
+			}
+		}
+		return start - len;
+	}
+
+	public int read() {
+		byte[] ba = new byte[1];
+		if(read(ba) >= 1) {
+			return ba[0];
+		} else {
+			return -1;
+		}
+	}
+
+	@Override
+	public int read(ByteBuffer dst) {
+		int len = dst.remaining();
+		int start = len;
+		while(!vec.isEmpty()) {
+			ByteBuffer r = vec.get(0);
+			int rlen = r.remaining();
+			if(rlen <= len) {
+				dst.put(r);
+				removeFirst();
+				len -= rlen;
+			} else {
+				int blim = r.limit();
+				r.limit(r.position() + len);
+				try {
+					dst.put(r);
+				} finally {
+					r.limit(blim);
+				}
+				return start;
+			}
+		}
+		return start - len;
+	}
+
+	@Override
+	public long read(ByteBuffer[] dsts) {
+		return read(dsts, 0, dsts.length);
+	}
+
+	@Override
+	public long read(ByteBuffer[] dsts, int offset, int length) {
+		if(offset < 0 || length < 0 || dsts.length < offset+length) {
+			throw new IndexOutOfBoundsException();
+		}
+		long total = 0;
+		for(int i=offset; i < offset+length; i++) {
+			ByteBuffer dst = dsts[i];
+			int dlen = dst.remaining();
+			int rlen = read(dsts[i]);
+			total += rlen;
+			if(rlen < dlen) {
+				return total;
+			}
+		}
+		return total;
+	}
+
+	public long read(GatheringByteChannel to) throws IOException {
+		long total = to.write(vec.toArray(new ByteBuffer[0]));
+		while(!vec.isEmpty()) {
+			ByteBuffer r = vec.get(0);
+			if(r.remaining() == 0) {
+				removeFirst();
+			} else {
+				break;
+			}
+		}
+		return total;
+	}
+
+	public long skip(long len) {
+		if(len <= 0) {
+			return 0;
+		}
+		long start = len;
+		while(!vec.isEmpty()) {
+			ByteBuffer r = vec.get(0);
+			int rlen = r.remaining();
+			if(rlen <= len) {
+				r.position(r.position()+rlen);
+				removeFirst();
+				len -= rlen;
+			} else {
+				r.position((int)(r.position()+len));
+				return start;
+			}
+		}
+		return start - len;
+	}
+
+
+	public final static class OutputStream extends java.io.OutputStream {
+		private UnsynchronizedVectoredByteBuffer vbb;
+
+		OutputStream(UnsynchronizedVectoredByteBuffer vbb) {
+			this.vbb = vbb;
+		}
+
+		@Override
+		public void write(byte[] b) {
+			vbb.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			vbb.write(b, off, len);
+		}
+
+		@Override
+		public void write(int b) {
+			vbb.write(b);
+		}
+
+		public int write(ByteBuffer src) {
+			return vbb.write(src);
+		}
+
+		public long write(ByteBuffer[] srcs) {
+			return vbb.write(srcs);
+		}
+
+		public long write(ByteBuffer[] srcs, int offset, int length) {
+			return vbb.write(srcs, offset, length);
+		}
+
+		public void writeTo(OutputStream out) throws IOException {
+			vbb.writeTo(out);
+		}
+
+		public byte[] toByteArray() {
+			return vbb.toByteArray();
+		}
+	}
+
+	public final static class InputStream extends java.io.InputStream {
+		private UnsynchronizedVectoredByteBuffer vbb;
+
+		InputStream(UnsynchronizedVectoredByteBuffer vbb) {
+			this.vbb = vbb;
+		}
+
+		@Override
+		public int available() {
+			return vbb.available();
+		}
+
+		@Override
+		public int read(byte[] b) {
+			return vbb.read(b);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			return vbb.read(b, off, len);
+		}
+
+		@Override
+		public int read() {
+			return vbb.read();
+		}
+
+		public int read(ByteBuffer dst) {
+			return vbb.read(dst);
+		}
+
+		public long read(ByteBuffer[] dsts, int offset, int length) {
+			return vbb.read(dsts, offset, length);
+		}
+
+		public long read(GatheringByteChannel to) throws IOException {
+			return vbb.read(to);
+		}
+
+		public long skip(long len) {
+			return vbb.skip(len);
+		}
+	}
+
+	public OutputStream outputStream() {
+		return new OutputStream(this);
+	}
+
+	public InputStream inputStream() {
+		return new InputStream(this);
+	}
+}
+
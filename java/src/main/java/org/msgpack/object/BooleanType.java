@@ -21,14 +21,17 @@ import java.io.IOException;
 import org.msgpack.*;
 
 public class BooleanType extends MessagePackObject {
-	private boolean value;
+	private final static BooleanType TRUE = new BooleanType(true);
+	private final static BooleanType FALSE = new BooleanType(false);
+
+	private final boolean value;
 
 	BooleanType(boolean value) {
 		this.value = value;
 	}
 
 	public static BooleanType create(boolean value) {
-		return new BooleanType(value);
+		return value ? TRUE : FALSE;
 	}
 
 	@Override
@@ -65,7 +68,7 @@ public class BooleanType extends MessagePackObject {
 
 	@Override
 	public Object clone() {
-		return new BooleanType(value);
+		return this;
 	}
 }
 
@@ -21,20 +21,45 @@ import java.math.BigInteger;
 import org.msgpack.*;
 
 public abstract class IntegerType extends MessagePackObject {
+	// cached instances for [CACHE_LOW, cacheHigh]. The upper bound can
+	// be widened with the "msgpack.IntegerType.cache.high" system property.
+	private static final int CACHE_LOW = -32;
+	private static final int cacheHigh;
+	private static final IntegerType[] cache;
+
+	static {
+		int high = 127;
+		try {
+			String prop = System.getProperty("msgpack.IntegerType.cache.high");
+			if(prop != null) {
+				high = Math.max(high, Integer.parseInt(prop));
+			}
+		} catch (Exception e) {
+		}
+		cacheHigh = high;
+		cache = new IntegerType[cacheHigh - CACHE_LOW + 1];
+		for(int i=0; i < cache.length; i++) {
+			cache[i] = new ShortIntegerTypeIMPL(i + CACHE_LOW);
+		}
+	}
+
 	@Override
 	public boolean isIntegerType() {
 		return true;
 	}
 
 	public static IntegerType create(byte value) {
-		return new ShortIntegerTypeIMPL((int)value);
+		return create((int)value);
 	}
 
 	public static IntegerType create(short value) {
-		return new ShortIntegerTypeIMPL((int)value);
+		return create((int)value);
 	}
 
 	public static IntegerType create(int value) {
+		if(CACHE_LOW <= value && value <= cacheHigh) {
+			return cache[value - CACHE_LOW];
+		}
 		return new ShortIntegerTypeIMPL(value);
 	}
 
@@ -17,15 +17,25 @@
 //
 package org.msgpack.object;
 
-import java.util.Arrays;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import org.msgpack.*;
 
 public class RawType extends MessagePackObject {
 	private byte[] bytes;
+	private int offset;
+	private int length;
+	// used instead of bytes if it is not null; position is always 0
+	private ByteBuffer buffer;
 
 	RawType(byte[] bytes) {
+		this(bytes, 0, bytes.length);
+	}
+
+	RawType(byte[] bytes, int offset, int length) {
 		this.bytes = bytes;
+		this.offset = offset;
+		this.length = length;
 	}
 
 	RawType(String str) {
@@ -34,12 +44,36 @@ public class RawType extends MessagePackObject {
 		} catch (Exception e) {
 			throw new MessageTypeException("type error");
 		}
+		this.offset = 0;
+		this.length = bytes.length;
 	}
 
 	public static RawType create(byte[] bytes) {
 		return new RawType(bytes);
 	}
 
+	/**
+	 * Creates a raw object that references the specified range of the
+	 * buffer without copying it.
+	 * The contents of the range must not be modified while the object is used.
+	 */
+	public static RawType create(byte[] bytes, int offset, int length) {
+		return new RawType(bytes, offset, length);
+	}
+
+	/**
+	 * Creates a raw object that references the remaining bytes of the
+	 * buffer without copying them.
+	 * Direct and mapped buffers are supported. The position of the buffer
+	 * is not changed and its contents must not be modified while the
+	 * object is used.
+	 */
+	public static RawType create(ByteBuffer buffer) {
+		RawType raw = new RawType(null, 0, buffer.remaining());
+		raw.buffer = buffer.slice();
+		return raw;
+	}
+
 	public static RawType create(String str) {
 		return new RawType(str);
 	}
@@ -51,22 +85,78 @@ public class RawType extends MessagePackObject {
 
 	@Override
 	public byte[] asByteArray() {
+		if(buffer != null) {
+			bytes = new byte[length];
+			buffer.duplicate().get(bytes);
+			buffer = null;
+			offset = 0;
+		} else if(offset != 0 || length != bytes.length) {
+			byte[] copy = new byte[length];
+			System.arraycopy(bytes, offset, copy, 0, length);
+			bytes = copy;
+			offset = 0;
+		}
 		return bytes;
 	}
 
 	@Override
 	public String asString() {
+		if(buffer != null) {
+			asByteArray();
+		}
 		try {
-			return new String(bytes, "UTF-8");
+			return new String(bytes, offset, length, "UTF-8");
 		} catch (Exception e) {
 			throw new MessageTypeException("type error");
 		}
 	}
 
+	/**
+	 * Returns the buffer that holds the bytes of this object.
+	 * The bytes start at {@link getOffset()} and continue {@link getLength()} bytes.
+	 * If the object references a ByteBuffer, the bytes are copied first.
+	 */
+	public byte[] getBuffer() {
+		if(buffer != null) {
+			asByteArray();
+		}
+		return bytes;
+	}
+
+	public int getOffset() {
+		return offset;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Returns a read-only ByteBuffer of the bytes of this object
+	 * without copying them.
+	 */
+	public ByteBuffer asByteBuffer() {
+		if(buffer != null) {
+			return buffer.asReadOnlyBuffer();
+		}
+		return ByteBuffer.wrap(bytes, offset, length).slice().asReadOnlyBuffer();
+	}
+
+	private byte get(int i) {
+		if(buffer != null) {
+			return buffer.get(i);
+		}
+		return bytes[offset+i];
+	}
+
 	@Override
 	public void messagePack(Packer pk) throws IOException {
-		pk.packRaw(bytes.length);
-		pk.packRawBody(bytes);
+		if(buffer != null) {
+			pk.packByteBuffer(buffer);
+			return;
+		}
+		pk.packRaw(length);
+		pk.packRawBody(bytes, offset, length);
 	}
 
 	@Override
@@ -74,17 +164,35 @@ public class RawType extends MessagePackObject {
 		if(obj.getClass() != getClass()) {
 			return false;
 		}
-		return Arrays.equals(((RawType)obj).bytes, bytes);
+		RawType o = (RawType)obj;
+		if(o.length != length) {
+			return false;
+		}
+		for(int i=0; i < length; i++) {
+			if(o.get(i) != get(i)) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	@Override
 	public int hashCode() {
-		return bytes.hashCode();
+		int h = 1;
+		for(int i=0; i < length; i++) {
+			h = 31*h + get(i);
+		}
+		return h;
 	}
 
 	@Override
 	public Object clone() {
-		return new RawType((byte[])bytes.clone());
+		byte[] copy = new byte[length];
+		if(buffer != null) {
+			buffer.duplicate().get(copy);
+			return new RawType(copy);
+		}
+		System.arraycopy(bytes, offset, copy, 0, length);
+		return new RawType(copy);
 	}
 }
-
@@ -22,7 +22,7 @@ import java.io.IOException;
 import org.msgpack.*;
 
 class ShortIntegerTypeIMPL extends IntegerType {
-	private int value;
+	private final int value;
 
 	ShortIntegerTypeIMPL(int value) {
 		this.value = value;
@@ -20,7 +20,7 @@ package org.msgpack.template;
 import java.io.IOException;
 import org.msgpack.*;
 
-public class AnyTemplate implements Template {
+public class AnyTemplate implements Template, MessageSizer {
 	private AnyTemplate() { }
 
 	public void pack(Packer pk, Object target) throws IOException {
@@ -33,6 +33,15 @@ public class AnyTemplate implements Template {
 		}
 	}
 
+	public int packedSize(Object target) {
+		if(target instanceof MessagePackObject) {
+			return UNKNOWN;
+		} else if(target == null) {
+			return Packer.sizeOfNil();
+		}
+		return Packer.knownSizeOf(target, TemplateRegistry.lookup(target.getClass()));
+	}
+
 	public Object unpack(Unpacker pac, Object to) throws IOException, MessageTypeException {
 		return pac.unpackObject();
 	}
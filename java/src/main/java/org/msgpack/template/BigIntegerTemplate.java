@@ -21,7 +21,7 @@ import java.io.IOException;
 import java.math.BigInteger;
 import org.msgpack.*;
 
-public class BigIntegerTemplate implements Template {
+public class BigIntegerTemplate implements Template, MessageSizer {
 	private BigIntegerTemplate() { }
 
 	public void pack(Packer pk, Object target) throws IOException {
@@ -32,6 +32,14 @@ public class BigIntegerTemplate implements Template {
 		}
 	}
 
+	public int packedSize(Object target) {
+		try {
+			return Packer.sizeOfBigInteger((BigInteger)target);
+		} catch (NullPointerException e) {
+			throw new MessageTypeException("target is null.", e);
+		}
+	}
+
 	public Object unpack(Unpacker pac, Object to) throws IOException, MessageTypeException {
 		return pac.unpackBigInteger();
 	}
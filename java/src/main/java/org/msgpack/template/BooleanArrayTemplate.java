@@ -20,7 +20,7 @@ package org.msgpack.template;
 import java.io.IOException;
 import org.msgpack.*;
 
-public class BooleanArrayTemplate implements Template {
+public class BooleanArrayTemplate implements Template, MessageSizer {
 	private BooleanArrayTemplate() { }
 
 	public void pack(Packer pk, Object target) throws IOException {
@@ -38,6 +38,14 @@ public class BooleanArrayTemplate implements Template {
 		}
 	}
 
+	public int packedSize(Object target) {
+		if(!(target instanceof boolean[])) {
+			throw new MessageTypeException();
+		}
+		boolean[] array = (boolean[])target;
+		return Packer.sizeOfArrayHeader(array.length) + 1 * array.length;
+	}
+
 	public Object unpack(Unpacker pac, Object to) throws IOException, MessageTypeException {
 		int length = pac.unpackArray();
 		boolean[] array;
@@ -20,7 +20,7 @@ package org.msgpack.template;
 import java.io.IOException;
 import org.msgpack.*;
 
-public class BooleanTemplate implements Template {
+public class BooleanTemplate implements Template, MessageSizer {
 	private BooleanTemplate() { }
 
 	public void pack(Packer pk, Object target) throws IOException {
@@ -31,6 +31,14 @@ public class BooleanTemplate implements Template {
 		}
 	}
 
+	public int packedSize(Object target) {
+		try {
+			return Packer.sizeOfBoolean((Boolean)target);
+		} catch (NullPointerException e) {
+			throw new MessageTypeException("target is null.", e);
+		}
+	}
+
 	public Object unpack(Unpacker pac, Object to) throws IOException, MessageTypeException {
 		return pac.unpackBoolean();
 	}
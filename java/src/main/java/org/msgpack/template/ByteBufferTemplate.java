@@ -21,7 +21,7 @@ import java.nio.ByteBuffer;
 import java.io.IOException;
 import org.msgpack.*;
 
-public class ByteBufferTemplate implements Template {
+public class ByteBufferTemplate implements Template, MessageSizer {
 	private ByteBufferTemplate() {
 	}
 
@@ -33,6 +33,14 @@ public class ByteBufferTemplate implements Template {
 		}
 	}
 
+	public int packedSize(Object target) {
+		try {
+			return Packer.sizeOfRaw(((ByteBuffer)target).remaining());
+		} catch (NullPointerException e) {
+			throw new MessageTypeException("target is null.", e);
+		}
+	}
+
 	public Object unpack(Unpacker pac, Object to) throws IOException, MessageTypeException {
 		return pac.unpackByteBuffer();
 	}
@@ -22,12 +22,13 @@ import java.util.LinkedList;
 import java.io.IOException;
 
 import org.msgpack.MessagePackObject;
+import org.msgpack.MessageSizer;
 import org.msgpack.MessageTypeException;
 import org.msgpack.Packer;
 import org.msgpack.Template;
 import org.msgpack.Unpacker;
 
-public class CollectionTemplate implements Template {
+public class CollectionTemplate implements Template, MessageSizer {
 	public static void load() { }
 
 	private Template elementTemplate;
@@ -51,6 +52,26 @@ public class CollectionTemplate implements Template {
 		}
 	}
 
+	@SuppressWarnings("unchecked")
+	public int packedSize(Object target) {
+		if (! (target instanceof Collection)) {
+			if (target == null) {
+				throw new MessageTypeException(new NullPointerException("target is null."));
+			}
+			throw new MessageTypeException("target is not Collection type: " + target.getClass());
+		}
+		Collection<Object> collection = (Collection<Object>) target;
+		int size = Packer.sizeOfArrayHeader(collection.size());
+		for(Object element : collection) {
+			int n = Packer.knownSizeOf(element, elementTemplate);
+			if(n == MessageSizer.UNKNOWN) {
+				return MessageSizer.UNKNOWN;
+			}
+			size += n;
+		}
+		return size;
+	}
+
 	@SuppressWarnings("unchecked")
 	public Object unpack(Unpacker pac, Object to) throws IOException, MessageTypeException {
 		int length = pac.unpackArray();
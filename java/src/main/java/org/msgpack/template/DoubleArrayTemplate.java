@@ -20,7 +20,7 @@ package org.msgpack.template;
 import java.io.IOException;
 import org.msgpack.*;
 
-public class DoubleArrayTemplate implements Template {
+public class DoubleArrayTemplate implements Template, MessageSizer {
 	private DoubleArrayTemplate() { }
 
 	public void pack(Packer pk, Object target) throws IOException {
@@ -28,28 +28,22 @@ public class DoubleArrayTemplate implements Template {
 			throw new MessageTypeException();
 		}
 		double[] array = (double[])target;
-		try {
-			pk.packArray(array.length);
-		} catch (NullPointerException e) {
-			throw new MessageTypeException("target is null.", e);
-		}
-		for(double a : array) {
-			pk.pack(a);
+		pk.packDoubleArray(array, 0, array.length);
+	}
+
+	public int packedSize(Object target) {
+		if(!(target instanceof double[])) {
+			throw new MessageTypeException();
 		}
+		double[] array = (double[])target;
+		return Packer.sizeOfArrayHeader(array.length) + 9 * array.length;
 	}
 
 	public Object unpack(Unpacker pac, Object to) throws IOException, MessageTypeException {
-		int length = pac.unpackArray();
-		double[] array;
-		if(to != null && to instanceof double[] && ((double[])to).length == length) {
-			array = (double[])to;
-		} else {
-			array = new double[length];
+		if(to instanceof double[]) {
+			return pac.unpackDoubleArray((double[])to);
 		}
-		for(int i=0; i < length; i++) {
-			array[i] = pac.unpackDouble();
-		}
-		return array;
+		return pac.unpackDoubleArray();
 	}
 
 	public Object convert(MessagePackObject from, Object to) throws MessageTypeException {
@@ -20,7 +20,7 @@ package org.msgpack.template;
 import java.io.IOException;
 import org.msgpack.*;
 
-public class FloatArrayTemplate implements Template {
+public class FloatArrayTemplate implements Template, MessageSizer {
 	private FloatArrayTemplate() { }
 
 	public void pack(Packer pk, Object target) throws IOException {
@@ -28,28 +28,22 @@ public class FloatArrayTemplate implements Template {
 			throw new MessageTypeException();
 		}
 		float[] array = (float[])target;
-		try {
-			pk.packArray(array.length);
-		} catch (NullPointerException e) {
-			throw new MessageTypeException("target is null.", e);
-		}
-		for(float a : array) {
-			pk.pack(a);
+		pk.packFloatArray(array, 0, array.length);
+	}
+
+	public int packedSize(Object target) {
+		if(!(target instanceof float[])) {
+			throw new MessageTypeException();
 		}
+		float[] array = (float[])target;
+		return Packer.sizeOfArrayHeader(array.length) + 5 * array.length;
 	}
 
 	public Object unpack(Unpacker pac, Object to) throws IOException, MessageTypeException {
-		int length = pac.unpackArray();
-		float[] array;
-		if(to != null && to instanceof float[] && ((float[])to).length == length) {
-			array = (float[])to;
-		} else {
-			array = new float[length];
+		if(to instanceof float[]) {
+			return pac.unpackFloatArray((float[])to);
 		}
-		for(int i=0; i < length; i++) {
-			array[i] = pac.unpackFloat();
-		}
-		return array;
+		return pac.unpackFloatArray();
 	}
 
 	public Object convert(MessagePackObject from, Object to) throws MessageTypeException {
@@ -20,7 +20,7 @@ package org.msgpack.template;
 import java.io.IOException;
 import org.msgpack.*;
 
-public class FloatTemplate implements Template {
+public class FloatTemplate implements Template, MessageSizer {
 	private FloatTemplate() { }
 
 	public void pack(Packer pk, Object target) throws IOException {
@@ -31,6 +31,14 @@ public class FloatTemplate implements Template {
 		}
 	}
 
+	public int packedSize(Object target) {
+		try {
+			return Packer.sizeOfFloat((Float)target);
+		} catch (NullPointerException e) {
+			throw new MessageTypeException("target is null.", e);
+		}
+	}
+
 	public Object unpack(Unpacker pac, Object to) throws IOException, MessageTypeException {
 		return pac.unpackFloat();
 	}
@@ -20,7 +20,7 @@ package org.msgpack.template;
 import java.io.IOException;
 import org.msgpack.*;
 
-public class IntArrayTemplate implements Template {
+public class IntArrayTemplate implements Template, MessageSizer {
 	private IntArrayTemplate() { }
 
 	public void pack(Packer pk, Object target) throws IOException {
@@ -28,28 +28,21 @@ public class IntArrayTemplate implements Template {
 			throw new MessageTypeException();
 		}
 		int[] array = (int[])target;
-		try {
-			pk.packArray(array.length);
-		} catch (NullPointerException e) {
-			throw new MessageTypeException("target is null.", e);
-		}
-		for(int a : array) {
-			pk.pack(a);
+		pk.packIntArray(array, 0, array.length);
+	}
+
+	public int packedSize(Object target) {
+		if(!(target instanceof int[])) {
+			throw new MessageTypeException();
 		}
+		return Packer.sizeOfIntArray((int[])target, false);
 	}
 
 	public Object unpack(Unpacker pac, Object to) throws IOException, MessageTypeException {
-		int length = pac.unpackArray();
-		int[] array;
-		if(to != null && to instanceof int[] && ((int[])to).length == length) {
-			array = (int[])to;
-		} else {
-			array = new int[length];
+		if(to instanceof int[]) {
+			return pac.unpackIntArray((int[])to);
 		}
-		for(int i=0; i < length; i++) {
-			array[i] = pac.unpackInt();
-		}
-		return array;
+		return pac.unpackIntArray();
 	}
 
 	public Object convert(MessagePackObject from, Object to) throws MessageTypeException {
@@ -89,6 +89,8 @@ public class JavassistTemplateBuilder extends TemplateBuilder {
 
 		protected abstract String buildPackMethodBody();
 
+		protected abstract String buildPackedSizeMethodBody();
+
 		protected abstract String buildUnpackMethodBody();
 
 		protected abstract String buildConvertMethodBody();
@@ -106,6 +108,7 @@ public class JavassistTemplateBuilder extends TemplateBuilder {
 				buildConstructor();
 				buildMethodInit();
 				buildPackMethod();
+				buildPackedSizeMethod();
 				buildUnpackMethod();
 				buildConvertMethod();
 				return buildInstance(createClass());
@@ -128,6 +131,7 @@ public class JavassistTemplateBuilder extends TemplateBuilder {
 		protected void buildClass() throws CannotCompileException, NotFoundException {
 			setSuperClass();
 			tmplCtClass.addInterface(director.getCtClass(Template.class.getName()));
+			tmplCtClass.addInterface(director.getCtClass(MessageSizer.class.getName()));
 		}
 
 		protected void buildPackMethod() throws CannotCompileException, NotFoundException {
@@ -148,6 +152,21 @@ public class JavassistTemplateBuilder extends TemplateBuilder {
 			tmplCtClass.addMethod(newCtMethod);
 		}
 
+		protected void buildPackedSizeMethod() throws CannotCompileException, NotFoundException {
+			String mbody = buildPackedSizeMethodBody();
+			int mod = javassist.Modifier.PUBLIC;
+			CtClass returnType = CtClass.intType;
+			String mname = "packedSize";
+			CtClass[] paramTypes = new CtClass[] {
+					director.getCtClass(Object.class.getName())
+			};
+			CtClass[] exceptTypes = new CtClass[0];
+			CtMethod newCtMethod = CtNewMethod.make(
+					mod, returnType, mname,
+					paramTypes, exceptTypes, mbody, tmplCtClass);
+			tmplCtClass.addMethod(newCtMethod);
+		}
+
 		protected void buildUnpackMethod() throws CannotCompileException, NotFoundException {
 			String mbody = buildUnpackMethodBody();
 			int mod = javassist.Modifier.PUBLIC;
@@ -308,6 +327,40 @@ public class JavassistTemplateBuilder extends TemplateBuilder {
 			return getBuiltString();
 		}
 
+		protected String buildPackedSizeMethodBody() {
+			resetStringBuilder();
+			buildString("{");
+			buildString("%s _$$_t = (%s)$1;", this.origName, this.origName);
+			buildString("int size = %d;", Packer.sizeOfArrayHeader(entries.length));
+			buildString("int _$$_n;");
+			for(int i=0; i < entries.length; i++) {
+				FieldEntry e = entries[i];
+				if(!e.isAvailable()) {
+					buildString("size += %d;", Packer.sizeOfNil());
+					continue;
+				}
+				Class<?> type = e.getType();
+				if(type.isPrimitive()) {
+					buildString("size += %s.%s(_$$_t.%s);", Packer.class.getName(), primitiveSizeName(type), e.getName());
+				} else {
+					buildString("if(_$$_t.%s == null) {", e.getName());
+					if(!e.isNullable() && !e.isOptional()) {
+						buildString("throw new %s();", MessageTypeException.class.getName());
+					} else {
+						buildString("size += %d;", Packer.sizeOfNil());
+					}
+					buildString("} else {");
+					buildString("  _$$_n = %s.knownSizeOf(_$$_t.%s, this.templates[%d]);", Packer.class.getName(), e.getName(), i);
+					buildString("  if(_$$_n < 0) { return _$$_n; }");
+					buildString("  size += _$$_n;");
+					buildString("}");
+				}
+			}
+			buildString("return size;");
+			buildString("}");
+			return getBuiltString();
+		}
+
 		protected String buildUnpackMethodBody() {
 			resetStringBuilder();
 			buildString("{ ");
@@ -328,7 +381,7 @@ public class JavassistTemplateBuilder extends TemplateBuilder {
 			for(i=0; i < this.minimumArrayLength; i++) {
 				FieldEntry e = entries[i];
 				if(!e.isAvailable()) {
-					buildString("$1.unpackObject();");
+					buildString("$1.skipValue();");
 					continue;
 				}
 
@@ -357,7 +410,7 @@ public class JavassistTemplateBuilder extends TemplateBuilder {
 
 				FieldEntry e = entries[i];
 				if(!e.isAvailable()) {
-					buildString("$1.unpackObject();");
+					buildString("$1.skipValue();");
 					continue;
 				}
 
@@ -377,7 +430,7 @@ public class JavassistTemplateBuilder extends TemplateBuilder {
 			// latter entries are all Optional + nil => keep default value
 
 			buildString("for(int i=%d; i < length; i++) {", i);
-			buildString("  $1.unpackObject();");
+			buildString("  $1.skipValue();");
 			buildString("}");
 
 			buildString("return _$$_t;");
@@ -482,6 +535,25 @@ public class JavassistTemplateBuilder extends TemplateBuilder {
 			return null;
 		}
 
+		protected String primitiveSizeName(Class<?> type) {
+			if(type == boolean.class) {
+				return "sizeOfBoolean";
+			} else if(type == byte.class) {
+				return "sizeOfByte";
+			} else if(type == short.class) {
+				return "sizeOfShort";
+			} else if(type == int.class) {
+				return "sizeOfInt";
+			} else if(type == long.class) {
+				return "sizeOfLong";
+			} else if(type == float.class) {
+				return "sizeOfFloat";
+			} else if(type == double.class) {
+				return "sizeOfDouble";
+			}
+			return null;
+		}
+
 		protected String primitiveUnpackName(Class<?> type) {
 			if(type == boolean.class) {
 				return "unpackBoolean";
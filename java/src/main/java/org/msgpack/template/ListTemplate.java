@@ -22,7 +22,7 @@ import java.util.ArrayList;
 import java.io.IOException;
 import org.msgpack.*;
 
-public class ListTemplate implements Template {
+public class ListTemplate implements Template, MessageSizer {
 	static void load() { }
 
 	private Template elementTemplate;
@@ -50,6 +50,26 @@ public class ListTemplate implements Template {
 		}
 	}
 
+	@SuppressWarnings("unchecked")
+	public int packedSize(Object target) {
+		if (! (target instanceof List)) {
+			if (target == null) {
+				throw new MessageTypeException(new NullPointerException("target is null."));
+			}
+			throw new MessageTypeException("target is not List type: " + target.getClass());
+		}
+		List<Object> list = (List<Object>)target;
+		int size = Packer.sizeOfArrayHeader(list.size());
+		for(Object element : list) {
+			int n = Packer.knownSizeOf(element, elementTemplate);
+			if(n == MessageSizer.UNKNOWN) {
+				return MessageSizer.UNKNOWN;
+			}
+			size += n;
+		}
+		return size;
+	}
+
 	@SuppressWarnings("unchecked")
 	public Object unpack(Unpacker pac, Object to) throws IOException, MessageTypeException {
 		int length = pac.unpackArray();
@@ -20,7 +20,7 @@ package org.msgpack.template;
 import java.io.IOException;
 import org.msgpack.*;
 
-public class LongArrayTemplate implements Template {
+public class LongArrayTemplate implements Template, MessageSizer {
 	private LongArrayTemplate() { }
 
 	public void pack(Packer pk, Object target) throws IOException {
@@ -28,28 +28,21 @@ public class LongArrayTemplate implements Template {
 			throw new MessageTypeException();
 		}
 		long[] array = (long[])target;
-		try {
-			pk.packArray(array.length);
-		} catch (NullPointerException e) {
-			throw new MessageTypeException("target is null.", e);
-		}
-		for(long a : array) {
-			pk.pack(a);
+		pk.packLongArray(array, 0, array.length);
+	}
+
+	public int packedSize(Object target) {
+		if(!(target instanceof long[])) {
+			throw new MessageTypeException();
 		}
+		return Packer.sizeOfLongArray((long[])target, false);
 	}
 
 	public Object unpack(Unpacker pac, Object to) throws IOException, MessageTypeException {
-		int length = pac.unpackArray();
-		long[] array;
-		if(to != null && to instanceof long[] && ((long[])to).length == length) {
-			array = (long[])to;
-		} else {
-			array = new long[length];
+		if(to instanceof long[]) {
+			return pac.unpackLongArray((long[])to);
 		}
-		for(int i=0; i < length; i++) {
-			array[i] = pac.unpackLong();
-		}
-		return array;
+		return pac.unpackLongArray();
 	}
 
 	public Object convert(MessagePackObject from, Object to) throws MessageTypeException {
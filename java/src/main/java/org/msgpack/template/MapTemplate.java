@@ -22,7 +22,7 @@ import java.util.HashMap;
 import java.io.IOException;
 import org.msgpack.*;
 
-public class MapTemplate implements Template {
+public class MapTemplate implements Template, MessageSizer {
 	static void load() { }
 
 	private Template keyTemplate;
@@ -57,6 +57,27 @@ public class MapTemplate implements Template {
 		}
 	}
 
+	@SuppressWarnings("unchecked")
+	public int packedSize(Object target) {
+		if(!(target instanceof Map)) {
+			if (target == null) {
+				throw new MessageTypeException(new NullPointerException("target is null."));
+			}
+			throw new MessageTypeException("target is not Map type: " + target.getClass());
+		}
+		Map<Object,Object> map = (Map<Object,Object>) target;
+		int size = Packer.sizeOfMapHeader(map.size());
+		for(Map.Entry<Object,Object> pair : map.entrySet()) {
+			int k = Packer.knownSizeOf(pair.getKey(), keyTemplate);
+			int v = Packer.knownSizeOf(pair.getValue(), valueTemplate);
+			if(k == MessageSizer.UNKNOWN || v == MessageSizer.UNKNOWN) {
+				return MessageSizer.UNKNOWN;
+			}
+			size += k + v;
+		}
+		return size;
+	}
+
 	@SuppressWarnings("unchecked")
 	public Object unpack(Unpacker pac, Object to) throws IOException, MessageTypeException {
 		int length = pac.unpackMap();
@@ -20,7 +20,7 @@ package org.msgpack.template;
 import java.io.IOException;
 import org.msgpack.*;
 
-public class NullableTemplate implements Template {
+public class NullableTemplate implements Template, MessageSizer {
 	static void load() { }
 
 	private Template elementTemplate;
@@ -41,6 +41,13 @@ public class NullableTemplate implements Template {
 		}
 	}
 
+	public int packedSize(Object target) {
+		if(target == null) {
+			return Packer.sizeOfNil();
+		}
+		return Packer.knownSizeOf(target, elementTemplate);
+	}
+
 	public Object unpack(Unpacker pac, Object to) throws IOException, MessageTypeException {
 		if(pac.tryUnpackNull()) {
 			return null;
@@ -20,7 +20,7 @@ package org.msgpack.template;
 import java.io.IOException;
 import org.msgpack.*;
 
-public class OptionalTemplate implements Template {
+public class OptionalTemplate implements Template, MessageSizer {
 	private Template elementTemplate;
 	private Object defaultObject;
 
@@ -45,6 +45,13 @@ public class OptionalTemplate implements Template {
 		}
 	}
 
+	public int packedSize(Object target) {
+		if(target == null) {
+			return AnyTemplate.getInstance().packedSize(defaultObject);
+		}
+		return Packer.knownSizeOf(target, elementTemplate);
+	}
+
 	public Object unpack(Unpacker pac, Object to) throws IOException, MessageTypeException {
 		if(pac.tryUnpackNull()) {
 			return defaultObject;  // FIXME return to?
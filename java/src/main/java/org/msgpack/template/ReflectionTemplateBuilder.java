@@ -258,7 +258,7 @@ public class ReflectionTemplateBuilder extends TemplateBuilder {
 				for(i=0; i < minimumArrayLength; i++) {
 					ReflectionFieldEntry e = entries[i];
 					if(!e.isAvailable()) {
-						pac.unpackObject();
+						pac.skipValue();
 						continue;
 					}
 
@@ -281,7 +281,7 @@ public class ReflectionTemplateBuilder extends TemplateBuilder {
 				for(; i < max; i++) {
 					ReflectionFieldEntry e = entries[i];
 					if(!e.isAvailable()) {
-						pac.unpackObject();
+						pac.skipValue();
 						continue;
 					}
 
@@ -296,7 +296,7 @@ public class ReflectionTemplateBuilder extends TemplateBuilder {
 				// latter entries are all Optional + nil => keep default value
 
 				for(; i < length; i++) {
-					pac.unpackObject();
+					pac.skipValue();
 				}
 
 				return to;
@@ -428,7 +428,7 @@ public class ReflectionTemplateBuilder extends TemplateBuilder {
 			if(ord == null) {
 				throw new MessageTypeException();
 			}
-			pk.pack((int)ord);
+			pk.packInt(ord);
 		}
 
 		public Object unpack(Unpacker pac, Object to) throws IOException, MessageTypeException {
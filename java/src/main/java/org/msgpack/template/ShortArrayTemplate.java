@@ -20,7 +20,7 @@ package org.msgpack.template;
 import java.io.IOException;
 import org.msgpack.*;
 
-public class ShortArrayTemplate implements Template {
+public class ShortArrayTemplate implements Template, MessageSizer {
 	private ShortArrayTemplate() { }
 
 	public void pack(Packer pk, Object target) throws IOException {
@@ -38,6 +38,18 @@ public class ShortArrayTemplate implements Template {
 		}
 	}
 
+	public int packedSize(Object target) {
+		if(!(target instanceof short[])) {
+			throw new MessageTypeException();
+		}
+		short[] array = (short[])target;
+		int size = Packer.sizeOfArrayHeader(array.length);
+		for(short a : array) {
+			size += Packer.sizeOfShort(a);
+		}
+		return size;
+	}
+
 	public Object unpack(Unpacker pac, Object to) throws IOException, MessageTypeException {
 		int length = pac.unpackArray();
 		short[] array;
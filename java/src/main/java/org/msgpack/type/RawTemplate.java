@@ -21,7 +21,7 @@ import java.io.IOException;
 import org.msgpack.*;
 import org.msgpack.template.TemplateRegistry;
 
-public class RawTemplate implements Template {
+public class RawTemplate implements Template, MessageSizer {
 	static void load() { }
 
 	private RawTemplate() { }
@@ -30,6 +30,10 @@ public class RawTemplate implements Template {
 		pk.packByteArray(((Raw)target).toByteArray());
 	}
 
+	public int packedSize(Object target) {
+		return Packer.sizeOfRaw(((Raw)target).toByteArray().length);
+	}
+
 	public Object unpack(Unpacker pac, Object to) throws IOException, MessageTypeException {
 		return new Raw(pac.unpackByteArray());
 	}
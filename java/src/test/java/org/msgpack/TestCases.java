@@ -1,7 +1,9 @@
 package org.msgpack;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import org.msgpack.object.RawType;
 
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -36,5 +38,74 @@ public class TestCases {
 
 		assertFalse( pac_compact.next(result) );
 	}
+
+	@Test
+	public void testMappedCases() throws Exception {
+		Unpacker pac = new Unpacker();
+		feedFile(pac, "src/test/resources/cases.mpac");
+
+		FileChannel channel = new FileInputStream("src/test/resources/cases_compact.mpac").getChannel();
+		try {
+			Unpacker mapped = new Unpacker();
+			mapped.setZeroCopy(true);
+			// small window to remap across object boundaries
+			mapped.map(channel, 0, 7);
+
+			UnpackResult result = new UnpackResult();
+			while(pac.next(result)) {
+				UnpackResult result_mapped = new UnpackResult();
+				assertTrue( mapped.next(result_mapped) );
+				assertTrue( result.getData().equals(result_mapped.getData()) );
+			}
+			assertFalse( mapped.next(result) );
+			assertEquals(0, channel.position());
+		} finally {
+			channel.close();
+		}
+	}
+
+	@Test
+	public void testMappedLargeRaw() throws Exception {
+		File file = File.createTempFile("msgpack", ".mpac");
+		file.deleteOnExit();
+		byte[] large = new byte[1000];
+		for(int i=0; i < large.length; i++) {
+			large[i] = (byte)i;
+		}
+		FileOutputStream out = new FileOutputStream(file);
+		Packer pk = new Packer(out);
+		for(int i=0; i < 10; i++) {
+			pk.pack(i).pack(large).pack("record" + i);
+		}
+		out.close();
+
+		FileChannel channel = new FileInputStream(file).getChannel();
+		try {
+			Unpacker pac = new Unpacker();
+			pac.setZeroCopy(true);
+			pac.map(channel, 0, 64);
+			Iterator<MessagePackObject> it = pac.iterator();
+			for(int i=0; i < 10; i++) {
+				assertEquals(i, it.next().asInt());
+				MessagePackObject raw = it.next();
+				assertTrue(((RawType)raw).asByteBuffer().isDirect());
+				assertEquals(RawType.create(large), raw);
+				assertEquals(RawType.create(large).hashCode(), raw.hashCode());
+				assertArrayEquals(large, raw.asByteArray());
+				assertEquals("record" + i, it.next().asString());
+			}
+			assertFalse(it.hasNext());
+
+			// typed API remaps the same way
+			pac.map(channel);
+			for(int i=0; i < 10; i++) {
+				assertEquals(i, pac.unpackInt());
+				assertArrayEquals(large, pac.unpackByteArray());
+				assertEquals("record" + i, pac.unpackString());
+			}
+		} finally {
+			channel.close();
+		}
+	}
 };
 
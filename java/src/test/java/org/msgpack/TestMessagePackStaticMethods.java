@@ -211,6 +211,94 @@ public class TestMessagePackStaticMethods extends TestCase {
 		}
 	}
 
+	@Test
+	public void testPackToArray() throws Exception {
+		byte[] expected = MessagePack.pack(createUserDefinedClass());
+		byte[] dst = new byte[expected.length + 10];
+		assertEquals(expected.length, MessagePack.pack(createUserDefinedClass(), dst, 10));
+		assertTrue(Arrays.equals(expected, Arrays.copyOfRange(dst, 10, dst.length)));
+		assertEquals(createUserDefinedClass(),
+				MessagePack.unpack(Arrays.copyOfRange(dst, 10, dst.length), UserDefinedClass.class));
+
+		try {
+			MessagePack.pack(createUserDefinedClass(), dst, 11);
+			fail();
+		} catch (java.nio.BufferOverflowException e) {
+		}
+		// the per-thread packer is usable after the failure
+		assertEquals(expected.length, MessagePack.pack(createUserDefinedClass(), dst, 0));
+	}
+
+	public static class InnerPackable implements MessagePackable {
+		public void messagePack(Packer pk) throws IOException {
+			pk.pack("inner");
+		}
+	}
+
+	public static class NestedPackable implements MessagePackable {
+		public void messagePack(Packer pk) throws IOException {
+			// packs with the static methods while they are in use
+			byte[] inner = MessagePack.pack(new InnerPackable());
+			pk.pack(MessagePack.unpack(inner).asString());
+		}
+	}
+
+	public static class CountingPackable implements MessagePackable {
+		static int count = 0;
+
+		public void messagePack(Packer pk) throws IOException {
+			count++;
+			pk.pack("counted");
+		}
+	}
+
+	public static class OverestimatingTemplate extends AbstractTemplate implements MessageSizer {
+		public void pack(Packer pk, Object target) throws IOException {
+			pk.pack((Integer)target);
+		}
+
+		public int packedSize(Object target) {
+			return Packer.sizeOfInt((Integer)target) + 1;
+		}
+
+		public Object unpack(Unpacker pac, Object to) throws IOException {
+			return pac.unpackInt();
+		}
+
+		public Object convert(MessagePackObject from, Object to) {
+			return from.asInt();
+		}
+	}
+
+	@Test
+	public void testPackSizedOnce() throws Exception {
+		List<Object> list = new ArrayList<Object>();
+		for(int i=0; i < 3; i++) {
+			list.add(new CountingPackable());
+		}
+		CountingPackable.count = 0;
+		byte[] b = MessagePack.pack(list);
+		assertEquals(3, CountingPackable.count);
+		assertEquals(3, MessagePack.unpack(b).asArray().length);
+
+		try {
+			MessagePack.pack(1, new OverestimatingTemplate());
+			fail();
+		} catch (MessageTypeException e) {
+		}
+	}
+
+	@Test
+	public void testReentrantPack() throws Exception {
+		for(int i=0; i < 3; i++) {
+			byte[] b = MessagePack.pack(new NestedPackable());
+			assertEquals(RawType.create("inner"), MessagePack.unpack(b));
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			MessagePack.pack(out, new NestedPackable());
+			assertEquals(RawType.create("inner"), MessagePack.unpack(new ByteArrayInputStream(out.toByteArray())));
+		}
+	}
+
 	@Test
 	public void testPackToStream() throws Exception {
 		ByteArrayOutputStream aout = new ByteArrayOutputStream();
@@ -251,6 +339,26 @@ public class TestMessagePackStaticMethods extends TestCase {
 		}
 	}
 
+	@Test
+	public void testPackToStreamIncrementally() throws Exception {
+		List<String> list = new ArrayList<String>();
+		for(int i=0; i < 10000; i++) {
+			list.add("element" + i);
+		}
+		final int[] maxWrite = new int[1];
+		ByteArrayOutputStream out = new ByteArrayOutputStream() {
+			public void write(byte[] b, int off, int len) {
+				maxWrite[0] = Math.max(maxWrite[0], len);
+				super.write(b, off, len);
+			}
+		};
+		MessagePack.pack(out, list);
+		// written through the pooled buffer, not as one array of the whole object
+		assertTrue(out.size() > 64*1024);
+		assertTrue(maxWrite[0] <= 8*1024);
+		assertEquals(list, MessagePack.unpack(out.toByteArray(), tList(TString)));
+	}
+
 
 	private List<String> createStringList() {
 		List<String> list = new ArrayList<String>();
@@ -92,5 +92,28 @@ public class TestObjectEquals {
 	public void testString(String str) throws Exception {
 		assertTrue(RawType.create(str).equals(RawType.create(str)));
 	}
-}
 
+	@Test
+	public void testCachedInstances() throws Exception {
+		for(int i=-32; i < 128; i++) {
+			assertSame(IntegerType.create(i), IntegerType.create((byte)i));
+			assertSame(IntegerType.create(i), IntegerType.create((short)i));
+			assertEquals(i, IntegerType.create(i).asInt());
+		}
+		assertSame(BooleanType.create(true), BooleanType.create(true));
+		assertSame(BooleanType.create(false), BooleanType.create(false));
+		assertTrue(BooleanType.create(true).asBoolean());
+		assertFalse(BooleanType.create(false).asBoolean());
+		assertSame(NilType.create(), NilType.create());
+
+		byte[] fixnums = new byte[] { (byte)0x00, (byte)0x7f, (byte)0xe0, (byte)0xc3 };
+		MessagePackObject[] objs = new MessagePackObject[fixnums.length];
+		for(int i=0; i < fixnums.length; i++) {
+			objs[i] = MessagePack.unpack(new byte[] { fixnums[i] });
+		}
+		assertSame(IntegerType.create(0), objs[0]);
+		assertSame(IntegerType.create(127), objs[1]);
+		assertSame(IntegerType.create(-32), objs[2]);
+		assertSame(BooleanType.create(true), objs[3]);
+	}
+}
@@ -1,6 +1,9 @@
 package org.msgpack;
 
 import org.msgpack.*;
+import org.msgpack.object.*;
+import org.msgpack.annotation.*;
+import org.msgpack.template.TemplateRegistry;
 import java.io.*;
 import java.util.*;
 import java.math.BigInteger;
@@ -271,5 +274,1141 @@ public class TestPackUnpack {
 			}
 		}
 	}
-};
 
+	@Test
+	public void testZeroCopy() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Packer pk = new Packer(out);
+		pk.pack("abc");
+		pk.pack("defghijklmnopqrstuvwxyz0123456789");
+		byte[] packed = out.toByteArray();
+
+		Unpacker pac = new Unpacker(16);
+		pac.setZeroCopy(true);
+		pac.feed(packed);
+		UnpackResult result = new UnpackResult();
+		assertTrue(pac.next(result));
+		MessagePackObject first = result.getData();
+		assertTrue(first == result.getData());
+		assertTrue(((org.msgpack.object.RawType)first).getBuffer() == pac.getBuffer());
+		assertTrue(pac.next(result));
+		MessagePackObject second = result.getData();
+
+		// buffer is consumed but still referenced; must not be rewritten
+		for(int i=0; i < 10; i++) {
+			pac.feed(packed);
+		}
+		assertEquals("abc", first.asString());
+		assertEquals("defghijklmnopqrstuvwxyz0123456789", second.asString());
+		for(int i=0; i < 20; i++) {
+			assertTrue(pac.next(result));
+		}
+		assertEquals("defghijklmnopqrstuvwxyz0123456789", result.getData().asString());
+		assertFalse(pac.next(result));
+	}
+
+	@Test
+	public void testTypedScalars() throws Exception {
+		int[] ints = { 0, -1, 127, -32, -33, 128, 255, 256, -128, -129,
+			32767, 32768, 65535, 65536, -32768, -32769,
+			Integer.MAX_VALUE, Integer.MIN_VALUE };
+		long[] longs = { 4294967295L, 4294967296L, -2147483649L, Long.MAX_VALUE, Long.MIN_VALUE };
+		double[] doubles = { 0.0, -1.5, Double.MAX_VALUE, Double.MIN_VALUE };
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Packer pk = new Packer(out);
+		for(int v : ints) { pk.packInt(v); }
+		for(int v : ints) { pk.packLong(v); }
+		for(long v : longs) { pk.packLong(v); }
+		for(double v : doubles) { pk.packDouble(v); }
+		pk.packFloat(1.25f);
+
+		Unpacker pac = new Unpacker(new ByteArrayInputStream(out.toByteArray()));
+		for(int v : ints) { assertEquals(v, pac.unpackInt()); }
+		for(int v : ints) { assertEquals((long)v, pac.unpackLong()); }
+		for(long v : longs) { assertEquals(v, pac.unpackLong()); }
+		for(double v : doubles) { assertEquals(v, pac.unpackDouble(), 0.0); }
+		assertEquals(1.25f, pac.unpackFloat(), 0.0f);
+	}
+
+	@Test
+	public void testReader() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Packer pk = new Packer(out);
+		pk.packArray(3);
+		pk.packInt(1);
+		pk.packMap(2);
+		pk.packString("a");
+		pk.packNil();
+		pk.packString("b");
+		pk.packArray(0);
+		pk.packDouble(0.5);
+		pk.packBigInteger(BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE));
+		pk.packBoolean(true);
+		byte[] packed = out.toByteArray();
+
+		MessagePackReader.Token[] expected = {
+			MessagePackReader.Token.ARRAY_START,
+			MessagePackReader.Token.INTEGER,
+			MessagePackReader.Token.MAP_START,
+			MessagePackReader.Token.RAW,
+			MessagePackReader.Token.NIL,
+			MessagePackReader.Token.RAW,
+			MessagePackReader.Token.ARRAY_START,
+			MessagePackReader.Token.ARRAY_END,
+			MessagePackReader.Token.MAP_END,
+			MessagePackReader.Token.DOUBLE,
+			MessagePackReader.Token.ARRAY_END,
+			MessagePackReader.Token.INTEGER,
+			MessagePackReader.Token.BOOLEAN,
+		};
+
+		// feed one byte at a time
+		MessagePackReader reader = new MessagePackReader();
+		List<MessagePackReader.Token> tokens = new ArrayList<MessagePackReader.Token>();
+		for(int i=0; i < packed.length; i++) {
+			reader.feed(packed, i, 1);
+			MessagePackReader.Token token;
+			while((token = reader.nextToken()) != null) {
+				tokens.add(token);
+				if(token == MessagePackReader.Token.RAW && reader.getDepth() == 2) {
+					assertTrue(reader.getString().equals("a") || reader.getString().equals("b"));
+				}
+			}
+		}
+		assertEquals(Arrays.asList(expected), tokens);
+		assertEquals(0, reader.getNonParsedSize());
+
+		// read from an external buffer
+		reader = new MessagePackReader();
+		int off = 0;
+		off = reader.execute(packed, off, packed.length);
+		assertEquals(MessagePackReader.Token.ARRAY_START, reader.getToken());
+		assertEquals(3, reader.getCount());
+		off = reader.execute(packed, off, packed.length);
+		assertEquals(1, reader.getInt());
+		off = reader.execute(packed, off, packed.length);
+		assertEquals(2, reader.getCount());
+		assertTrue(reader.isMapKey());
+		off = reader.execute(packed, off, packed.length);
+		assertEquals("a", reader.getString());
+		assertSame(packed, reader.getRawBuffer());
+		assertFalse(reader.isMapKey());
+		for(int i=0; i < 6; i++) {
+			off = reader.execute(packed, off, packed.length);
+		}
+		assertEquals(MessagePackReader.Token.DOUBLE, reader.getToken());
+		assertEquals(0.5, reader.getDouble(), 0.0);
+		off = reader.execute(packed, off, packed.length);
+		assertEquals(MessagePackReader.Token.ARRAY_END, reader.getToken());
+		assertEquals(0, reader.getDepth());
+		off = reader.execute(packed, off, packed.length);
+		assertEquals(BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE), reader.getBigInteger());
+		try {
+			reader.getLong();
+			fail();
+		} catch (MessageTypeException e) { }
+		off = reader.execute(packed, off, packed.length);
+		assertTrue(reader.getBoolean());
+		assertEquals(packed.length, off);
+		off = reader.execute(packed, off, packed.length);
+		assertNull(reader.getToken());
+
+		// large raws are streamed in chunks with a bounded buffer
+		byte[] large = new byte[100000];
+		new Random(4).nextBytes(large);
+		out = new ByteArrayOutputStream();
+		pk = new Packer(out);
+		pk.packArray(2);
+		pk.packString("small");
+		pk.packRaw(large.length);
+		pk.packRawBody(large);
+		packed = out.toByteArray();
+		reader = new MessagePackReader();
+		reader.setRawStreamThreshold(1024);
+		tokens.clear();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		for(int i=0; i < packed.length; i += 1000) {
+			reader.feed(packed, i, Math.min(1000, packed.length - i));
+			MessagePackReader.Token token;
+			while((token = reader.nextToken()) != null) {
+				if(token == MessagePackReader.Token.RAW_CHUNK) {
+					body.write(reader.getRawBuffer(), reader.getRawOffset(), reader.getRawLength());
+				} else {
+					tokens.add(token);
+				}
+				if(token == MessagePackReader.Token.RAW_START) {
+					assertEquals(large.length, reader.getRawLength());
+				}
+			}
+			assertTrue(reader.getNonParsedSize() < 2048);
+		}
+		assertEquals(Arrays.asList(
+					MessagePackReader.Token.ARRAY_START,
+					MessagePackReader.Token.RAW,
+					MessagePackReader.Token.RAW_START,
+					MessagePackReader.Token.ARRAY_END), tokens);
+		assertTrue(Arrays.equals(large, body.toByteArray()));
+	}
+
+	@Test
+	public void testSkipValue() throws Exception {
+		byte[] large = new byte[100000];
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Packer pk = new Packer(out);
+		pk.packArray(3);
+		pk.packMap(1);
+		pk.packString("key");
+		pk.packArray(2);
+		pk.packDouble(1.0);
+		pk.packLong(Long.MIN_VALUE);
+		pk.packRaw(large.length);
+		pk.packRawBody(large);
+		pk.packNil();
+		pk.packBigInteger(BigInteger.ONE.shiftLeft(63));
+		pk.packString("after");
+
+		// small buffer forces the raw body to be skipped across fills
+		Unpacker pac = new Unpacker(new ByteArrayInputStream(out.toByteArray()), 1024);
+		pac.skipValue();
+		pac.skipValue();
+		assertEquals("after", pac.unpackString());
+		assertFalse(pac.next(new UnpackResult()));
+	}
+
+	@Test
+	public void testPath() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Packer pk = new Packer(out);
+		pk.packArray(5);
+		for(int i=0; i < 3; i++) {
+			pk.packMap(1);
+			pk.packString("skipped");
+			pk.packRaw(300);
+			pk.packRawBody(new byte[300]);
+		}
+		pk.packMap(3);
+		pk.packString("name");
+		pk.packString("frsyuki");
+		pk.packString("uid");
+		pk.packLong(1L << 40);
+		pk.packString("tags");
+		pk.packArray(2);
+		pk.packDouble(0.5);
+		pk.packBoolean(true);
+		pk.packNil();
+		byte[] packed = out.toByteArray();
+
+		assertEquals(1L << 40, MessagePackPath.compile("[3].uid").getLong(packed, 0, packed.length));
+		assertEquals("frsyuki", MessagePackPath.compile("[3].name").getString(packed, 0, packed.length));
+		assertEquals(0.5, MessagePackPath.compile("[3].tags[0]").getDouble(packed, 0, packed.length), 0.0);
+		assertTrue(MessagePackPath.compile("[3].tags[1]").getBoolean(packed, 0, packed.length));
+		assertTrue(MessagePackPath.compile("[4]").get(packed).isNil());
+		assertEquals(5, MessagePackPath.compile("").get(packed).asArray().length);
+		assertEquals(2, MessagePackPath.compile("[3].tags").get(java.nio.ByteBuffer.wrap(packed)).asArray().length);
+		assertEquals("frsyuki", MessagePackPath.compile("[3].name").getRaw(packed, 0, packed.length).asString());
+
+		assertNull(MessagePackPath.compile("[5]").get(packed));
+		assertNull(MessagePackPath.compile("[3].none").get(packed));
+		assertNull(MessagePackPath.compile("[3].uid.x").get(packed));
+		assertEquals(-1, MessagePackPath.compile("uid").find(packed, 0, packed.length));
+
+		Unpacker pac = new Unpacker();
+		pac.feed(packed);
+		assertEquals(1L << 40, MessagePackPath.compile("[3].uid").get(pac).asLong());
+		assertEquals(1L << 40, MessagePackPath.compile("[3].uid").getLong(pac));
+		assertEquals("frsyuki", MessagePackPath.compile("[3].name").getString(pac));
+		assertEquals(5, pac.unpackArray());
+
+		java.nio.ByteBuffer heap = java.nio.ByteBuffer.allocate(packed.length + 3);
+		heap.position(3);
+		heap.put(packed);
+		heap.position(3);
+		java.nio.ByteBuffer direct = java.nio.ByteBuffer.allocateDirect(packed.length);
+		direct.put(packed);
+		direct.flip();
+		for(java.nio.ByteBuffer buf : new java.nio.ByteBuffer[] { heap.slice(), direct }) {
+			assertEquals(1L << 40, MessagePackPath.compile("[3].uid").getLong(buf));
+			assertEquals("frsyuki", MessagePackPath.compile("[3].name").getString(buf));
+			assertEquals("frsyuki", MessagePackPath.compile("[3].name").getRaw(buf).asString());
+			assertEquals(0.5, MessagePackPath.compile("[3].tags[0]").getDouble(buf), 0.0);
+			assertTrue(MessagePackPath.compile("[3].tags[1]").getBoolean(buf));
+			assertNull(MessagePackPath.compile("[5]").getRaw(buf));
+			assertEquals(0, buf.position());
+			try {
+				MessagePackPath.compile("[3].uid").getInt(buf);
+				fail();
+			} catch (MessageTypeException e) { }
+		}
+
+		try {
+			MessagePackPath.compile("[3].uid").get(packed, 0, packed.length - 20);
+			fail();
+		} catch (UnpackException e) { }
+		try {
+			MessagePackPath.compile("[x]");
+			fail();
+		} catch (IllegalArgumentException e) { }
+	}
+
+	@Test
+	public void testLimits() throws Exception {
+		// header of an array with 2^31-1 elements followed by a few elements
+		byte[] hostile = new byte[] { (byte)0xdd, 0x7f, (byte)0xff, (byte)0xff, (byte)0xff, 0x01, 0x02 };
+		Unpacker pac = new Unpacker();
+		pac.feed(hostile);
+		assertFalse(pac.execute());
+
+		pac = new Unpacker();
+		pac.setArraySizeLimit(1000);
+		pac.feed(hostile);
+		try {
+			pac.execute();
+			fail();
+		} catch (UnpackException e) { }
+
+		pac = new Unpacker();
+		pac.setRawSizeLimit(100);
+		pac.feed(new byte[] { (byte)0xdb, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff });
+		try {
+			pac.unpackRaw();
+			fail();
+		} catch (UnpackException e) { }
+
+		// nesting deeper than the default stack size
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Packer pk = new Packer(out);
+		for(int i=0; i < 40; i++) {
+			pk.packArray(1);
+		}
+		pk.packInt(1);
+		pac = new Unpacker();
+		pac.feed(out.toByteArray());
+		try {
+			pac.execute();
+			fail();
+		} catch (UnpackException e) { }
+		pac = new Unpacker();
+		pac.setDepthLimit(64);
+		pac.feed(out.toByteArray());
+		assertTrue(pac.execute());
+
+		// empty containers don't count against the depth limit
+		out = new ByteArrayOutputStream();
+		pk = new Packer(out);
+		pk.packArray(2);
+		pk.packArray(0);
+		pk.packMap(0);
+		pac = new Unpacker();
+		pac.setDepthLimit(1);
+		pac.feed(out.toByteArray());
+		assertTrue(pac.execute());
+		assertEquals(2, pac.getData().asArray().length);
+
+		// containers larger than the initial allocation
+		out = new ByteArrayOutputStream();
+		pk = new Packer(out);
+		pk.packArray(1000);
+		for(int i=0; i < 1000; i++) {
+			pk.packInt(i);
+		}
+		pk.packMap(100);
+		for(int i=0; i < 100; i++) {
+			pk.packInt(i);
+			pk.packString("v"+i);
+		}
+		pac = new Unpacker();
+		pac.feed(out.toByteArray());
+		MessagePackObject[] array = pac.next().getData().asArray();
+		assertEquals(1000, array.length);
+		assertEquals(999, array[999].asInt());
+		Map<MessagePackObject, MessagePackObject> map = pac.next().getData().asMap();
+		assertEquals(100, map.size());
+		assertEquals("v42", map.get(IntegerType.create(42)).asString());
+	}
+
+	@Test
+	public void testValueAvailable() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Packer pk = new Packer(out);
+		for(int i=0; i < 3; i++) {
+			pk.packArray(3);
+			pk.packInt(i);
+			pk.packString("name"+i);
+			pk.packMap(1);
+			pk.packLong(Long.MAX_VALUE);
+			pk.packRaw(1000);
+			pk.packRawBody(new byte[1000]);
+		}
+		byte[] packed = out.toByteArray();
+
+		// bytes arrive in small pieces as with a non-blocking socket
+		Unpacker pac = new Unpacker();
+		int received = 0;
+		for(int off=0; off < packed.length; off += 7) {
+			pac.feed(packed, off, Math.min(7, packed.length - off));
+			while(pac.isValueAvailable()) {
+				assertEquals(3, pac.unpackArray());
+				assertEquals(received, pac.unpackInt());
+				assertEquals("name"+received, pac.unpackString());
+				assertEquals(1, pac.unpackMap());
+				assertEquals(Long.MAX_VALUE, pac.unpackLong());
+				assertEquals(1000, pac.unpackByteArray().length);
+				received++;
+			}
+		}
+		assertEquals(3, received);
+		assertFalse(pac.isValueAvailable());
+
+		pac = new Unpacker();
+		pac.feed(packed, 0, 10);
+		assertFalse(pac.isValueAvailable());
+		assertFalse(pac.isValueAvailable());
+		assertEquals(10, pac.getNonParsedSize());
+	}
+
+	@Test
+	public void testWrapByteBuffer() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Packer pk = new Packer(out);
+		pk.packInt(-33);
+		pk.packLong(Long.MIN_VALUE);
+		pk.packDouble(1.5);
+		pk.packString("direct");
+		pk.packArray(2);
+		pk.packBigInteger(BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE));
+		pk.packMap(1);
+		pk.packString("k");
+		pk.packFloat(0.25f);
+		pk.packString("tail");
+		byte[] packed = out.toByteArray();
+
+		java.nio.ByteBuffer direct = java.nio.ByteBuffer.allocateDirect(packed.length + 3);
+		direct.order(java.nio.ByteOrder.LITTLE_ENDIAN);
+		direct.put(new byte[3]);
+		direct.put(packed);
+		direct.flip();
+		direct.position(3);
+		java.nio.ByteBuffer readOnly = java.nio.ByteBuffer.wrap(packed).asReadOnlyBuffer();
+
+		for(java.nio.ByteBuffer buf : new java.nio.ByteBuffer[] { direct, readOnly }) {
+			Unpacker pac = new Unpacker();
+			pac.wrap(buf);
+			assertNull(pac.getBuffer());
+			assertEquals(-33, pac.unpackInt());
+			assertEquals(Long.MIN_VALUE, pac.unpackLong());
+			assertEquals(1.5, pac.unpackDouble(), 0.0);
+			assertEquals("direct", pac.unpackString());
+			assertTrue(pac.isValueAvailable());
+			MessagePackObject obj = pac.next().getData();
+			assertEquals(BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE), obj.asArray()[0].asBigInteger());
+			assertEquals(0.25f, obj.asArray()[1].asMap().get(RawType.create("k")).asFloat(), 0.0f);
+			// feeding more bytes moves the rest to a heap buffer
+			pac.feed(new byte[] { (byte)0xc3 });
+			assertEquals("tail", pac.unpackString());
+			assertTrue(pac.unpackBoolean());
+			assertEquals(packed.length, buf.limit() - (buf == direct ? 3 : 0));
+		}
+	}
+
+	@Test
+	public void testRetainedBufferSize() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Packer pk = new Packer(out);
+		pk.packRaw(1024*1024);
+		pk.packRawBody(new byte[1024*1024]);
+		byte[] large = out.toByteArray();
+		out = new ByteArrayOutputStream();
+		pk = new Packer(out);
+		pk.packString("small");
+		byte[] small = out.toByteArray();
+
+		Unpacker pac = new Unpacker(8*1024);
+		pac.setMaxRetainedBufferSize(64*1024);
+		for(int off=0; off < large.length; off += 4096) {
+			pac.feed(large, off, Math.min(4096, large.length - off));
+		}
+		assertTrue(pac.getBuffer().length >= large.length);
+		assertEquals(1024*1024, pac.next().getData().asByteArray().length);
+		// the large buffer is released once the object is consumed
+		assertTrue(pac.getBuffer() == null || pac.getBuffer().length <= 64*1024);
+		pac.feed(small);
+		assertTrue(pac.getBuffer().length <= 64*1024);
+		assertEquals("small", pac.next().getData().asString());
+
+		// partially consumed buffer is compacted in place
+		pac = new Unpacker(8*1024);
+		pac.reserveBuffer(1);
+		byte[] buffer = pac.getBuffer();
+		for(int i=0; i < buffer.length / small.length + 10; i++) {
+			pac.feed(small);
+			assertEquals("small", pac.next().getData().asString());
+		}
+		pac.feed(small, 0, 1);
+		pac.feed(small, 1, small.length - 1);
+		assertEquals("small", pac.unpackString());
+		assertSame(buffer, pac.getBuffer());
+	}
+
+	@Test
+	public void testBufferedPacker() throws Exception {
+		List<Object> list = new ArrayList<Object>();
+		list.add(new byte[20000]);
+		for(int i=0; i < 100; i++) {
+			Map<String, Integer> map = new HashMap<String, Integer>();
+			map.put("key"+i, i * 1000);
+			list.add(map);
+		}
+
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		new Packer(expected).pack(list);
+
+		final int[] writes = new int[1];
+		ByteArrayOutputStream out = new ByteArrayOutputStream() {
+			public synchronized void write(int b) {
+				writes[0]++;
+				super.write(b);
+			}
+			public synchronized void write(byte[] b, int off, int len) {
+				writes[0]++;
+				super.write(b, off, len);
+			}
+		};
+		BufferedPacker pk = new BufferedPacker(out, 1024);
+		pk.pack(list);
+		assertTrue(pk.getBufferPosition() > 0);
+		pk.flush();
+		assertEquals(0, pk.getBufferPosition());
+		assertTrue(Arrays.equals(expected.toByteArray(), out.toByteArray()));
+		assertTrue(writes[0] < 10);
+
+		BufferedPacker grow = new BufferedPacker(16);
+		grow.pack(list);
+		assertTrue(Arrays.equals(expected.toByteArray(), grow.toByteArray()));
+		assertTrue(Arrays.equals(expected.toByteArray(), MessagePack.pack(list)));
+	}
+
+	@Test
+	public void testByteBufferPacker() throws Exception {
+		List<Object> list = new ArrayList<Object>();
+		for(int i=0; i < 50; i++) {
+			list.add("value"+i);
+			list.add(i * 100000L);
+		}
+		list.add(new byte[300]);
+		byte[] expected = MessagePack.pack(list);
+
+		java.nio.ByteBuffer direct = java.nio.ByteBuffer.allocateDirect(100);
+		direct.position(10);
+		ByteBufferPacker pk = new ByteBufferPacker(direct, 64);
+		pk.pack(list);
+		java.nio.ByteBuffer[] bufs = pk.getBuffers();
+		assertTrue(bufs.length > 1);
+		assertEquals(10, bufs[0].position());
+		assertTrue(bufs[1].isDirect());
+		assertEquals(expected.length, pk.getSize());
+		assertTrue(Arrays.equals(expected, pk.toByteArray()));
+
+		// buffers can be read by the unpacker without copying
+		Unpacker pac = new Unpacker();
+		pac.wrap(bufs[0]);
+		assertEquals(101, pac.unpackArray());
+
+		pk.reset();
+		pk.packInt(1);
+		assertEquals(1, pk.getBuffers().length);
+		assertEquals(1, pk.getSize());
+
+		ByteBufferPacker heap = new ByteBufferPacker();
+		heap.pack(list);
+		assertTrue(Arrays.equals(expected, heap.toByteArray()));
+	}
+
+	@Test
+	public void testStringEncoding() throws Exception {
+		StringBuilder longString = new StringBuilder();
+		for(int i=0; i < 5000; i++) {
+			longString.append("abc\u00e9\u3042");
+		}
+		String[] strings = { "", "ascii", "\u00e9t\u00e9", "\u3042\u3044\u3046",
+			"\ud83d\ude00 emoji", "unpaired \ud800 high", "unpaired \udc00 low", "end \ud800",
+			"\u007f\u0080\u07ff\u0800\uffff", longString.toString() };
+
+		for(String str : strings) {
+			byte[] utf8 = str.getBytes("UTF-8");
+			ByteArrayOutputStream expected = new ByteArrayOutputStream();
+			Packer pk = new Packer(expected);
+			pk.packRaw(utf8.length);
+			pk.packRawBody(utf8);
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			new Packer(out).packString(str);
+			assertTrue(str, Arrays.equals(expected.toByteArray(), out.toByteArray()));
+
+			ByteArrayOutputStream bufferedOut = new ByteArrayOutputStream();
+			BufferedPacker buffered = new BufferedPacker(bufferedOut, 64);
+			buffered.packString(str);
+			buffered.flush();
+			assertTrue(str, Arrays.equals(expected.toByteArray(), bufferedOut.toByteArray()));
+			BufferedPacker growing = new BufferedPacker(16);
+			growing.packString(str);
+			assertTrue(str, Arrays.equals(expected.toByteArray(), growing.toByteArray()));
+
+			ByteBufferPacker bbpk = new ByteBufferPacker(java.nio.ByteBuffer.allocate(128));
+			bbpk.packString(str);
+			assertTrue(str, Arrays.equals(expected.toByteArray(), bbpk.toByteArray()));
+		}
+	}
+
+	@Test
+	public void testPackedString() throws Exception {
+		String key = "packed_\u3042_key";
+		PackedString ps = new PackedString(key);
+		assertEquals(key, ps.getString());
+
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		Packer pk = new Packer(expected);
+		byte[] utf8 = key.getBytes("UTF-8");
+		pk.packRaw(utf8.length);
+		pk.packRawBody(utf8);
+		assertEquals(expected.size(), ps.getPackedSize());
+
+		BufferedPacker bpk = new BufferedPacker();
+		bpk.packPackedString(ps);
+		bpk.packString(key);
+		bpk.packString(new String(key));
+		bpk.pack(key);
+		Unpacker pac = new Unpacker();
+		pac.feed(bpk.toByteArray());
+		for(int i=0; i < 4; i++) {
+			assertEquals(key, pac.unpackString());
+		}
+
+		byte[] twice = new byte[expected.size() * 2];
+		System.arraycopy(expected.toByteArray(), 0, twice, 0, expected.size());
+		System.arraycopy(expected.toByteArray(), 0, twice, expected.size(), expected.size());
+		assertTrue(Arrays.equals(twice, Arrays.copyOf(bpk.toByteArray(), twice.length)));
+	}
+
+	@Test
+	public void testStringCache() throws Exception {
+		final List<byte[]> writes = new ArrayList<byte[]>();
+		Packer pk = new Packer(new ByteArrayOutputStream()) {
+			protected void writeBytes(byte[] b, int off, int len) throws IOException {
+				writes.add(b);
+				super.writeBytes(b, off, len);
+			}
+		};
+		pk.setStringCacheSize(100);
+		assertEquals(128, pk.getStringCacheSize());
+
+		// an explicitly cached string is written from its serialized form
+		PackedString ps = new PackedString("user_id");
+		pk.cacheString(ps);
+		Template tmpl = TemplateRegistry.lookup(String.class);
+		tmpl.pack(pk, ps.getString());
+		assertEquals(1, writes.size());
+		assertSame(ps.packed, writes.get(0));
+
+		// other strings are cached when the same instance is packed again
+		String key = "learned_key";
+		tmpl.pack(pk, key);
+		tmpl.pack(pk, key);
+		writes.clear();
+		tmpl.pack(pk, key);
+		tmpl.pack(pk, new String(key));
+		assertEquals(2, writes.size());
+		byte[] cached = writes.get(0);
+		assertEquals(1 + key.length(), cached.length);
+		assertNotSame(cached, writes.get(1));
+		tmpl.pack(pk, key);
+		assertSame(cached, writes.get(2));
+
+		BufferedPacker bpk = new BufferedPacker();
+		bpk.setStringCacheSize(16);
+		for(int i=0; i < 4; i++) {
+			bpk.packString(key);
+		}
+		Unpacker pac = new Unpacker();
+		pac.feed(bpk.toByteArray());
+		for(int i=0; i < 4; i++) {
+			assertEquals(key, pac.unpackString());
+		}
+	}
+
+	@MessagePackMessage
+	public static class SizedMessage {
+		public int i;
+		public long l;
+		public double d;
+		public String s;
+		@Nullable
+		public List<String> list;
+		public Map<String,Integer> map;
+
+		public SizedMessage() { }
+	}
+
+	@Test
+	public void testPackedSize() throws Exception {
+		char[] longChars = new char[70000];
+		Arrays.fill(longChars, '\u3042');
+		SizedMessage msg = new SizedMessage();
+		msg.i = -40000;
+		msg.l = 1L << 40;
+		msg.d = 0.5;
+		msg.s = "sized";
+		msg.map = new HashMap<String,Integer>();
+		msg.map.put("a", 300);
+
+		Object[] values = new Object[] {
+			null, true, (byte)-100, (short)200, 0, -32, -33, 127, 128, 255, 256,
+			65535, 65536, -128, -129, -32768, -32769, Integer.MIN_VALUE,
+			1L << 31, 1L << 32, -(1L << 31) - 1, Long.MAX_VALUE,
+			new BigInteger("18446744073709551615"), 1.0f, 1.0,
+			"", "abc", "\u3042\u3044", new String(longChars), new byte[40],
+			new int[] {1, 1000, -100000}, new double[17],
+			new ArrayList<Object>(Arrays.asList(1, "two", 3.0)),
+			new ArrayList<Object>(Arrays.asList(new Object[20])),
+			new ArrayList<Object>(Arrays.asList(IntegerType.create(70000), "mpo")),
+			msg.map, msg,
+		};
+		for(Object value : values) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			new Packer(out).pack(value);
+			assertEquals(String.valueOf(value), out.size(), Packer.sizeOf(value));
+			assertTrue(Arrays.equals(out.toByteArray(), MessagePack.pack(value)));
+		}
+
+		MessagePackObject obj = IntegerType.create(70000);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new Packer(out).pack(obj);
+		assertEquals(out.size(), Packer.sizeOf(obj));
+
+		msg.s = null;
+		try {
+			Packer.sizeOf(msg);
+			fail();
+		} catch (MessageTypeException e) {
+		}
+	}
+
+	@Test
+	public void testBeginEndContainer() throws Exception {
+		int[] counts = new int[] {0, 15, 16, 65535, 65536};
+		for(int n : counts) {
+			ByteArrayOutputStream expected = new ByteArrayOutputStream();
+			Packer pk = new Packer(expected);
+			pk.packString("head");
+			pk.packArray(2);
+			pk.packArray(n);
+			for(int i=0; i < n; i++) {
+				pk.packInt(i);
+			}
+			pk.packMap(n);
+			for(int i=0; i < n; i++) {
+				pk.packInt(i);
+				pk.packString("v");
+			}
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			BufferedPacker[] packers = new BufferedPacker[] {
+				new BufferedPacker(), new BufferedPacker(out, 16),
+			};
+			for(BufferedPacker bpk : packers) {
+				bpk.packString("head");
+				bpk.beginArray();
+				bpk.beginArray();
+				for(int i=0; i < n; i++) {
+					bpk.packInt(i);
+				}
+				bpk.endArray();
+				bpk.beginMap();
+				for(int i=0; i < n; i++) {
+					bpk.packInt(i);
+					bpk.packString("v");
+				}
+				bpk.endMap();
+				bpk.endArray();
+				bpk.flush();
+			}
+			assertTrue(Arrays.equals(expected.toByteArray(), packers[0].toByteArray()));
+			assertTrue(Arrays.equals(expected.toByteArray(), out.toByteArray()));
+		}
+
+		// containers larger than the buffer are written to a channel and patched
+		File file = File.createTempFile("msgpack", "streamed");
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				BufferedPacker fpk = new BufferedPacker(raf.getChannel(), 64);
+				fpk.packString("head");
+				fpk.beginArray();
+				fpk.beginMap();
+				fpk.pack("k").pack("v");
+				fpk.endMap();
+				for(int i=0; i < 10000; i++) {
+					fpk.packString("row" + i);
+				}
+				fpk.beginArray();
+				fpk.packInt(1);
+				fpk.endArray();
+				fpk.endArray();
+				fpk.flush();
+				assertEquals(64, fpk.getBuffer().length);
+
+				byte[] written = new byte[(int)raf.length()];
+				raf.seek(0);
+				raf.readFully(written);
+				Unpacker pac = new Unpacker();
+				pac.feed(written);
+				assertEquals("head", pac.unpackString());
+				assertEquals(10002, pac.unpackArray());
+				assertEquals(1, pac.unpackMap());
+				assertEquals("k", pac.unpackString());
+				assertEquals("v", pac.unpackString());
+				for(int i=0; i < 10000; i++) {
+					assertEquals("row" + i, pac.unpackString());
+				}
+				assertEquals(1, pac.unpackArray());
+				assertEquals(1, pac.unpackInt());
+				assertFalse(pac.isValueAvailable());
+			} finally {
+				raf.close();
+			}
+		} finally {
+			file.delete();
+		}
+
+		// a streamed container as an element of a sized one
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		new Packer(expected).packArray(2).packArray(2).pack(1)
+			.packArray(1).pack("x").pack(true);
+		BufferedPacker nested = new BufferedPacker();
+		nested.beginArray();
+		nested.packArray(2).pack(1);
+		nested.beginArray();
+		nested.pack("x");
+		nested.endArray();
+		nested.pack(true);
+		nested.endArray();
+		assertTrue(Arrays.equals(expected.toByteArray(), nested.toByteArray()));
+
+		BufferedPacker bpk = new BufferedPacker();
+		bpk.beginArray();
+		try {
+			bpk.endMap();
+			fail();
+		} catch (MessageTypeException e) {
+		}
+		bpk.reset();
+		bpk.beginMap();
+		bpk.packInt(1);
+		try {
+			bpk.endMap();
+			fail();
+		} catch (MessageTypeException e) {
+		}
+	}
+
+	@Test
+	public void testPrimitiveArrays() throws Exception {
+		Random rand = new Random(17);
+		int[] ints = new int[3000];
+		long[] longs = new long[3000];
+		float[] floats = new float[3000];
+		double[] doubles = new double[3000];
+		for(int i=0; i < ints.length; i++) {
+			int shift = rand.nextInt(40);
+			ints[i] = (int)(rand.nextLong() >> (shift + 32));
+			longs[i] = rand.nextLong() >> (shift * 3 / 2);
+			floats[i] = rand.nextFloat();
+			doubles[i] = rand.nextDouble();
+		}
+		longs[0] = Long.MIN_VALUE;
+		longs[1] = 0xffffffffL;
+
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		Packer pk = new Packer(expected);
+		pk.packArray(ints.length);
+		for(int a : ints) { pk.packInt(a); }
+		pk.packArray(longs.length);
+		for(long a : longs) { pk.packLong(a); }
+		pk.packArray(floats.length);
+		for(float a : floats) { pk.packFloat(a); }
+		pk.packArray(doubles.length);
+		for(double a : doubles) { pk.packDouble(a); }
+
+		for(boolean fixed : new boolean[] {false, true}) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			Packer bulk = new Packer(out);
+			bulk.setFixedWidthArrays(fixed);
+			bulk.packIntArray(ints);
+			assertEquals(Packer.sizeOfIntArray(ints, fixed), out.size());
+			bulk.packLongArray(longs);
+			assertEquals(Packer.sizeOfIntArray(ints, fixed) + Packer.sizeOfLongArray(longs, fixed), out.size());
+			bulk.packFloatArray(floats);
+			bulk.packDoubleArray(doubles);
+			if(fixed) {
+				assertEquals(4 * 3 + 3000 * (5 + 9 + 5 + 9), out.size());
+			} else {
+				assertTrue(Arrays.equals(expected.toByteArray(), out.toByteArray()));
+			}
+
+			// small reads make the elements cross the buffer boundary
+			InputStream in = new FilterInputStream(new ByteArrayInputStream(out.toByteArray())) {
+				public int read(byte[] b, int off, int len) throws IOException {
+					return super.read(b, off, Math.min(len, 7));
+				}
+			};
+			Unpacker pac = new Unpacker(in);
+			int[] intsTo = new int[ints.length];
+			assertSame(intsTo, pac.unpackIntArray(intsTo));
+			assertTrue(Arrays.equals(ints, intsTo));
+			assertTrue(Arrays.equals(longs, pac.unpackLongArray()));
+			assertTrue(Arrays.equals(floats, pac.unpackFloatArray(new float[1])));
+			assertTrue(Arrays.equals(doubles, pac.unpackDoubleArray()));
+		}
+
+		byte[] packed = MessagePack.pack(doubles);
+		assertEquals(packed.length, Packer.sizeOf(doubles));
+		assertTrue(Arrays.equals(doubles, MessagePack.unpack(packed, double[].class)));
+
+		Unpacker pac = new Unpacker();
+		java.nio.ByteBuffer direct = java.nio.ByteBuffer.allocateDirect(packed.length);
+		direct.put(packed);
+		direct.flip();
+		pac.wrap(direct);
+		assertTrue(Arrays.equals(doubles, pac.unpackDoubleArray()));
+	}
+
+	@Test
+	public void testVectoredPacker() throws Exception {
+		byte[] blob = new byte[1024*1024];
+		blob[0] = 1;
+		VectoredPacker vpk = new VectoredPacker(new org.msgpack.buffer.VectoredByteBuffer(1024, 256));
+		BufferedPacker bpk = new BufferedPacker();
+		for(Packer pk : new Packer[] {vpk, bpk}) {
+			pk.packArray(3);
+			pk.pack("envelope");
+			pk.pack(blob);
+			pk.packIntArray(new int[300]);
+		}
+		// the blob is referenced, not copied
+		blob[1] = 2;
+		byte[] expected = bpk.toByteArray();
+		int blobStart = 1 + Packer.sizeOfString("envelope") + Packer.sizeOfRawHeader(blob.length);
+		expected[blobStart + 1] = 2;
+		File file = File.createTempFile("msgpack", "vectored");
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				long written = 0;
+				while(vpk.getVectoredByteBuffer().available() > 0) {
+					written += vpk.getVectoredByteBuffer().read(raf.getChannel());
+				}
+				assertEquals(expected.length, written);
+				byte[] actual = new byte[expected.length];
+				raf.seek(0);
+				raf.readFully(actual);
+				assertTrue(Arrays.equals(expected, actual));
+			} finally {
+				raf.close();
+			}
+		} finally {
+			file.delete();
+		}
+
+		// a referenced slice of a heap buffer starts at its array offset
+		byte[] body = new byte[400];
+		for(int i=0; i < body.length; i++) {
+			body[i] = (byte)i;
+		}
+		ByteArrayOutputStream sliceExpected = new ByteArrayOutputStream();
+		new Packer(sliceExpected).packRaw(300).packRawBody(body, 50, 300);
+		vpk = new VectoredPacker(new org.msgpack.buffer.VectoredByteBuffer(1024, 256));
+		vpk.packByteBuffer(java.nio.ByteBuffer.wrap(body, 50, 300).slice());
+		ByteArrayOutputStream sliceOut = new ByteArrayOutputStream();
+		vpk.getVectoredByteBuffer().writeTo(sliceOut);
+		assertTrue(Arrays.equals(sliceExpected.toByteArray(), sliceOut.toByteArray()));
+		assertTrue(Arrays.equals(sliceExpected.toByteArray(), vpk.getVectoredByteBuffer().toByteArray()));
+	}
+
+	@Test
+	public void testPackDirectByteBuffer() throws Exception {
+		byte[] body = new byte[20000];
+		new Random(3).nextBytes(body);
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		new Packer(expected).pack(Arrays.copyOfRange(body, 100, body.length));
+
+		java.nio.ByteBuffer direct = java.nio.ByteBuffer.allocateDirect(body.length);
+		direct.put(body);
+		direct.position(100);
+		java.nio.ByteBuffer readOnly = java.nio.ByteBuffer.wrap(body).asReadOnlyBuffer();
+		readOnly.position(100);
+
+		for(java.nio.ByteBuffer bb : new java.nio.ByteBuffer[] {direct, readOnly}) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			new Packer(out).packByteBuffer(bb);
+			assertTrue(Arrays.equals(expected.toByteArray(), out.toByteArray()));
+
+			BufferedPacker bpk = new BufferedPacker(16);
+			bpk.pack(bb);
+			assertTrue(Arrays.equals(expected.toByteArray(), bpk.toByteArray()));
+
+			out = new ByteArrayOutputStream();
+			bpk = new BufferedPacker(out, 64);
+			bpk.pack(bb);
+			bpk.flush();
+			assertTrue(Arrays.equals(expected.toByteArray(), out.toByteArray()));
+
+			ByteBufferPacker bbpk = new ByteBufferPacker(java.nio.ByteBuffer.allocate(100));
+			bbpk.pack(bb);
+			assertTrue(Arrays.equals(expected.toByteArray(), bbpk.toByteArray()));
+
+			VectoredPacker vpk = new VectoredPacker();
+			vpk.pack(bb);
+			assertTrue(Arrays.equals(expected.toByteArray(), vpk.getVectoredByteBuffer().toByteArray()));
+
+			assertTrue(Arrays.equals(expected.toByteArray(), MessagePack.pack(bb)));
+			assertEquals(100, bb.position());
+		}
+	}
+
+	@Test
+	public void testMappedLog() throws Exception {
+		File file = File.createTempFile("msgpack", ".log");
+		file.delete();
+		file.deleteOnExit();
+		byte[] large = new byte[300];
+		Arrays.fill(large, (byte)7);
+
+		MappedLogPacker log = new MappedLogPacker(file, 64, true);
+		log.setSyncInterval(3, 0);
+		for(int i=0; i < 20; i++) {
+			log.append("record" + i);
+		}
+		log.append(large);
+		// one record written by several pack calls
+		log.packArray(2).pack(1).pack(2);
+		log.endRecord();
+		log.packArray(2).pack(3);
+		log.close();
+
+		log = new MappedLogPacker(file, 64, false);
+		assertTrue(log.isFramed());
+		log.append(100);
+		int end = log.getSize();
+		log.append(101);
+		log.close();
+
+		// break the last record
+		RandomAccessFile f = new RandomAccessFile(file, "rw");
+		f.seek(end + MappedLogPacker.FRAME_HEADER_SIZE);
+		f.write(0xc1);
+		f.close();
+
+		log = new MappedLogPacker(file);
+		assertEquals(end, log.getSize());
+		log.append(102);
+		log.close();
+
+		Iterator<MessagePackObject> it = MappedLogPacker.read(file);
+		for(int i=0; i < 20; i++) {
+			assertEquals("record" + i, it.next().asString());
+		}
+		assertArrayEquals(large, it.next().asByteArray());
+		MessagePackObject[] array = it.next().asArray();
+		assertEquals(2, array.length);
+		assertEquals(2, array[1].asInt());
+		assertEquals(100, it.next().asInt());
+		assertEquals(102, it.next().asInt());
+		assertFalse(it.hasNext());
+	}
+
+	@Test
+	public void testMappedLogEmptyHeader() throws Exception {
+		File file = File.createTempFile("msgpack", ".log");
+		file.deleteOnExit();
+		// crashed after extending the file before writing the header
+		RandomAccessFile f = new RandomAccessFile(file, "rw");
+		f.setLength(4096);
+		f.close();
+		assertFalse(MappedLogPacker.read(file).hasNext());
+
+		MappedLogPacker log = new MappedLogPacker(file, 64, true);
+		assertTrue(log.isFramed());
+		assertEquals(MappedLogPacker.HEADER_SIZE, log.getSize());
+		for(int i=0; i < 100; i++) {
+			log.append(i);
+		}
+		log.close();
+
+		Iterator<MessagePackObject> it = MappedLogPacker.read(file);
+		for(int i=0; i < 100; i++) {
+			assertEquals(i, it.next().asInt());
+		}
+		assertFalse(it.hasNext());
+	}
+
+	@Test
+	public void testMappedLogUnframed() throws Exception {
+		File file = File.createTempFile("msgpack", ".log");
+		file.delete();
+		file.deleteOnExit();
+
+		MappedLogPacker log = new MappedLogPacker(file, 64, false);
+		log.setSyncInterval(0, 0);
+		log.append(0);
+		log.append("a");
+		log.sync();
+		int synced = log.getSize();
+		log.append(0);
+		log.close();
+
+		// lose the last sync
+		RandomAccessFile f = new RandomAccessFile(file, "rw");
+		f.seek(4);
+		f.writeInt(synced);
+		f.close();
+
+		log = new MappedLogPacker(file, 64, true);
+		assertFalse(log.isFramed());
+		assertEquals(synced, log.getSize());
+		log.append(1);
+		log.close();
+
+		Iterator<MessagePackObject> it = MappedLogPacker.read(file);
+		assertEquals(0, it.next().asInt());
+		assertEquals("a", it.next().asString());
+		assertEquals(1, it.next().asInt());
+		assertFalse(it.hasNext());
+	}
+
+	@Test
+	public void testWrapByteBufferNotRewritten() throws Exception {
+		byte[] array = new byte[16];
+		Arrays.fill(array, (byte)1);
+		java.nio.ByteBuffer heap = java.nio.ByteBuffer.wrap(array);
+		heap.limit(2);
+		Unpacker pac = new Unpacker();
+		pac.wrap(heap);
+		assertEquals(0, pac.getBufferCapacity());
+		pac.feed(new byte[] {127, 127, 127});
+		for(byte b : array) {
+			assertEquals(1, b);
+		}
+		int[] expected = new int[] {1, 1, 127, 127, 127};
+		for(int e : expected) {
+			assertEquals(e, pac.unpackInt());
+		}
+
+		java.nio.ByteBuffer direct = java.nio.ByteBuffer.allocateDirect(4);
+		direct.put((byte)5).flip();
+		pac.wrap(direct);
+		assertEquals(0, pac.getBufferCapacity());
+		pac.reserveBuffer(8);
+		assertTrue(pac.getBufferCapacity() >= 8);
+		assertEquals(5, pac.unpackInt());
+	}
+};
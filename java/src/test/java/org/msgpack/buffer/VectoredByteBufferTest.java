@@ -41,5 +41,172 @@ public class VectoredByteBufferTest extends TestCase {
 		assertEquals(bo.size(), check.size());
 		assertTrue(Arrays.equals(bo.toByteArray(), check.toByteArray()));
 	}
+
+	@Test
+	public void testByteBufferIO() throws Exception {
+		VectoredByteBuffer v = new VectoredByteBuffer();
+		java.nio.ByteBuffer small = java.nio.ByteBuffer.wrap(new byte[] {1, 2, 3});
+		java.nio.ByteBuffer large = java.nio.ByteBuffer.wrap(new byte[100]);
+		large.put(0, (byte)4);
+		v.write(new java.nio.ByteBuffer[] {small, large}, 0, 2);
+		assertEquals(0, small.remaining());
+		assertEquals(0, large.remaining());
+		// the large buffer is referenced
+		large.put(1, (byte)5);
+		assertEquals(103, v.available());
+
+		java.nio.ByteBuffer dst = java.nio.ByteBuffer.allocate(5);
+		assertEquals(5, v.read(dst));
+		assertTrue(Arrays.equals(new byte[] {1, 2, 3, 4, 5}, dst.array()));
+		assertEquals(98, v.available());
+	}
+
+	@Test
+	public void testChunkPool() throws Exception {
+		ChunkPool pool = new ChunkPool(64, 16, true);
+		VectoredByteBuffer v = new VectoredByteBuffer(64, 32, pool);
+		byte[] copy = new byte[10];
+		byte[] ref = new byte[40];
+		for(int round=0; round < 3; round++) {
+			ByteArrayOutputStream bo = new ByteArrayOutputStream();
+			for(int i=0; i < 50; i++) {
+				Arrays.fill(copy, (byte)i);
+				Arrays.fill(ref, (byte)-i);
+				byte[] r = ref.clone();
+				v.write(copy);
+				bo.write(copy);
+				if(i % 7 == 0) {
+					v.write(r);
+					bo.write(r);
+				}
+			}
+			byte[] expected = bo.toByteArray();
+			byte[] actual = new byte[expected.length];
+			// partial reads release the chunks consumed so far
+			int off = 0;
+			while(off < actual.length) {
+				off += v.read(actual, off, Math.min(33, actual.length - off));
+			}
+			assertTrue(Arrays.equals(expected, actual));
+			assertEquals(0, v.available());
+			assertTrue(pool.getPooledCount() > 0);
+		}
+		assertTrue(pool.getHitCount() > 0);
+		assertTrue(pool.getMissCount() <= 16);
+
+		v.write(copy);
+		v.reset();
+		assertEquals(0, v.available());
+	}
+
+	@Test
+	public void testSpsc() throws Exception {
+		final SpscVectoredByteBuffer spsc = new SpscVectoredByteBuffer(64, 32, 4);
+		final int count = 20000;
+		Thread producer = new Thread() {
+			public void run() {
+				for(int i=0; i < count; i++) {
+					byte[] b = new byte[i % 50];
+					Arrays.fill(b, (byte)i);
+					spsc.write(b);
+					if(i % 3 == 0) {
+						spsc.flush();
+					}
+				}
+				spsc.flush();
+			}
+		};
+		producer.start();
+
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		for(int i=0; i < count; i++) {
+			byte[] b = new byte[i % 50];
+			Arrays.fill(b, (byte)i);
+			expected.write(b);
+		}
+		byte[] actual = new byte[expected.size()];
+		int off = 0;
+		while(off < actual.length) {
+			int n = spsc.read(actual, off, Math.min(100, actual.length - off));
+			if(n == 0) {
+				// let the producer run on a single CPU
+				Thread.yield();
+			}
+			off += n;
+		}
+		producer.join();
+		assertTrue(Arrays.equals(expected.toByteArray(), actual));
+		assertEquals(0, spsc.available());
+	}
+
+	@Test
+	public void testSpscPoolAndTimeout() throws Exception {
+		ChunkPool pool = new ChunkPool(64, 4, false);
+		SpscVectoredByteBuffer spsc = new SpscVectoredByteBuffer(64, 32, 4, pool);
+		assertFalse(spsc.isDirect());
+		byte[] b = new byte[30];
+		for(int i=0; i < 3; i++) {
+			spsc.write(b);
+			spsc.flush();
+		}
+		assertEquals(2, pool.getMissCount());
+		byte[] to = new byte[90];
+		assertEquals(90, spsc.read(to, 0, to.length));
+		// the first chunk is released once a view of the second one is read
+		assertEquals(1, pool.getPooledCount());
+		spsc.write(b);
+		spsc.write(b);
+		spsc.flush();
+		assertEquals(1, pool.getHitCount());
+
+		// the ring holds 4 views; the fifth publish can't complete
+		spsc.setWriteTimeout(10);
+		spsc.writeReference(new byte[40], 0, 40);
+		spsc.writeReference(new byte[40], 0, 40);
+		try {
+			spsc.writeReference(new byte[40], 0, 40);
+			fail();
+		} catch (java.nio.BufferOverflowException e) { }
+		assertEquals(60 + 80, spsc.available());
+	}
+
+	@Test
+	public void testUnsynchronized() throws Exception {
+		UnsynchronizedVectoredByteBuffer v = new UnsynchronizedVectoredByteBuffer(64, 32);
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		for(int i=0; i < 100; i++) {
+			byte[] b = new byte[i];
+			Arrays.fill(b, (byte)i);
+			v.write(b);
+			bo.write(b);
+		}
+		assertTrue(Arrays.equals(bo.toByteArray(), v.toByteArray()));
+		assertEquals(bo.size(), v.skip(bo.size()));
+		assertEquals(0, v.available());
+	}
+
+	@Test
+	public void testDirectAndRelease() throws Exception {
+		ChunkPool heapPool = new ChunkPool(64, 4, false);
+		VectoredByteBuffer v = new VectoredByteBuffer(64, 32, heapPool);
+		// the kind of chunks follows the pool
+		assertFalse(v.isDirect());
+		v.write(new byte[] {1, 2, 3});
+		assertEquals(1, heapPool.getMissCount());
+		v.release();
+		assertEquals(0, v.available());
+		assertEquals(1, heapPool.getPooledCount());
+		v.write(new byte[] {4, 5});
+		assertEquals(1, heapPool.getHitCount());
+		assertTrue(Arrays.equals(new byte[] {4, 5}, v.toByteArray()));
+		v.release();
+
+		v.setDirect(true);
+		v.write(new byte[10]);
+		// direct chunks are not taken from a heap pool
+		assertEquals(1, heapPool.getHitCount());
+		assertEquals(1, heapPool.getMissCount());
+		assertEquals(10, v.available());
+	}
 }
 
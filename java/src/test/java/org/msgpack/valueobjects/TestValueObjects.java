@@ -3,6 +3,7 @@ package org.msgpack.valueobjects;
 import junit.framework.TestCase;
 import org.junit.Test;
 import org.msgpack.UnpackException;
+import org.msgpack.Unpacker;
 import org.msgpack.UnpackerImpl;
 
 import java.io.ByteArrayOutputStream;
@@ -81,4 +82,19 @@ public class TestValueObjects extends TestCase
 
         assertEquals(0,  mockVOHelper.valuesPut);
     }
+
+    @Test
+    public void testValueObjectSkip() throws Exception {
+        //              | VO        |HEADER     |typeID 253 |field (1)  |string[2]  |'v'        |'o'        |field (15) |bool false |fixnum 42
+        byte[] bytes = {(byte)0xD7, (byte)0x82, (byte)0xFD, (byte)0x01, (byte)0xA2, (byte)0x76, (byte)0x6F, (byte)0x80, (byte)0xC2, (byte)0x2A};
+
+        Unpacker pac = new Unpacker();
+        pac.setVOHelper(new TestVOHelper());
+        pac.feed(bytes, 0, 5);
+        assertFalse(pac.isValueAvailable());
+        pac.feed(bytes, 5, bytes.length - 5);
+        assertTrue(pac.isValueAvailable());
+        pac.skipValue();
+        assertEquals(42, pac.unpackInt());
+    }
 }